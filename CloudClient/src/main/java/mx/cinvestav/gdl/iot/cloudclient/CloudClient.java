@@ -6,7 +6,6 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.nio.file.Path;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.text.DateFormat;
@@ -77,6 +76,8 @@ public class CloudClient
 		
 		
 		Random r = new Random();
+		// the same picture is sent with every measure, read it once
+		String image = Base64.encodeBase64String(Files.readAllBytes(Paths.get("plant.jpg")));
 		//creamos un object UpdataDataRequest
 		UpdateDataRequest request = new UpdateDataRequest();
 
@@ -98,10 +99,7 @@ public class CloudClient
 					c.setTime(date);
 					c.add(Calendar.DAY_OF_MONTH, k);
 					measures[k].setTime(format.format(c.getTime()));
-					
-					Path path = Paths.get("plant.jpg");
-					byte[] image = Files.readAllBytes(path);
-					measures[k].setImage(Base64.encodeBase64String(image));
+					measures[k].setImage(image);
 				}
 				sensorData[j] = new SensorData();
 				sensorData[j].setMeasures(measures);
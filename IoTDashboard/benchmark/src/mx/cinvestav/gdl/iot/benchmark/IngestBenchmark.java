@@ -0,0 +1,166 @@
+package mx.cinvestav.gdl.iot.benchmark;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.impl.MeasureBatcher;
+
+/**
+ * Compares the ingestion throughput (rows/sec) of the old per-row JPA path against the batched
+ * path used by IoTService.updateData. Runs against the database configured in cloudsql.url.dev,
+ * compiled as {@link MapperBenchmark} says, e.g.
+ *
+ * <pre>
+ * java -cp "benchmark/classes:war/WEB-INF/classes:war/WEB-INF/lib/*" \
+ *      -Dcloudsql.url.dev="jdbc:mysql://localhost:3306/data?user=root&amp;rewriteBatchedStatements=true" \
+ *      mx.cinvestav.gdl.iot.benchmark.IngestBenchmark [idsensor] [idthing] [rows] [threads]
+ * </pre>
+ *
+ * Every row is written with idexperiment = -1 and deleted at the end of the run.
+ */
+public class IngestBenchmark
+{
+	private static final int BENCH_EXPERIMENT = -1;
+	private static final int ROWS_PER_REQUEST = 300;
+
+	public static void main(String[] args) throws Exception
+	{
+		final int idsensor = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		final int idthing = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		final int rows = args.length > 2 ? Integer.parseInt(args[2]) : 30000;
+		final int threads = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+		// warm up the entity manager factory and the connection
+		persistPerRow(generate(idsensor, idthing, 10));
+
+		report("per-row persist", rows, persistPerRow(generate(idsensor, idthing, rows)));
+		report("batched insert", rows, insertBatched(generate(idsensor, idthing, rows)));
+		report("group commit, " + threads + " threads", rows, groupCommit(idsensor, idthing, rows, threads));
+
+		cleanUp();
+	}
+
+	/**
+	 * The previous ingestion path: one persist per measure and one flush per smart thing
+	 */
+	private static long persistPerRow(List<Measure> measures) throws Exception
+	{
+		long start = System.nanoTime();
+		for (int from = 0; from < measures.size(); from += ROWS_PER_REQUEST)
+		{
+			EntityManager em = DAO.getEntityManager();
+			EntityTransaction tx = em.getTransaction();
+			try
+			{
+				tx.begin();
+				for (Measure m : measures.subList(from, Math.min(measures.size(), from + ROWS_PER_REQUEST)))
+				{
+					em.persist(m);
+				}
+				em.flush();
+				tx.commit();
+			}
+			finally
+			{
+				if (tx.isActive()) tx.rollback();
+				em.close();
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long insertBatched(List<Measure> measures) throws Exception
+	{
+		long start = System.nanoTime();
+		for (int from = 0; from < measures.size(); from += ROWS_PER_REQUEST)
+		{
+			DAO.insertMeasures(measures.subList(from, Math.min(measures.size(), from + ROWS_PER_REQUEST)));
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long groupCommit(final int idsensor, final int idthing, int rows, int threads)
+			throws Exception
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Callable<Void>> requests = new ArrayList<>();
+		for (int i = 0; i < rows / ROWS_PER_REQUEST; i++)
+		{
+			requests.add(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					MeasureBatcher.write(generate(idsensor, idthing, ROWS_PER_REQUEST));
+					return null;
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Future<Void> f : pool.invokeAll(requests))
+		{
+			f.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+		return elapsed;
+	}
+
+	private static List<Measure> generate(int idsensor, int idthing, int rows)
+	{
+		Random r = new Random();
+		long now = System.currentTimeMillis();
+		List<Measure> measures = new ArrayList<>(rows);
+		for (int i = 0; i < rows; i++)
+		{
+			Measure m = new Measure();
+			int value = 30 + r.nextInt(5);
+			m.setMeasure(String.valueOf(value));
+			m.setMeasure_value((double) value);
+			m.setMeasure_date(new Timestamp(now + i * 1000L));
+			m.setIdsensor(idsensor);
+			m.setIdthing(idthing);
+			m.setCharted(1);
+			m.setIdexperiment(BENCH_EXPERIMENT);
+			measures.add(m);
+		}
+		return measures;
+	}
+
+	private static void cleanUp() throws Exception
+	{
+		EntityManager em = DAO.getEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		try
+		{
+			tx.begin();
+			em.createNativeQuery("DELETE FROM data WHERE idexperiment=?").setParameter(1, BENCH_EXPERIMENT)
+					.executeUpdate();
+			em.createNativeQuery("DELETE FROM data_rollup WHERE idexperiment=?").setParameter(1, BENCH_EXPERIMENT)
+					.executeUpdate();
+			tx.commit();
+		}
+		finally
+		{
+			if (tx.isActive()) tx.rollback();
+			em.close();
+		}
+	}
+
+	private static void report(String name, int rows, long nanos)
+	{
+		double seconds = nanos / 1e9;
+		System.out.printf("%-28s %8d rows %8.2f s %10.0f rows/s%n", name, rows, seconds, rows / seconds);
+	}
+}
@@ -0,0 +1,110 @@
+package mx.cinvestav.gdl.iot.benchmark;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.webpage.dto.MeasureDTO;
+import mx.cinvestav.gdl.iot.webpage.server.DTOMapper;
+
+import org.dozer.DozerBeanMapper;
+import org.dozer.Mapper;
+
+/**
+ * Compares the time to copy Measure rows to MeasureDTO with Dozer, which the RPC services used
+ * before, and with DTOMapper. No database is needed. Like the other benchmarks it lives in
+ * benchmark/src, outside the WAR, with the dozer.properties the services used, and Dozer is only
+ * in benchmark/lib; from the IoTDashboard directory, once the project is built:
+ *
+ * <pre>
+ * javac -d benchmark/classes -cp "war/WEB-INF/classes:war/WEB-INF/lib/*:benchmark/lib/*" benchmark/src/mx/cinvestav/gdl/iot/benchmark/*.java
+ * java -cp "benchmark/classes:benchmark/src:war/WEB-INF/classes:war/WEB-INF/lib/*:benchmark/lib/*" \
+ *      mx.cinvestav.gdl.iot.benchmark.MapperBenchmark [rows] [rounds]
+ * </pre>
+ *
+ * The first round of each mapper is reported on its own (it includes creating the mapper, what a
+ * new instance pays), the following ones are averaged.
+ */
+public class MapperBenchmark
+{
+	// keeps the JIT from dropping the mapped objects
+	private static long sink;
+
+	public static void main(String[] args) throws Exception
+	{
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		List<Measure> measures = generate(rows);
+
+		long start = System.nanoTime();
+		Mapper dozer = new DozerBeanMapper();
+		mapDozer(dozer, measures);
+		report("dozer, first round", rows, System.nanoTime() - start);
+		start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+		{
+			mapDozer(dozer, measures);
+		}
+		report("dozer", rows, (System.nanoTime() - start) / rounds);
+
+		start = System.nanoTime();
+		mapDirect(measures);
+		report("DTOMapper, first round", rows, System.nanoTime() - start);
+		start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+		{
+			mapDirect(measures);
+		}
+		report("DTOMapper", rows, (System.nanoTime() - start) / rounds);
+
+		if (sink == 42) System.out.println();
+	}
+
+	private static void mapDozer(Mapper mapper, List<Measure> measures)
+	{
+		List<MeasureDTO> dtos = new ArrayList<>(measures.size());
+		for (Measure m : measures)
+		{
+			dtos.add(mapper.map(m, MeasureDTO.class));
+		}
+		sink += dtos.get(dtos.size() - 1).getId();
+	}
+
+	private static void mapDirect(List<Measure> measures)
+	{
+		List<MeasureDTO> dtos = new ArrayList<>(measures.size());
+		for (Measure m : measures)
+		{
+			dtos.add(DTOMapper.toDTO(m));
+		}
+		sink += dtos.get(dtos.size() - 1).getId();
+	}
+
+	private static List<Measure> generate(int rows)
+	{
+		Random r = new Random();
+		long now = System.currentTimeMillis();
+		List<Measure> measures = new ArrayList<>(rows);
+		for (int i = 0; i < rows; i++)
+		{
+			Measure m = new Measure();
+			int value = 30 + r.nextInt(5);
+			m.setId(i + 1);
+			m.setMeasure(String.valueOf(value));
+			m.setMeasure_value((double) value);
+			m.setMeasure_date(new Timestamp(now + i * 1000L));
+			m.setIdsensor(1);
+			m.setIdthing(1);
+			m.setCharted(1);
+			measures.add(m);
+		}
+		return measures;
+	}
+
+	private static void report(String name, int rows, long nanos)
+	{
+		System.out.printf("%-28s %8d rows %10.2f ms %12.0f rows/s%n", name, rows, nanos / 1e6, rows / (nanos / 1e9));
+	}
+}
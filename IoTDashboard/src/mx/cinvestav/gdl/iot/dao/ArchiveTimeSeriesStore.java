@@ -0,0 +1,889 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import mx.cinvestav.gdl.iot.series.MinMaxDownsampler;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+/**
+ * Archive of the finished experiments in front of the engine of <code>iot.tsdb.engine</code>.
+ * {@link #archive(Timestamp)} moves the rows of the data table of the experiments that ended
+ * before a date to gzip compressed parts of <code>iot.archive.part.rows</code> measures in the
+ * data_archive table and deletes them, so the data table and its pages in the buffer pool only
+ * hold the active experiments. The segments of the segment engine are compressed already and stay
+ * where they are.
+ * <p>
+ * Reads of a series with archived parts merge the parts and the series of the engine by date,
+ * (measure_date, iddata) among equal dates, so archived experiments are read with the same
+ * methods; measures stored for an experiment after it was archived are read from the engine. Only
+ * the dates of the parts are listed first. The overlapping parts form clusters, and the range is
+ * read one window per cluster, from its first date to the first date of the next one. The content
+ * of the cluster is fetched first and decompressed one measure at a time, and then the engine
+ * streams the rows of the window, because Connector/J cannot run a query while it streams another.
+ * Pages take at most the measures they need from each window, both from the parts and from the
+ * page of the engine. A scan or a page reads in one transaction, so it sees an archiving either
+ * entirely or not at all. Measures without a date, which the ingestion never stores, are not read
+ * from an archived series. {@link #latest(Connection, int, List, int)} completes the newest
+ * measures of a sensor with its parts, and the rollups are rebuilt through {@link #scan}, so both
+ * see the archived experiments.
+ */
+class ArchiveTimeSeriesStore implements TimeSeriesStore
+{
+	static final String AFTER_DAYS = "iot.archive.after.days";
+	static final String PART_ROWS = "iot.archive.part.rows";
+	static final int DEFAULT_PART_ROWS = 20000;
+
+	private static final String INSERT_PART = "INSERT INTO data_archive (idsensor, idexperiment, first_date, last_date, measures, content) VALUES (?, ?, ?, ?, ?, ?)";
+	private static final String INSERT_IMAGE = "INSERT INTO data_archive_image (idarchive, hash) VALUES (?, ?)";
+
+	// stops reading the parts of a window once the page is full
+	private static final IOException PAGE_FULL = new IOException("page full");
+
+	private static final Logger logger = Logger.getLogger(ArchiveTimeSeriesStore.class.getName());
+
+	private final TimeSeriesStore store;
+
+	ArchiveTimeSeriesStore(TimeSeriesStore store)
+	{
+		this.store = store;
+	}
+
+	@Override
+	public void append(List<Measure> measures) throws DatabaseException
+	{
+		store.append(measures);
+	}
+
+	@Override
+	public void scan(Connection connection, int idsensor, int idexperiment, Timestamp from, final Timestamp to,
+			final MeasureConsumer consumer) throws SQLException, IOException
+	{
+		boolean snapshot = beginSnapshot(connection);
+		try
+		{
+			List<PartCursor> parts = readParts(connection, idsensor, idexperiment, from, to);
+			if (parts.isEmpty())
+			{
+				store.scan(connection, idsensor, idexperiment, from, to, consumer);
+				return;
+			}
+			for (Window w : windows(parts, from, to))
+			{
+				final Parts open = w.load(connection, true);
+				store.scan(connection, idsensor, idexperiment, w.from, w.to, new MeasureConsumer()
+				{
+					@Override
+					public void accept(Measure m) throws IOException
+					{
+						emit(open, m, consumer);
+						consumer.accept(m);
+					}
+				});
+				emit(open, null, consumer);
+			}
+		}
+		finally
+		{
+			endSnapshot(connection, snapshot);
+		}
+	}
+
+	@Override
+	public void sample(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			final MinMaxDownsampler sampler) throws SQLException
+	{
+		if (!hasParts(connection, idsensor, idexperiment))
+		{
+			store.sample(connection, idsensor, idexperiment, from, to, sampler);
+			return;
+		}
+		try
+		{
+			scan(connection, idsensor, idexperiment, from, to, new MeasureConsumer()
+			{
+				@Override
+				public void accept(Measure m)
+				{
+					if (m.getMeasure_value() != null && m.getMeasure_date() != null)
+					{
+						sampler.add(m.getMeasure_date().getTime(), m.getMeasure_value());
+					}
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			throw new SQLException("Corrupt archive of sensor " + idsensor + " in experiment " + idexperiment, e);
+		}
+	}
+
+	/**
+	 * The range of the engine widened with the range of the parts, which includes their measures
+	 * that are not charted
+	 */
+	@Override
+	public Timestamp[] getRange(Connection connection, int idexperiment, List<Integer> idsensors) throws SQLException
+	{
+		Timestamp[] range = store.getRange(connection, idexperiment, idsensors);
+		StringBuilder sql = new StringBuilder(
+				"SELECT MIN(first_date), MAX(last_date) FROM data_archive WHERE idexperiment=? AND idsensor IN (");
+		for (int i = 0; i < idsensors.size(); i++)
+		{
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		PreparedStatement ps = connection.prepareStatement(sql.append(')').toString());
+		try
+		{
+			ps.setInt(1, idexperiment);
+			int index = 2;
+			for (Integer idsensor : idsensors)
+			{
+				ps.setInt(index++, idsensor);
+			}
+			java.sql.ResultSet rs = ps.executeQuery();
+			rs.next();
+			Timestamp first = rs.getTimestamp(1);
+			Timestamp last = rs.getTimestamp(2);
+			rs.close();
+			if (first != null && (range[0] == null || first.before(range[0]))) range[0] = first;
+			if (last != null && (range[1] == null || last.after(range[1]))) range[1] = last;
+			return range;
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * Keyset page over the parts and the engine: from the date of the cursor on, each window adds
+	 * the first measures after the cursor of its parts and of the page of the engine, until the
+	 * page has one more measure than the limit
+	 */
+	@Override
+	public MeasurePage getPage(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			final Object[] after, int limit) throws SQLException
+	{
+		Timestamp start = from;
+		if (after != null && (start == null || ((Timestamp) after[0]).after(start)))
+		{
+			start = (Timestamp) after[0];
+		}
+		boolean snapshot = beginSnapshot(connection);
+		try
+		{
+			List<PartCursor> parts = readParts(connection, idsensor, idexperiment, start, to);
+			if (parts.isEmpty())
+			{
+				return store.getPage(connection, idsensor, idexperiment, from, to, after, limit);
+			}
+			List<Measure> measures = new ArrayList<>();
+			for (Window w : windows(parts, start, to))
+			{
+				final int need = limit + 1 - measures.size();
+				final List<Measure> archived = new ArrayList<>();
+				try
+				{
+					// nothing streams meanwhile, the parts are fetched when the merge reaches them
+					emit(w.load(connection, false), null, new MeasureConsumer()
+					{
+						@Override
+						public void accept(Measure m) throws IOException
+						{
+							if (after == null || compare(m, after) > 0)
+							{
+								archived.add(m);
+								if (archived.size() == need)
+								{
+									throw PAGE_FULL;
+								}
+							}
+						}
+					});
+				}
+				catch (IOException e)
+				{
+					if (e != PAGE_FULL)
+					{
+						throw new SQLException("Could not read the archive of sensor " + idsensor + " in experiment "
+								+ idexperiment, e);
+					}
+				}
+				MeasurePage engine = store.getPage(connection, idsensor, idexperiment, w.from, w.to, after, need);
+				List<Measure> rows = new ArrayList<>(engine.getMeasures());
+				int a = 0;
+				int r = 0;
+				while (measures.size() <= limit && (a < archived.size() || r < rows.size()))
+				{
+					if (r == rows.size() || (a < archived.size() && compare(archived.get(a), rows.get(r)) < 0))
+					{
+						measures.add(archived.get(a++));
+					}
+					else
+					{
+						measures.add(rows.get(r++));
+					}
+				}
+				if (measures.size() > limit)
+				{
+					break;
+				}
+			}
+			return DAO.toPage(measures, limit, after);
+		}
+		finally
+		{
+			endSnapshot(connection, snapshot);
+		}
+	}
+
+	@Override
+	public long flush(Timestamp before) throws DatabaseException
+	{
+		return store.flush(before);
+	}
+
+	/**
+	 * Merges the newest measures of a sensor in the parts, of any experiment and charted or not, with
+	 * the ones read from the data table. Parts are read from the one that ends last, while the
+	 * result has less than limit measures or the part ends at or after its oldest measure.
+	 * @param latest the newest measures of the sensor in the data table, newest first
+	 * @return the newest limit measures, newest first
+	 */
+	List<Measure> latest(Connection connection, int idsensor, List<Measure> latest, int limit) throws SQLException
+	{
+		List<PartCursor> parts = new ArrayList<>();
+		PreparedStatement ps = connection.prepareStatement("SELECT idarchive, first_date, last_date, idexperiment "
+				+ "FROM data_archive WHERE idsensor=? ORDER BY last_date DESC");
+		try
+		{
+			ps.setInt(1, idsensor);
+			java.sql.ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				parts.add(new PartCursor(rs.getInt(1), rs.getTimestamp(2), rs.getTimestamp(3), idsensor, rs.getInt(4),
+						null, null));
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+		List<Measure> merged = new ArrayList<>(latest);
+		boolean added = false;
+		for (PartCursor part : parts)
+		{
+			// undated measures sort before any dated one
+			Timestamp oldest = merged.isEmpty() ? null : merged.get(merged.size() - 1).getMeasure_date();
+			if (merged.size() >= limit && (part.last == null || (oldest != null && part.last.before(oldest))))
+			{
+				break;
+			}
+			part.load(connection);
+			if (part.content == null)
+			{
+				continue;
+			}
+			try
+			{
+				MeasureArchiveCodec.Reader reader = new MeasureArchiveCodec.Reader(part.content, idsensor, part.idexperiment);
+				Measure m;
+				while ((m = reader.next()) != null)
+				{
+					merged.add(m);
+				}
+			}
+			catch (IOException e)
+			{
+				throw new SQLException("Corrupt archive of sensor " + idsensor, e);
+			}
+			added = true;
+			Collections.sort(merged, Collections.reverseOrder(new Comparator<Measure>()
+			{
+				@Override
+				public int compare(Measure a, Measure b)
+				{
+					return ArchiveTimeSeriesStore.compare(a, b);
+				}
+			}));
+			if (merged.size() > limit)
+			{
+				merged = new ArrayList<>(merged.subList(0, limit));
+			}
+		}
+		return added ? merged : latest;
+	}
+
+	/**
+	 * Archives the rows of the data table of the experiments that ended before the given date, for
+	 * the sensors of their smart thing. Experiments archived before are checked again, for the
+	 * measures stored after they were archived.
+	 * @return the measures archived
+	 */
+	long archive(Timestamp endedBefore) throws DatabaseException
+	{
+		final List<int[]> series = new ArrayList<>();
+		EntityManager em = null;
+		try
+		{
+			em = DAO.getEntityManager();
+			final Timestamp cutoff = endedBefore;
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					// the sensors of the smart thing of the experiment, the data table has no index on idexperiment alone
+					PreparedStatement ps = connection.prepareStatement("SELECT s.idsensor, e.idexperiment FROM experiment e "
+							+ "JOIN sensor s ON s.idthing = e.idthing WHERE e.end_date < ? AND EXISTS "
+							+ "(SELECT 1 FROM data d WHERE d.idsensor = s.idsensor AND d.idexperiment = e.idexperiment)");
+					try
+					{
+						ps.setTimestamp(1, cutoff);
+						java.sql.ResultSet rs = ps.executeQuery();
+						while (rs.next())
+						{
+							series.add(new int[] { rs.getInt(1), rs.getInt(2) });
+						}
+						rs.close();
+					}
+					finally
+					{
+						ps.close();
+					}
+				}
+			});
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while listing experiments to archive:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+		long archived = 0;
+		for (int[] s : series)
+		{
+			long measures = archiveSeries(s[0], s[1]);
+			logger.info(measures + " measures of sensor " + s[0] + " in experiment " + s[1] + " archived");
+			archived += measures;
+		}
+		return archived;
+	}
+
+	/**
+	 * Moves the rows of a series to parts, <code>iot.archive.part.rows</code> rows per
+	 * transaction. The rows are locked while they are read, so two instances archiving the same
+	 * series do not write them twice.
+	 * @return the rows moved
+	 */
+	private long archiveSeries(final int idsensor, final int idexperiment) throws DatabaseException
+	{
+		final int partRows = Math.max(1, Integer.getInteger(PART_ROWS, DEFAULT_PART_ROWS));
+		final int[] read = new int[1];
+		long moved = 0;
+		do
+		{
+			EntityManager em = null;
+			EntityTransaction tx = null;
+			try
+			{
+				em = DAO.getEntityManager();
+				tx = em.getTransaction();
+				tx.begin();
+				em.unwrap(Session.class).doWork(new Work()
+				{
+					@Override
+					public void execute(Connection connection) throws SQLException
+					{
+						List<Measure> measures = new ArrayList<>();
+						List<Integer> ids = new ArrayList<>();
+						PreparedStatement ps = connection.prepareStatement("SELECT " + DAO.MEASURE_COLUMNS
+								+ " FROM data WHERE idsensor=? AND idexperiment=? ORDER BY measure_date, iddata LIMIT ? FOR UPDATE");
+						try
+						{
+							ps.setInt(1, idsensor);
+							ps.setInt(2, idexperiment);
+							ps.setInt(3, partRows);
+							java.sql.ResultSet rs = ps.executeQuery();
+							while (rs.next())
+							{
+								Measure m = DAO.readMeasure(rs);
+								measures.add(m);
+								ids.add(m.getId());
+							}
+							rs.close();
+						}
+						finally
+						{
+							ps.close();
+						}
+						read[0] = measures.size();
+						if (measures.isEmpty())
+						{
+							return;
+						}
+						// null dates come first
+						Timestamp first = measures.get(0).getMeasure_date();
+						Timestamp last = measures.get(measures.size() - 1).getMeasure_date();
+						insertPart(connection, idsensor, idexperiment, measures, first, last);
+						DAO.deleteRows(connection, ids, first, last);
+					}
+				});
+				tx.commit();
+				moved += read[0];
+			}
+			catch (Exception e)
+			{
+				if (tx != null && tx.isActive())
+				{
+					tx.rollback();
+				}
+				throw new DatabaseException("Database exception while archiving series:" + e.getMessage(), e);
+			}
+			finally
+			{
+				if (em != null)
+				{
+					em.close();
+				}
+			}
+		}
+		while (read[0] == partRows);
+		return moved;
+	}
+
+	private static void insertPart(Connection connection, int idsensor, int idexperiment, List<Measure> measures,
+			Timestamp first, Timestamp last) throws SQLException
+	{
+		byte[] content;
+		try
+		{
+			content = MeasureArchiveCodec.encode(measures);
+		}
+		catch (IOException e)
+		{
+			// written to memory
+			throw new IllegalStateException(e);
+		}
+		int idarchive;
+		PreparedStatement ps = connection.prepareStatement(INSERT_PART, Statement.RETURN_GENERATED_KEYS);
+		try
+		{
+			ps.setInt(1, idsensor);
+			ps.setInt(2, idexperiment);
+			ps.setTimestamp(3, first);
+			ps.setTimestamp(4, last);
+			ps.setInt(5, measures.size());
+			ps.setBytes(6, content);
+			ps.executeUpdate();
+			java.sql.ResultSet keys = ps.getGeneratedKeys();
+			keys.next();
+			idarchive = keys.getInt(1);
+			keys.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+		// the hashes are inside the content, the sweep of the images reads them here
+		Set<String> images = new LinkedHashSet<>();
+		for (Measure m : measures)
+		{
+			if (m.getImage_hash() != null)
+			{
+				images.add(m.getImage_hash());
+			}
+		}
+		if (images.isEmpty())
+		{
+			return;
+		}
+		ps = connection.prepareStatement(INSERT_IMAGE);
+		try
+		{
+			for (String hash : images)
+			{
+				ps.setInt(1, idarchive);
+				ps.setString(2, hash);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	private static boolean hasParts(Connection connection, int idsensor, int idexperiment) throws SQLException
+	{
+		PreparedStatement ps = connection
+				.prepareStatement("SELECT 1 FROM data_archive WHERE idsensor=? AND idexperiment=? LIMIT 1");
+		try
+		{
+			ps.setInt(1, idsensor);
+			ps.setInt(2, idexperiment);
+			java.sql.ResultSet rs = ps.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			return found;
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * The parts of a series that overlap [from, to), in first_date order, without their content
+	 */
+	private static List<PartCursor> readParts(Connection connection, int idsensor, int idexperiment, Timestamp from,
+			Timestamp to) throws SQLException
+	{
+		List<PartCursor> parts = new ArrayList<>();
+		StringBuilder sql = new StringBuilder(
+				"SELECT idarchive, first_date, last_date FROM data_archive WHERE idsensor=? AND idexperiment=?");
+		if (from != null) sql.append(" AND last_date >= ?");
+		if (to != null) sql.append(" AND first_date < ?");
+		PreparedStatement ps = connection.prepareStatement(sql.append(" ORDER BY first_date").toString());
+		try
+		{
+			int index = 1;
+			ps.setInt(index++, idsensor);
+			ps.setInt(index++, idexperiment);
+			if (from != null) ps.setTimestamp(index++, from);
+			if (to != null) ps.setTimestamp(index++, to);
+			java.sql.ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				parts.add(new PartCursor(rs.getInt(1), rs.getTimestamp(2), rs.getTimestamp(3), idsensor, idexperiment,
+						from, to));
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+		return parts;
+	}
+
+	/**
+	 * Splits [from, to) at the first date of each cluster of overlapping parts
+	 */
+	private static List<Window> windows(List<PartCursor> parts, Timestamp from, Timestamp to)
+	{
+		List<Window> windows = new ArrayList<>();
+		Window current = new Window(from);
+		Timestamp last = null;
+		for (PartCursor part : parts)
+		{
+			Timestamp first = part.first;
+			// a part that starts after the last date of the cluster starts a new one
+			if (first != null && (from == null || first.after(from)) && (last == null || first.after(last)))
+			{
+				current.to = first;
+				windows.add(current);
+				current = new Window(first);
+			}
+			current.parts.add(part);
+			if (part.last != null && (last == null || part.last.after(last)))
+			{
+				last = part.last;
+			}
+		}
+		current.to = to;
+		windows.add(current);
+		return windows;
+	}
+
+	/**
+	 * Runs the reads of a scan in one transaction, unless the connection is in one already
+	 * @return true if a transaction was started
+	 */
+	private static boolean beginSnapshot(Connection connection) throws SQLException
+	{
+		if (!connection.getAutoCommit())
+		{
+			return false;
+		}
+		// InnoDB takes the snapshot at the first read
+		connection.setAutoCommit(false);
+		return true;
+	}
+
+	private static void endSnapshot(Connection connection, boolean started) throws SQLException
+	{
+		if (started)
+		{
+			try
+			{
+				connection.commit();
+			}
+			finally
+			{
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/**
+	 * Hands the archived measures that sort before the given one to the consumer
+	 * @param before null for all the remaining ones
+	 */
+	private static void emit(Parts parts, Measure before, MeasureConsumer consumer) throws IOException
+	{
+		while (true)
+		{
+			parts.open(before);
+			PartCursor head = parts.open.peek();
+			if (head == null || (before != null && compare(head.measure, before) >= 0))
+			{
+				return;
+			}
+			parts.open.poll();
+			consumer.accept(head.measure);
+			if (head.next())
+			{
+				parts.open.add(head);
+			}
+		}
+	}
+
+	/**
+	 * (measure_date, iddata) order of a measure and a cursor
+	 */
+	private static int compare(Measure m, Object[] cursor)
+	{
+		int date = m.getMeasure_date().compareTo((Timestamp) cursor[0]);
+		if (date != 0) return date;
+		return Integer.compare(m.getId() == null ? 0 : m.getId(), (Integer) cursor[1]);
+	}
+
+	/**
+	 * (measure_date, iddata) order, null dates first and measures without iddata as 0, like the
+	 * ORDER BY of the data table
+	 */
+	private static int compare(Measure a, Measure b)
+	{
+		Timestamp da = a.getMeasure_date();
+		Timestamp db = b.getMeasure_date();
+		if (da == null || db == null)
+		{
+			if (da != db) return da == null ? -1 : 1;
+		}
+		else
+		{
+			int date = da.compareTo(db);
+			if (date != 0) return date;
+		}
+		return Integer.compare(a.getId() == null ? 0 : a.getId(), b.getId() == null ? 0 : b.getId());
+	}
+
+	/**
+	 * A range read with one scan of the engine and the parts that start in it, whose last date is
+	 * before the next window
+	 */
+	private static class Window
+	{
+		final Timestamp from;
+		Timestamp to;
+		final List<PartCursor> parts = new ArrayList<>();
+
+		Window(Timestamp from)
+		{
+			this.from = from;
+		}
+
+		/**
+		 * @param now fetches the content of the parts now, before the engine streams the rows of
+		 *            the window; otherwise each part is fetched when it is opened
+		 */
+		Parts load(Connection connection, boolean now) throws SQLException
+		{
+			Parts open = new Parts();
+			for (PartCursor part : parts)
+			{
+				if (now)
+				{
+					part.load(connection);
+				}
+				else
+				{
+					part.connection = connection;
+				}
+				open.pending.add(part);
+			}
+			return open;
+		}
+	}
+
+	/**
+	 * The parts of a window being merged: the ones already decompressed, at their next measure, and
+	 * the ones the merge has not reached yet
+	 */
+	private static class Parts
+	{
+		final PriorityQueue<PartCursor> open = new PriorityQueue<>();
+		final ArrayDeque<PartCursor> pending = new ArrayDeque<>();
+
+		boolean isEmpty()
+		{
+			return open.isEmpty() && pending.isEmpty();
+		}
+
+		/**
+		 * Decompresses the pending parts that may have a measure before the next one to emit
+		 */
+		void open(Measure before) throws IOException
+		{
+			while (!pending.isEmpty())
+			{
+				Measure bound = before;
+				if (!open.isEmpty() && (bound == null || compare(open.peek().measure, bound) < 0))
+				{
+					bound = open.peek().measure;
+				}
+				Timestamp first = pending.peek().first;
+				if (bound != null && first != null && (bound.getMeasure_date() == null || first.after(bound.getMeasure_date())))
+				{
+					return;
+				}
+				PartCursor part = pending.poll();
+				if (part.next())
+				{
+					open.add(part);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The charted measures of a part in [from, to)
+	 */
+	private static class PartCursor implements Comparable<PartCursor>
+	{
+		private final int idarchive;
+		final Timestamp first;
+		final Timestamp last;
+		private byte[] content;
+		// set to fetch the content on the first read
+		private Connection connection;
+		private final int idsensor;
+		private final int idexperiment;
+		private final Timestamp from;
+		private final Timestamp to;
+		private MeasureArchiveCodec.Reader reader;
+		Measure measure;
+
+		PartCursor(int idarchive, Timestamp first, Timestamp last, int idsensor, int idexperiment, Timestamp from,
+				Timestamp to)
+		{
+			this.idarchive = idarchive;
+			this.first = first;
+			this.last = last;
+			this.idsensor = idsensor;
+			this.idexperiment = idexperiment;
+			this.from = from;
+			this.to = to;
+		}
+
+		void load(Connection connection) throws SQLException
+		{
+			PreparedStatement ps = connection.prepareStatement("SELECT content FROM data_archive WHERE idarchive=?");
+			try
+			{
+				ps.setInt(1, idarchive);
+				java.sql.ResultSet rs = ps.executeQuery();
+				// deleted meanwhile by the retention in another transaction: read as empty
+				content = rs.next() ? rs.getBytes(1) : null;
+				rs.close();
+			}
+			finally
+			{
+				ps.close();
+			}
+		}
+
+		boolean next() throws IOException
+		{
+			if (connection != null)
+			{
+				try
+				{
+					load(connection);
+				}
+				catch (SQLException e)
+				{
+					throw new IOException(e);
+				}
+				connection = null;
+			}
+			if (content == null)
+			{
+				return false;
+			}
+			if (reader == null)
+			{
+				reader = new MeasureArchiveCodec.Reader(content, idsensor, idexperiment);
+			}
+			Measure m;
+			while ((m = reader.next()) != null)
+			{
+				Timestamp date = m.getMeasure_date();
+				if (date == null)
+				{
+					// like the rows, measures without date are only read without a range
+					if (from != null || to != null) continue;
+				}
+				else
+				{
+					if (to != null && !date.before(to))
+					{
+						// a part is ordered by date
+						return false;
+					}
+					if (from != null && date.before(from)) continue;
+				}
+				if (m.getCharted() != null && m.getCharted() == 1)
+				{
+					measure = m;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int compareTo(PartCursor o)
+		{
+			return compare(measure, o.measure);
+		}
+	}
+}
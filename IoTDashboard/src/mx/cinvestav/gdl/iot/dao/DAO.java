@@ -1,8 +1,16 @@
 package mx.cinvestav.gdl.iot.dao;
 
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -18,7 +26,14 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Root;
+
+import mx.cinvestav.gdl.iot.series.MinMaxDownsampler;
+import mx.cinvestav.gdl.iot.series.PointConsumer;
 import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.cloud.sql.jdbc.Statement;
 import com.mysql.jdbc.ResultSet;
@@ -33,67 +48,1451 @@ public class DAO
 	private static final String JDBC_URL = "javax.persistence.jdbc.url";
 	private static final String JDBC_DRIVER = "javax.persistence.jdbc.driver";
 	private static final String PERSISTENCE_UNIT_NAME = "SmartCitiesCloudSQL";
+	private static final String PAGE_MAX = "iot.query.page.max";
+	private static final int DEFAULT_PAGE_MAX = 5000;
+	private static final String BATCH_SIZE = "iot.ingest.batch.size";
+	private static final int DEFAULT_BATCH_SIZE = 500;
+	private static final String INSERT_MEASURE = "INSERT INTO data (measure, measure_date, idsensor, idthing, image_hash, charted, idexperiment, measure_value) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	// storing an image again clears the mark of the sweep
+	private static final String INSERT_IMAGE = "INSERT INTO image_blob (hash, content, length) VALUES (?, ?, ?) "
+			+ "ON DUPLICATE KEY UPDATE orphaned = NULL";
+	static final String MEASURE_COLUMNS = "iddata, measure, measure_value, measure_date, idsensor, idthing, image_hash, charted, idexperiment";
+	private static final String ROLLUP_ENABLED = "iot.rollup.enabled";
+	private static final String ROLLUP_QUERY = "iot.rollup.query";
+	private static final IOException PAGE_FULL = new IOException("page full");
+	private static final String LATEST_INDEX = "FORCE INDEX (idx_data_sensor_latest)";
+	private static final String NUMBER_PATTERN = "^[[:space:]]*[-+]?([0-9]+[.]?[0-9]*|[.][0-9]+)([eE][-+]?[0-9]+)?[[:space:]]*$";
+
+	private static final String POOL_MIN = "iot.db.pool.min";
+	private static final int DEFAULT_POOL_MIN = 2;
 
-	private static EntityManagerFactory emf = null;
+	private static final String TSDB_ENGINE = "iot.tsdb.engine";
+	private static final String RETENTION_DAYS = "iot.retention.days";
+	private static final String RETENTION_CHUNK = "iot.retention.chunk";
+	private static final int DEFAULT_RETENTION_CHUNK = 10000;
+
+	private static volatile EntityManagerFactory emf = null;
+	private static volatile ArchiveTimeSeriesStore timeSeriesStore = null;
 
 	/**
-	 * Returns an entity manager instance
+	 * Returns an entity manager instance. Only the first call, which creates the factory, is
+	 * synchronized.
 	 * @return
 	 * @throws DatabaseException 
 	 */
-	public static synchronized EntityManager getEntityManager() throws DatabaseException
+	public static EntityManager getEntityManager() throws DatabaseException
+	{
+		EntityManagerFactory factory = emf;
+		if (factory == null)
+		{
+			factory = createFactory();
+		}
+		return factory.createEntityManager();
+	}
+
+	private static synchronized EntityManagerFactory createFactory() throws DatabaseException
 	{
 		if (emf == null)
 		{
-			try
+			try
+			{
+				Map<String, String> db_props = new HashMap<String, String>();
+				if (SystemProperty.environment.value() == SystemProperty.Environment.Value.Production)
+				{
+					db_props.put(JDBC_DRIVER, GOOGLE_DRIVER);
+					db_props.put(JDBC_URL, System.getProperty(PROD_URL_ENDPOINT));
+				}
+				else
+				{
+					db_props.put(JDBC_DRIVER, MYSQL_DRIVER);
+					db_props.put(JDBC_URL, System.getProperty(DEV_URL_ENDPOINT));
+				}
+				emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME, db_props);
+			}
+			catch (Exception e)
+			{
+				Logger logger = Logger.getLogger(DAO.class.getName());
+				logger.log(Level.SEVERE, "Unexpected exception initializing DAO", e);
+				throw new DatabaseException("Exception creating entity manager", e);
+			}
+		}
+		return emf;
+	}
+
+	/**
+	 * The storage engine of the measures, <code>iot.tsdb.engine</code>, behind the archive of the
+	 * finished experiments
+	 */
+	private static ArchiveTimeSeriesStore getTimeSeriesStore()
+	{
+		ArchiveTimeSeriesStore store = timeSeriesStore;
+		if (store == null)
+		{
+			synchronized (DAO.class)
+			{
+				if (timeSeriesStore == null)
+				{
+					String engine = System.getProperty(TSDB_ENGINE, "sql");
+					if ("segment".equals(engine))
+					{
+						timeSeriesStore = new ArchiveTimeSeriesStore(new SegmentTimeSeriesStore());
+					}
+					else
+					{
+						if (!"sql".equals(engine))
+						{
+							Logger.getLogger(DAO.class.getName()).warning(
+									"Unknown " + TSDB_ENGINE + " " + engine + ", using sql");
+						}
+						timeSeriesStore = new ArchiveTimeSeriesStore(new SqlTimeSeriesStore());
+					}
+				}
+				store = timeSeriesStore;
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Creates the entity manager factory, which updates the schema, and opens
+	 * <code>iot.db.pool.min</code> connections, so the first requests do not pay for them
+	 */
+	public static void warmUp() throws DatabaseException
+	{
+		getEntityManager().close();
+		PooledConnectionProvider pool = PooledConnectionProvider.current();
+		if (pool != null)
+		{
+			try
+			{
+				pool.prefill(Integer.getInteger(POOL_MIN, DEFAULT_POOL_MIN));
+			}
+			catch (SQLException e)
+			{
+				throw new DatabaseException("Exception opening database connections", e);
+			}
+		}
+	}
+
+	/**
+	 * Closes the entity manager factory and the connections of the pool
+	 */
+	public static synchronized void close()
+	{
+		if (emf != null)
+		{
+			emf.close();
+			emf = null;
+		}
+	}
+
+	/**
+	 * @return metrics of the connection pool, null if hibernate is not using it
+	 */
+	public static PoolStats getPoolStats()
+	{
+		PooledConnectionProvider pool = PooledConnectionProvider.current();
+		return pool == null ? null : pool.getStats();
+	}
+	//////////////////////////////////////////////////////////////////////////////////////////////////////////////////// 
+	public static <T extends IoTEntity> List<T> getEntity(Class<T> entityClass, Integer id) throws DatabaseException
+	{
+		boolean cached = RegistryCache.isCached(entityClass);
+		if (cached)
+		{
+			List<T> hit = RegistryCache.get(entityClass, id);
+			if (hit != null)
+			{
+				return hit;
+			}
+		}
+		long generation = RegistryCache.generation();
+		EntityManager em = null;
+		List<T> resultList = null;
+		try
+		{
+			em = getEntityManager();
+			if (id == null)
+			{
+				CriteriaQuery<T> cq = em.getCriteriaBuilder().createQuery(entityClass);
+				cq.select(cq.from(entityClass));
+				resultList = em.createQuery(cq).getResultList();
+			}
+			else
+			{
+				resultList = new ArrayList<>(1);
+				T e = em.find(entityClass, id);
+				resultList.add(e);
+			}
+			// a missing id is not remembered, it may be stored by another instance
+			if (cached && (id == null || resultList.get(0) != null))
+			{
+				RegistryCache.put(entityClass, id, resultList, generation);
+			}
+			return resultList;
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	/**
+	 * Insert a new controller with a collection of properties
+	 * @param controller
+	 * @param properties
+	 * @throws DatabaseException
+	 */
+	public static <T extends IoTEntity> void insertEntity(T entity, Collection<? extends IoTProperty> properties)
+			throws DatabaseException
+	{
+		if (entity == null)
+		{
+			throw new IllegalArgumentException("Entity cannot be null.");
+		}
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		try
+		{
+			em = getEntityManager();
+			tx = em.getTransaction();
+			tx.begin();
+			if (entity.getId() == null)
+				em.persist(entity);
+			else
+				em.merge(entity);
+			if (properties != null)
+			{
+				for (IoTProperty p : properties)
+				{			
+					p.setParentId(entity.getId());
+					em.merge(p);
+				}
+			}
+			//commit se utiliza para al macenar los cambios en disco
+			
+			tx.commit();
+			if (entity instanceof Experiment)
+			{
+				ExperimentCache.invalidate();
+			}
+			RegistryCache.invalidate(entity.getClass());
+			TopologyIndex.stored(entity);
+		}
+		catch (Exception e)
+		{
+			if (tx != null && tx.isActive())
+			{
+				tx.rollback();
+			}
+			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	public static <T extends IoTProperty> List<T> getProperties(Class<T> propertyClass, Integer parentId)
+			throws DatabaseException
+	{
+		EntityManager em = null;
+		List<T> resultList = null;
+		if (parentId == null)
+		{
+			throw new IllegalArgumentException("getProperties: must provide IoTEntity id.");
+		}
+		boolean cached = RegistryCache.isCached(propertyClass);
+		if (cached)
+		{
+			List<T> hit = RegistryCache.get(propertyClass, parentId);
+			if (hit != null)
+			{
+				return hit;
+			}
+		}
+		long generation = RegistryCache.generation();
+		try
+		{
+			em = getEntityManager();
+			CriteriaBuilder cb = em.getCriteriaBuilder();
+			CriteriaQuery<T> cq = em.getCriteriaBuilder().createQuery(propertyClass);
+			Root<T> from = cq.from(propertyClass);
+			ParameterExpression<Integer> parent = cb.parameter(Integer.class);
+			cq.select(from).where(cb.equal(from.get(getParentRowName(propertyClass)), parent));
+			
+	
+			TypedQuery<T> createQuery = em.createQuery(cq);
+			createQuery.setParameter(parent, parentId);
+			resultList = createQuery.getResultList();
+			if (cached)
+			{
+				RegistryCache.put(propertyClass, parentId, resultList, generation);
+			}
+			return resultList;
+			
+			
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	public static <T extends IoTProperty> void deleteProperty(Class<T> propertyClass, Integer id)
+			throws DatabaseException
+	{
+		if (id == null)
+		{
+			throw new IllegalArgumentException("delete: must provide IoTProperty id.");
+		}
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		try
+		{
+			em = getEntityManager();
+			tx = em.getTransaction();
+			tx.begin();
+			T prop = em.find(propertyClass, id);
+			em.remove(prop);
+			tx.commit();
+			RegistryCache.invalidate(propertyClass);
+		}
+		catch (Exception e)
+		{
+			if (tx != null && tx.isActive())
+			{
+				tx.rollback();
+			}
+			throw new DatabaseException("Database exception while deleting property:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	public static <T extends IoTEntity> void deleteEntity(Class<T> EntityClass, Integer id) throws DatabaseException
+	{
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		if (id == null)
+		{
+			throw new IllegalArgumentException("delete: must provide IoTEntity id.");
+		}
+		try
+		{
+			em = getEntityManager();
+			tx = em.getTransaction();
+			tx.begin();
+			T prop = em.find(EntityClass, id);
+			em.remove(prop);
+			tx.commit();
+			if (Experiment.class.equals(EntityClass))
+			{
+				ExperimentCache.invalidate();
+			}
+			RegistryCache.invalidate(EntityClass);
+			TopologyIndex.deleted(EntityClass, id);
+		}
+		catch (Exception e)
+		{
+			if (tx != null && tx.isActive())
+			{
+				tx.rollback();
+			}
+			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	private static String getParentRowName(Class<?> propertyClass)
+	{
+		if (ControllerProperty.class.equals(propertyClass)) return "idcontroller";
+		if (SensorProperty.class.equals(propertyClass)) return "idsensor";
+		if (SmartThingProperty.class.equals(propertyClass)) return "idthing";
+		if (Controller.class.equals(propertyClass)) return "idcontroller";
+		if (Sensor.class.equals(propertyClass)) return "idsensor";
+		if (SmartThing.class.equals(propertyClass)) return "idthing";
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static List<Measure> getSensorData(Integer idsensor, Integer idexperiment) throws DatabaseException
+	{
+		if (idsensor == null)
+		{
+			throw new IllegalArgumentException("delete: must provide IoTEntity id.");
+		}
+		final List<Measure> resultList = new ArrayList<>();
+		if (idexperiment == null)
+		{
+			return resultList;
+		}
+		try
+		{
+			// streamed, so the rows are not also kept as managed entities by the entity manager
+			streamSensorData(idsensor, idexperiment, null, null, new MeasureConsumer()
+			{
+				@Override
+				public void accept(Measure m)
+				{
+					resultList.add(m);
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			// not thrown by the consumer above
+			throw new DatabaseException("Database exception while getting sensor data:" + e.getMessage(), e);
+		}
+		return resultList;
+	}
+
+	/**
+	 * Reads the charted measures of a sensor in [from, to), ordered by date, and hands them to the
+	 * consumer one at a time as they arrive from the database, so memory does not grow with the
+	 * number of rows. Images are not read, the rows only hold their hash. An IOException of the
+	 * consumer stops the query and is thrown as is.
+	 * @param from first date, null to start at the first measure
+	 * @param to end date (excluded), null to end after the last measure
+	 */
+	public static void streamSensorData(final Integer idsensor, final Integer idexperiment, final Timestamp from,
+			final Timestamp to, final MeasureConsumer consumer) throws DatabaseException, IOException
+	{
+		if (idsensor == null || idexperiment == null)
+		{
+			throw new IllegalArgumentException("streamSensorData: must provide sensor and experiment id.");
+		}
+		final IOException[] aborted = new IOException[1];
+		EntityManager em = null;
+		try
+		{
+			em = getEntityManager();
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					try
+					{
+						getTimeSeriesStore().scan(connection, idsensor, idexperiment, from, to, consumer);
+					}
+					catch (IOException e)
+					{
+						aborted[0] = e;
+					}
+				}
+			});
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while getting sensor data:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+		if (aborted[0] != null)
+		{
+			throw aborted[0];
+		}
+	}
+
+	/**
+	 * Reads the charted rows of a series in [from, to) from the data table, see
+	 * {@link TimeSeriesStore#scan(Connection, int, int, Timestamp, Timestamp, MeasureConsumer)}
+	 */
+	static void scanRows(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			MeasureConsumer consumer) throws SQLException, IOException
+	{
+		StringBuilder sql = new StringBuilder("SELECT " + MEASURE_COLUMNS
+				+ " FROM data WHERE idsensor=? AND idexperiment=? AND charted=1");
+		if (from != null) sql.append(" AND measure_date >= ?");
+		if (to != null) sql.append(" AND measure_date < ?");
+		PreparedStatement ps = connection.prepareStatement(sql.append(" ORDER BY measure_date, iddata").toString(),
+				java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY);
+		try
+		{
+			// makes Connector/J stream the rows instead of reading the whole result
+			ps.setFetchSize(Integer.MIN_VALUE);
+			int index = 1;
+			ps.setInt(index++, idsensor);
+			ps.setInt(index++, idexperiment);
+			if (from != null) ps.setTimestamp(index++, from);
+			if (to != null) ps.setTimestamp(index++, to);
+			java.sql.ResultSet rs = ps.executeQuery();
+			try
+			{
+				while (rs.next())
+				{
+					consumer.accept(readMeasure(rs));
+				}
+			}
+			finally
+			{
+				rs.close();
+			}
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * Reads the MEASURE_COLUMNS of the current row
+	 */
+	static Measure readMeasure(java.sql.ResultSet rs) throws SQLException
+	{
+		Measure m = new Measure();
+		m.setId(rs.getInt(1));
+		m.setMeasure(rs.getString(2));
+		double value = rs.getDouble(3);
+		m.setMeasure_value(rs.wasNull() ? null : value);
+		m.setMeasure_date(rs.getTimestamp(4));
+		m.setIdsensor(getInteger(rs, 5));
+		m.setIdthing(getInteger(rs, 6));
+		m.setImage_hash(rs.getString(7));
+		m.setCharted(getInteger(rs, 8));
+		m.setIdexperiment(getInteger(rs, 9));
+		return m;
+	}
+
+	private static Integer getInteger(java.sql.ResultSet rs, int column) throws SQLException
+	{
+		int value = rs.getInt(column);
+		return rs.wasNull() ? null : value;
+	}
+	
+	/**
+	 * Returns the measures of a sensor in [from, to), ordered by (measure_date, iddata), one page
+	 * at a time. Pages are read with a keyset cursor, so every page costs the same regardless of
+	 * its position.
+	 * @param from first date, null for no lower bound
+	 * @param to end date (excluded), null for no upper bound
+	 * @param cursor nextCursor of the previous page, null for the first page
+	 * @param limit maximum measures in the page, at most <code>iot.query.page.max</code>
+	 */
+	public static MeasurePage getSensorDataPage(Integer idsensor, Integer idexperiment, Timestamp from, Timestamp to,
+			String cursor, int limit) throws DatabaseException
+	{
+		if (idsensor == null || idexperiment == null)
+		{
+			throw new IllegalArgumentException("getSensorDataPage: must provide sensor and experiment id.");
+		}
+		return getSensorDataPage(idsensor, idexperiment, from, to, parseCursor(cursor), limit);
+	}
+
+	/**
+	 * Returns the last limit measures stored for a sensor, in any experiment, newest first. They
+	 * are read backwards on idx_data_sensor_latest, so only the rows of the sensor are read, none
+	 * for an idle or unknown sensor; ordering by id alone may be planned as a backward scan of
+	 * the whole table. When the
+	 * data table is partitioned the months are read from the newest one and the older ones only if
+	 * it has less than limit measures, otherwise every partition would be read backwards. The
+	 * archived parts of the sensor that may hold newer measures are merged in, see
+	 * {@link ArchiveTimeSeriesStore#latest(Connection, int, List, int)}.
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Measure> getLatestMeasures(final Integer idsensor, final int limit) throws DatabaseException
+	{
+		if (idsensor == null)
+		{
+			throw new IllegalArgumentException("getLatestMeasures: must provide sensor id.");
+		}
+		EntityManager em = null;
+		try
+		{
+			em = getEntityManager();
+			final List<List<Long>> months = new ArrayList<>(1);
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					months.add(DataPartitions.getCachedMonths(connection));
+				}
+			});
+			List<Long> partitions = months.get(0);
+			final List<Measure> latest = new ArrayList<>();
+			if (partitions.isEmpty())
+			{
+				Query q = em.createNativeQuery("SELECT " + MEASURE_COLUMNS + " FROM data " + LATEST_INDEX
+						+ " WHERE idsensor=? ORDER BY measure_date DESC, iddata DESC LIMIT ?", Measure.class);
+				q.setParameter(1, idsensor);
+				q.setParameter(2, limit);
+				latest.addAll(q.getResultList());
+			}
+			Long end = null;
+			for (int i = partitions.size() - 1; i >= 0 && latest.size() < limit; i--)
+			{
+				// the first partition also holds the measures before its month, the last one those after it
+				Long start = i == 0 ? null : partitions.get(i);
+				StringBuilder query = new StringBuilder("SELECT " + MEASURE_COLUMNS + " FROM data " + LATEST_INDEX
+						+ " WHERE idsensor=?");
+				if (start != null) query.append(" AND measure_date >= ?");
+				if (end != null) query.append(" AND measure_date < ?");
+				Query q = em.createNativeQuery(query.append(" ORDER BY measure_date DESC, iddata DESC LIMIT ?").toString(),
+						Measure.class);
+				int index = 1;
+				q.setParameter(index++, idsensor);
+				if (start != null) q.setParameter(index++, new Timestamp(start));
+				if (end != null) q.setParameter(index++, new Timestamp(end));
+				q.setParameter(index, limit - latest.size());
+				latest.addAll(q.getResultList());
+				end = start;
+			}
+			final List<List<Measure>> merged = new ArrayList<>(1);
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					merged.add(getTimeSeriesStore().latest(connection, idsensor, latest, limit));
+				}
+			});
+			return merged.get(0);
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while getting latest measures:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the measures of a sensor stored after a known one, for clients that already show
+	 * the previous ones and poll for new data. It is a page query with the cursor of the last
+	 * measure the client has, so it only reads the new rows.
+	 * @param lastTimestamp date of the last measure the client has
+	 * @param lastId id of that measure; null when the client only knows the date (e.g. from a
+	 *            downsampled series), then the measures of exactly that date are skipped
+	 */
+	public static MeasurePage getSensorDataSince(Integer idsensor, Integer idexperiment, Timestamp lastTimestamp,
+			Integer lastId, int limit) throws DatabaseException
+	{
+		if (idsensor == null || idexperiment == null || lastTimestamp == null)
+		{
+			throw new IllegalArgumentException("getSensorDataSince: must provide sensor, experiment id and timestamp.");
+		}
+		return getSensorDataPage(idsensor, idexperiment, null, null, new Object[] { lastTimestamp,
+				lastId == null ? Integer.MAX_VALUE : lastId }, limit);
+	}
+
+	/**
+	 * Same as {@link #getSensorDataSince(Integer, Integer, Timestamp, Integer, int)} for several
+	 * sensors of an experiment, on one connection, for a chart that polls all its series at once
+	 * @param lastTimestamps date of the last measure the client has of each sensor, in the order of
+	 *            idsensors
+	 * @param lastIds id of each of those measures, null where only the date is known
+	 * @return the page of each sensor, in the order of idsensors
+	 */
+	public static Map<Integer, MeasurePage> getSensorDataSince(final List<Integer> idsensors,
+			final Integer idexperiment, final List<Timestamp> lastTimestamps, final List<Integer> lastIds, int limit)
+			throws DatabaseException
+	{
+		if (idsensors == null || idsensors.isEmpty() || idsensors.contains(null) || idexperiment == null
+				|| lastTimestamps == null || lastTimestamps.size() != idsensors.size() || lastTimestamps.contains(null)
+				|| lastIds == null || lastIds.size() != idsensors.size())
+		{
+			throw new IllegalArgumentException("getSensorDataSince: must provide sensors, experiment id and a timestamp per sensor.");
+		}
+		int max = Integer.getInteger(PAGE_MAX, DEFAULT_PAGE_MAX);
+		final int size = limit <= 0 || limit > max ? max : limit;
+		final Map<Integer, MeasurePage> pages = new LinkedHashMap<>();
+		EntityManager em = null;
+		try
+		{
+			em = getEntityManager();
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					for (int i = 0; i < idsensors.size(); i++)
+					{
+						Integer lastId = lastIds.get(i);
+						Object[] after = new Object[] { lastTimestamps.get(i), lastId == null ? Integer.MAX_VALUE : lastId };
+						pages.put(idsensors.get(i),
+								getTimeSeriesStore().getPage(connection, idsensors.get(i), idexperiment, null, null, after, size));
+					}
+				}
+			});
+			return pages;
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while getting sensor data:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	private static MeasurePage getSensorDataPage(final Integer idsensor, final Integer idexperiment,
+			final Timestamp from, final Timestamp to, final Object[] after, int limit) throws DatabaseException
+	{
+		int max = Integer.getInteger(PAGE_MAX, DEFAULT_PAGE_MAX);
+		final int size = limit <= 0 || limit > max ? max : limit;
+		final MeasurePage[] page = new MeasurePage[1];
+		EntityManager em = null;
+		try
+		{
+			em = getEntityManager();
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					page[0] = getTimeSeriesStore().getPage(connection, idsensor, idexperiment, from, to, after, size);
+				}
+			});
+			return page[0];
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while getting sensor data:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	/**
+	 * A page of the rows of the data table, see
+	 * {@link TimeSeriesStore#getPage(Connection, int, int, Timestamp, Timestamp, Object[], int)}
+	 */
+	static MeasurePage getRowPage(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			Object[] after, int limit) throws SQLException
+	{
+		List<Object> params = new ArrayList<>();
+		StringBuilder query = new StringBuilder("SELECT ").append(MEASURE_COLUMNS).append(
+				" FROM data WHERE idsensor=? AND idexperiment=? AND charted=1");
+		params.add(idsensor);
+		params.add(idexperiment);
+		if (from != null)
+		{
+			query.append(" AND measure_date >= ?");
+			params.add(from);
+		}
+		if (to != null)
+		{
+			query.append(" AND measure_date < ?");
+			params.add(to);
+		}
+		if (after != null)
+		{
+			// the OR alone does not let MySQL skip the partitions before the cursor
+			query.append(" AND measure_date >= ? AND (measure_date > ? OR (measure_date = ? AND iddata > ?))");
+			params.add(after[0]);
+			params.add(after[0]);
+			params.add(after[0]);
+			params.add(after[1]);
+		}
+		// one more row than the page tells if there is a next page
+		query.append(" ORDER BY measure_date, iddata LIMIT ").append(limit + 1);
+		PreparedStatement ps = connection.prepareStatement(query.toString());
+		try
+		{
+			for (int i = 0; i < params.size(); i++)
+			{
+				ps.setObject(i + 1, params.get(i));
+			}
+			List<Measure> measures = new ArrayList<>();
+			java.sql.ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				measures.add(readMeasure(rs));
+			}
+			rs.close();
+			return toPage(measures, limit);
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * A page read with the scan of the store from the start of the page, keeping the measures
+	 * after the cursor, for the stores that merge several sources; measures without iddata sort as
+	 * 0 among the ones of the same date, in the order of the scan, and the cursor counts the ones it
+	 * has passed
+	 */
+	static MeasurePage scanPage(Connection connection, TimeSeriesStore store, int idsensor, int idexperiment,
+			Timestamp from, Timestamp to, final Object[] after, final int limit) throws SQLException
+	{
+		Timestamp start = from;
+		if (after != null && (start == null || ((Timestamp) after[0]).after(start)))
+		{
+			start = (Timestamp) after[0];
+		}
+		final List<Measure> measures = new ArrayList<>();
+		// measures without iddata at the date of the cursor that the previous pages returned
+		final int passed = after == null ? 0 : getOrdinal(after);
+		final int[] seen = new int[1];
+		try
+		{
+			store.scan(connection, idsensor, idexperiment, start, to, new MeasureConsumer()
+			{
+				@Override
+				public void accept(Measure m) throws IOException
+				{
+					if (after != null)
+					{
+						int date = m.getMeasure_date().compareTo((Timestamp) after[0]);
+						if (date < 0)
+						{
+							return;
+						}
+						if (date == 0 && (m.getId() == null ? ++seen[0] <= passed : m.getId() <= (Integer) after[1]))
+						{
+							return;
+						}
+					}
+					measures.add(m);
+					if (measures.size() > limit)
+					{
+						throw PAGE_FULL;
+					}
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			if (e != PAGE_FULL)
+			{
+				throw new SQLException("Could not read the measures of sensor " + idsensor, e);
+			}
+		}
+		return toPage(measures, limit, after);
+	}
+
+	/**
+	 * Deletes rows of the data table by id, 1000 per statement. The dates of the rows bound the
+	 * statement, so MySQL only looks for the ids in the partitions of those dates.
+	 * @param first date of the oldest row, null if a row has no date
+	 * @param last date of the newest row, null if no row has a date
+	 */
+	static void deleteRows(Connection connection, List<Integer> ids, Timestamp first, Timestamp last)
+			throws SQLException
+	{
+		for (int start = 0; start < ids.size(); start += 1000)
+		{
+			List<Integer> chunk = ids.subList(start, Math.min(ids.size(), start + 1000));
+			StringBuilder sql = new StringBuilder("DELETE FROM data WHERE iddata IN (");
+			for (int i = 0; i < chunk.size(); i++)
+			{
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			sql.append(')');
+			if (first != null) sql.append(" AND measure_date BETWEEN ? AND ?");
+			PreparedStatement ps = connection.prepareStatement(sql.toString());
+			try
+			{
+				for (int i = 0; i < chunk.size(); i++)
+				{
+					ps.setInt(i + 1, chunk.get(i));
+				}
+				if (first != null)
+				{
+					ps.setTimestamp(chunk.size() + 1, first);
+					ps.setTimestamp(chunk.size() + 2, last);
+				}
+				ps.executeUpdate();
+			}
+			finally
+			{
+				ps.close();
+			}
+		}
+	}
+
+	/**
+	 * @param measures the measures of the page and, if there is a next page, its first one
+	 */
+	static MeasurePage toPage(List<Measure> measures, int limit)
+	{
+		return toPage(measures, limit, null);
+	}
+
+	/**
+	 * @param measures the measures of the page and, if there is a next page, its first one
+	 * @param after the cursor the page starts after, null for the first page
+	 */
+	static MeasurePage toPage(List<Measure> measures, int limit, Object[] after)
+	{
+		MeasurePage page = new MeasurePage();
+		if (measures.size() > limit)
+		{
+			measures = new ArrayList<>(measures.subList(0, limit));
+			Measure last = measures.get(limit - 1);
+			// measures read from a segment have no id, they come before the rows of their date
+			String cursor = last.getMeasure_date().getTime() + "." + last.getMeasure_date().getNanos() + "."
+					+ (last.getId() == null ? 0 : last.getId());
+			if (last.getId() == null)
+			{
+				// several of them can share the date, the cursor counts the ones passed
+				int ordinal = 0;
+				int i = limit - 1;
+				while (i >= 0 && measures.get(i).getId() == null
+						&& measures.get(i).getMeasure_date().compareTo(last.getMeasure_date()) == 0)
+				{
+					ordinal++;
+					i--;
+				}
+				if (i < 0 && after != null && (Integer) after[1] == 0
+						&& last.getMeasure_date().compareTo((Timestamp) after[0]) == 0)
+				{
+					ordinal += getOrdinal(after);
+				}
+				cursor += "." + ordinal;
+			}
+			page.setNextCursor(cursor);
+		}
+		page.setMeasures(measures);
+		return page;
+	}
+
+	/**
+	 * @return the measures without iddata at the date of the cursor that come before it, all of
+	 *         them when the cursor is a row or has no count
+	 */
+	private static int getOrdinal(Object[] after)
+	{
+		return after.length > 2 && (Integer) after[1] == 0 ? (Integer) after[2] : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @return {measure_date, iddata} of the last measure of the previous page, with the measures
+	 *         without iddata passed at that date when it has none, or null
+	 */
+	private static Object[] parseCursor(String cursor)
+	{
+		if (cursor == null || cursor.isEmpty())
+		{
+			return null;
+		}
+		String[] parts = cursor.split("\\.");
+		try
+		{
+			if (parts.length == 3 || parts.length == 4)
+			{
+				Timestamp date = new Timestamp(Long.parseLong(parts[0]));
+				date.setNanos(Integer.parseInt(parts[1]));
+				if (parts.length == 4)
+				{
+					return new Object[] { date, Integer.valueOf(parts[2]), Integer.valueOf(parts[3]) };
+				}
+				return new Object[] { date, Integer.valueOf(parts[2]) };
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			// falls through to the invalid cursor exception
+		}
+		throw new IllegalArgumentException("Invalid cursor: " + cursor);
+	}
+
+	/**
+	 * Returns the numeric measures of a sensor in [from, to) reduced to at most maxPoints points
+	 * for a chart, keeping the minimum and maximum of every time bucket. The rows are streamed
+	 * from the database and reduced in a single pass, so memory does not grow with the range.
+	 * Measures without measure_value are skipped.
+	 * @param from first date, null to start at the first measure
+	 * @param to end date (excluded), null to end after the last measure
+	 */
+	public static List<Measure> getSensorDataSeries(Integer idsensor, Integer idexperiment, Timestamp from,
+			Timestamp to, int maxPoints) throws DatabaseException
+	{
+		if (idsensor == null)
+		{
+			throw new IllegalArgumentException("getSensorDataSeries: must provide sensor and experiment id.");
+		}
+		return getSensorDataSeries(Collections.singletonList(idsensor), idexperiment, from, to, maxPoints).get(idsensor);
+	}
+
+	/**
+	 * Same as {@link #getSensorDataSeries(Integer, Integer, Timestamp, Timestamp, int)} for several
+	 * sensors of an experiment, on one connection. When from or to are null the range is taken
+	 * from the measures of all the sensors, so the series share the time axis.
+	 * @return the series of each sensor, in the order of idsensors; empty for sensors without data
+	 */
+	public static Map<Integer, List<Measure>> getSensorDataSeries(List<Integer> idsensors, Integer idexperiment,
+			Timestamp from, Timestamp to, int maxPoints) throws DatabaseException
+	{
+		Map<Integer, MinMaxDownsampler> samples = getSensorDataSamples(idsensors, idexperiment, from, to, maxPoints);
+		Map<Integer, List<Measure>> series = new LinkedHashMap<>();
+		for (Integer idsensor : idsensors)
+		{
+			List<Measure> measures = new ArrayList<>();
+			MinMaxDownsampler sampler = samples.get(idsensor);
+			for (int i = 0; sampler != null && i < sampler.size(); i++)
+			{
+				Measure m = new Measure();
+				m.setIdsensor(idsensor);
+				m.setIdexperiment(idexperiment);
+				m.setMeasure_date(new Timestamp(sampler.time(i)));
+				m.setMeasure_value(sampler.value(i));
+				m.setMeasure(String.valueOf(sampler.value(i)));
+				measures.add(m);
+			}
+			series.put(idsensor, measures);
+		}
+		return series;
+	}
+
+	/**
+	 * The points of {@link #getSensorDataSeries(List, Integer, Timestamp, Timestamp, int)} as they
+	 * come out of the downsampling, times and values in arrays, for writers that do not need a
+	 * Measure per point.
+	 * @return the finished sampler of each sensor, in the order of idsensors; empty if no sensor
+	 *         has measures in the range
+	 */
+	public static Map<Integer, MinMaxDownsampler> getSensorDataSamples(final List<Integer> idsensors,
+			final Integer idexperiment, final Timestamp from, final Timestamp to, final int maxPoints)
+			throws DatabaseException
+	{
+		if (idsensors == null || idsensors.isEmpty() || idsensors.contains(null) || idexperiment == null)
+		{
+			throw new IllegalArgumentException("getSensorDataSeries: must provide sensor and experiment id.");
+		}
+		EntityManager em = null;
+		try
+		{
+			em = getEntityManager();
+			final Map<Integer, MinMaxDownsampler> series = new LinkedHashMap<>();
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					Timestamp start = from;
+					Timestamp end = to;
+					if (start == null || end == null)
+					{
+						Timestamp[] range = getTimeSeriesStore().getRange(connection, idexperiment, idsensors);
+						if (start == null) start = range[0];
+						if (end == null && range[1] != null) end = new Timestamp(range[1].getTime() + 1);
+						if (start == null || end == null)
+						{
+							return;
+						}
+					}
+					int resolution = rollupLevel((end.getTime() - start.getTime()) / Math.max(1, maxPoints / 2));
+					boolean rollups = resolution > 0 && Boolean.getBoolean(ROLLUP_QUERY);
+					for (Integer idsensor : idsensors)
+					{
+						MinMaxDownsampler sampler = new MinMaxDownsampler(start.getTime(), end.getTime(), maxPoints);
+						if (rollups)
+						{
+							readRollups(connection, idsensor, idexperiment, start, end, resolution, sampler);
+						}
+						else
+						{
+							getTimeSeriesStore().sample(connection, idsensor, idexperiment, start, end, sampler);
+						}
+						sampler.finish();
+						series.put(idsensor, sampler);
+					}
+				}
+			});
+			return series;
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while getting sensor series:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the first and the last date of the charted rows of the sensors in the data table
+	 */
+	static Timestamp[] getRowRange(Connection connection, int idexperiment, List<Integer> idsensors)
+			throws SQLException
+	{
+		StringBuilder sql = new StringBuilder("SELECT MIN(measure_date), MAX(measure_date) FROM data "
+				+ "WHERE idexperiment=? AND charted=1 AND idsensor IN (");
+		for (int i = 0; i < idsensors.size(); i++)
+		{
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		PreparedStatement range = connection.prepareStatement(sql.append(')').toString());
+		try
+		{
+			range.setInt(1, idexperiment);
+			int index = 2;
+			for (Integer idsensor : idsensors)
+			{
+				range.setInt(index++, idsensor);
+			}
+			java.sql.ResultSet rs = range.executeQuery();
+			rs.next();
+			Timestamp[] result = { rs.getTimestamp(1), rs.getTimestamp(2) };
+			rs.close();
+			return result;
+		}
+		finally
+		{
+			range.close();
+		}
+	}
+
+	/**
+	 * Adds the numeric charted rows of a series in [start, end) to points, in date order
+	 */
+	static void sampleRows(Connection connection, int idsensor, int idexperiment, Timestamp start, Timestamp end,
+			PointConsumer points) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement("SELECT measure_date, measure_value FROM data "
+				+ "WHERE idsensor=? AND idexperiment=? AND charted=1 AND measure_date >= ? AND measure_date < ? "
+				+ "AND measure_value IS NOT NULL ORDER BY measure_date", java.sql.ResultSet.TYPE_FORWARD_ONLY,
+				java.sql.ResultSet.CONCUR_READ_ONLY);
+		try
+		{
+			// makes Connector/J stream the rows instead of reading the whole result
+			ps.setFetchSize(Integer.MIN_VALUE);
+			ps.setInt(1, idsensor);
+			ps.setInt(2, idexperiment);
+			ps.setTimestamp(3, start);
+			ps.setTimestamp(4, end);
+			java.sql.ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				points.add(rs.getTimestamp(1).getTime(), rs.getDouble(2));
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * Feeds the minimum and the maximum of each rollup bucket to the sampler, at the start and at
+	 * the middle of the bucket since the rollups do not keep when they happened.
+	 */
+	private static void readRollups(Connection connection, Integer idsensor, Integer idexperiment, Timestamp start,
+			Timestamp end, int resolution, MinMaxDownsampler sampler) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement("SELECT bucket_start, min_value, max_value FROM data_rollup "
+				+ "WHERE idsensor=? AND idexperiment=? AND resolution=? AND bucket_start >= ? AND bucket_start < ? "
+				+ "ORDER BY bucket_start");
+		try
+		{
+			ps.setInt(1, idsensor);
+			ps.setInt(2, idexperiment);
+			ps.setInt(3, resolution);
+			ps.setTimestamp(4, new Timestamp(RollupAggregator.bucketStart(start.getTime(), resolution)));
+			ps.setTimestamp(5, end);
+			java.sql.ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				long bucket = rs.getTimestamp(1).getTime();
+				sampler.add(bucket, rs.getDouble(2));
+				sampler.add(bucket + resolution * 500L, rs.getDouble(3));
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * @return the coarsest rollup resolution, in seconds, that fits in a bucket of the given
+	 *         milliseconds, or 0 if the bucket is smaller than the finest one
+	 */
+	private static int rollupLevel(long bucketMillis)
+	{
+		int level = 0;
+		for (int resolution : MeasureRollup.RESOLUTIONS)
+		{
+			if (resolution * 1000L <= bucketMillis)
+			{
+				level = resolution;
+			}
+		}
+		return level;
+	}
+
+	private static boolean isRollupEnabled()
+	{
+		String enabled = System.getProperty(ROLLUP_ENABLED);
+		return enabled == null || Boolean.parseBoolean(enabled);
+	}
+
+	/**
+	 * Returns the rollups of a sensor in [from, to) at the coarsest resolution not greater than the
+	 * requested one (1 minute if it is smaller), ordered by time.
+	 */
+	public static List<MeasureRollup> getRollups(Integer idsensor, Integer idexperiment, Timestamp from, Timestamp to,
+			int resolution) throws DatabaseException
+	{
+		if (idsensor == null || idexperiment == null || from == null || to == null)
+		{
+			throw new IllegalArgumentException("getRollups: must provide sensor, experiment and time range.");
+		}
+		int level = Math.max(MeasureRollup.MINUTE, rollupLevel(resolution * 1000L));
+		EntityManager em = null;
+		try
+		{
+			em = getEntityManager();
+			TypedQuery<MeasureRollup> query = em.createQuery("SELECT r FROM MeasureRollup r WHERE r.idsensor = :idsensor "
+					+ "AND r.idexperiment = :idexperiment AND r.resolution = :resolution AND r.bucket_start >= :from "
+					+ "AND r.bucket_start < :to ORDER BY r.bucket_start", MeasureRollup.class);
+			query.setParameter("idsensor", idsensor);
+			query.setParameter("idexperiment", idexperiment);
+			query.setParameter("resolution", level);
+			query.setParameter("from", new Timestamp(RollupAggregator.bucketStart(from.getTime(), level)));
+			query.setParameter("to", to);
+			return query.getResultList();
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while getting rollups:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the image with the given SHA-256, or null if it is not stored
+	 */
+	public static ImageBlob getImage(String hash) throws DatabaseException
+	{
+		EntityManager em = null;
+		try
+		{
+			em = getEntityManager();
+			return em.find(ImageBlob.class, hash);
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while getting image:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the stored thumbnail of the image, or null if it was not generated yet
+	 */
+	public static byte[] getThumbnail(String hash, int width) throws DatabaseException
+	{
+		EntityManager em = null;
+		try
+		{
+			em = getEntityManager();
+			ImageThumb thumb = em.find(ImageThumb.class, ImageThumb.id(hash, width));
+			return thumb == null ? null : thumb.getContent();
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while getting thumbnail:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	public static void storeThumbnail(String hash, int width, byte[] content) throws DatabaseException
+	{
+		EntityManager em = null;
+		EntityTransaction tx = null;
+		try
+		{
+			em = getEntityManager();
+			tx = em.getTransaction();
+			tx.begin();
+			ImageThumb thumb = new ImageThumb();
+			thumb.setId(ImageThumb.id(hash, width));
+			thumb.setContent(content);
+			// two requests may generate the same thumbnail, the last one wins
+			em.merge(thumb);
+			tx.commit();
+		}
+		catch (Exception e)
+		{
+			if (tx != null && tx.isActive())
+			{
+				tx.rollback();
+			}
+			throw new DatabaseException("Database exception while storing thumbnail:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	/**
+	 * Stores a list of measures in a single transaction through the storage engine,
+	 * <code>iot.tsdb.engine</code>, which inserts them in the data table first.
+	 * @param measures
+	 * @throws DatabaseException
+	 */
+	public static void insertMeasures(List<Measure> measures) throws DatabaseException
+	{
+		getTimeSeriesStore().append(measures);
+	}
+
+	/**
+	 * Moves the measures older than <code>iot.tsdb.head.ms</code> from the data table to the long
+	 * term storage of the engine (segments); nothing to do with the sql engine
+	 * @return the measures moved
+	 */
+	public static long flushTimeSeries() throws DatabaseException
+	{
+		long head = Long.getLong(SegmentTimeSeriesStore.HEAD_MS, SegmentTimeSeriesStore.DEFAULT_HEAD_MS);
+		return getTimeSeriesStore().flush(new Timestamp(System.currentTimeMillis() - head));
+	}
+
+	/**
+	 * Moves the measures of the experiments that ended more than <code>iot.archive.after.days</code>
+	 * days ago from the data table to the archive, nothing if it is 0. They are still read by
+	 * getSensorData and the other queries of a series.
+	 * @return the measures archived
+	 */
+	public static long archiveExperiments() throws DatabaseException
+	{
+		int days = Integer.getInteger(ArchiveTimeSeriesStore.AFTER_DAYS, 0);
+		if (days <= 0)
+		{
+			return 0;
+		}
+		return getTimeSeriesStore().archive(new Timestamp(System.currentTimeMillis() - days * 86400000L));
+	}
+
+	/**
+	 * Partitions the data table by month, see {@link DataPartitions}. MySQL copies the whole table,
+	 * which is locked meanwhile. If it is partitioned already only the missing months are added.
+	 */
+	public static void partitionMeasures() throws DatabaseException
+	{
+		EntityManager em = null;
+		try
+		{
+			em = getEntityManager();
+			em.unwrap(Session.class).doWork(new Work()
 			{
-				Map<String, String> db_props = new HashMap<String, String>();
-				if (SystemProperty.environment.value() == SystemProperty.Environment.Value.Production)
-				{
-					db_props.put(JDBC_DRIVER, GOOGLE_DRIVER);
-					db_props.put(JDBC_URL, System.getProperty(PROD_URL_ENDPOINT));
-				}
-				else
+				@Override
+				public void execute(Connection connection) throws SQLException
 				{
-					db_props.put(JDBC_DRIVER, MYSQL_DRIVER);
-					db_props.put(JDBC_URL, System.getProperty(DEV_URL_ENDPOINT));
+					DataPartitions.partition(connection,
+							Integer.getInteger(DataPartitions.MONTHS_AHEAD, DataPartitions.DEFAULT_MONTHS_AHEAD));
 				}
-				emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME, db_props);
-			}
-			catch (Exception e)
+			});
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while partitioning the measures:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
 			{
-				Logger logger = Logger.getLogger(DAO.class.getName());
-				logger.log(Level.SEVERE, "Unexpected exception initializing DAO", e);
-				throw new DatabaseException("Exception creating entity manager", e);
+				em.close();
 			}
 		}
-		return emf.createEntityManager();
 	}
-	//////////////////////////////////////////////////////////////////////////////////////////////////////////////////// 
-	public static <T extends IoTEntity> List<T> getEntity(Class<T> entityClass, Integer id) throws DatabaseException
+
+	/**
+	 * Adds the partitions of the months up to <code>iot.partition.months.ahead</code> months from
+	 * now, if the data table is partitioned
+	 * @return the partitions added
+	 */
+	public static int addMeasurePartitions() throws DatabaseException
 	{
 		EntityManager em = null;
-		List<T> resultList = null;
 		try
 		{
 			em = getEntityManager();
-			if (id == null)
-			{
-				CriteriaQuery<T> cq = em.getCriteriaBuilder().createQuery(entityClass);
-				cq.select(cq.from(entityClass));
-				resultList = em.createQuery(cq).getResultList();
-			}
-			else
+			final int[] added = new int[1];
+			em.unwrap(Session.class).doWork(new Work()
 			{
-				resultList = new ArrayList<>(1);
-				T e = em.find(entityClass, id);
-				resultList.add(e);
-			}
-			return resultList;
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					added[0] = DataPartitions.addMonths(connection,
+							Integer.getInteger(DataPartitions.MONTHS_AHEAD, DataPartitions.DEFAULT_MONTHS_AHEAD));
+				}
+			});
+			return added[0];
 		}
 		catch (Exception e)
 		{
-			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+			throw new DatabaseException("Database exception while adding partitions:" + e.getMessage(), e);
 		}
 		finally
 		{
@@ -105,40 +1504,110 @@ public class DAO
 	}
 
 	/**
-	 * Insert a new controller with a collection of properties
-	 * @param controller
-	 * @param properties
-	 * @throws DatabaseException
+	 * Deletes the raw measures older than <code>iot.retention.days</code> days, nothing if it is 0.
+	 * The rollups stay, so the charts of the old dates keep working with
+	 * <code>iot.rollup.query</code>. In a partitioned data table the months that are entirely
+	 * expired are dropped; otherwise the rows are deleted walking all the ids stored when it
+	 * started, in transactions of <code>iot.retention.chunk</code> ids, as late measures may sit
+	 * among newer ones. The segments and archived parts whose last measure is expired are deleted
+	 * too, then the images no measure references any more (see {@link ImageStore}).
+	 * @return the measures deleted, estimated by MySQL for the dropped partitions
 	 */
-	public static <T extends IoTEntity> void insertEntity(T entity, Collection<? extends IoTProperty> properties)
-			throws DatabaseException
+	public static long expireMeasures() throws DatabaseException
 	{
-		if (entity == null)
+		int days = Integer.getInteger(RETENTION_DAYS, 0);
+		if (days <= 0)
 		{
-			throw new IllegalArgumentException("Entity cannot be null.");
+			return 0;
 		}
+		final Timestamp cutoff = new Timestamp(System.currentTimeMillis() - days * 86400000L);
+		final int chunk = Math.max(1, Integer.getInteger(RETENTION_CHUNK, DEFAULT_RETENTION_CHUNK));
 		EntityManager em = null;
 		EntityTransaction tx = null;
 		try
 		{
 			em = getEntityManager();
+			final long[] deleted = new long[1];
+			final boolean[] partitioned = new boolean[1];
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					partitioned[0] = !DataPartitions.getMonths(connection).isEmpty();
+					if (partitioned[0])
+					{
+						deleted[0] = DataPartitions.dropBefore(connection, cutoff.getTime());
+					}
+				}
+			});
+			if (!partitioned[0])
+			{
+				Object[] range = (Object[]) em.createNativeQuery("SELECT MIN(iddata), MAX(iddata) FROM data")
+						.getSingleResult();
+				Number from = (Number) range[0];
+				while (from != null && from.longValue() <= ((Number) range[1]).longValue())
+				{
+					tx = em.getTransaction();
+					tx.begin();
+					deleted[0] += em.createNativeQuery("DELETE FROM data WHERE iddata BETWEEN ? AND ? AND measure_date < ?")
+							.setParameter(1, from.longValue()).setParameter(2, from.longValue() + chunk - 1)
+							.setParameter(3, cutoff).executeUpdate();
+					tx.commit();
+					// skips the gaps left by the previous runs
+					from = (Number) em.createNativeQuery("SELECT MIN(iddata) FROM data WHERE iddata >= ?")
+							.setParameter(1, from.longValue() + chunk).getSingleResult();
+				}
+			}
+			Number points = (Number) em.createNativeQuery("SELECT SUM(points) FROM data_segment WHERE last_date < ?")
+					.setParameter(1, cutoff).getSingleResult();
+			if (points != null)
+			{
+				deleted[0] += points.longValue();
+			}
+			Number archived = (Number) em.createNativeQuery("SELECT SUM(measures) FROM data_archive WHERE last_date < ?")
+					.setParameter(1, cutoff).getSingleResult();
+			if (archived != null)
+			{
+				deleted[0] += archived.longValue();
+			}
 			tx = em.getTransaction();
 			tx.begin();
-			if (entity.getId() == null)
-				em.persist(entity);
-			else
-				em.merge(entity);
-			if (properties != null)
+			em.createNativeQuery("DELETE i FROM data_archive_image i JOIN data_archive a ON a.idarchive = i.idarchive "
+					+ "WHERE a.last_date < ?").setParameter(1, cutoff).executeUpdate();
+			tx.commit();
+			for (String table : new String[] { "data_segment", "data_archive" })
 			{
-				for (IoTProperty p : properties)
-				{			
-					p.setParentId(entity.getId());
-					em.merge(p);
+				int rows;
+				do
+				{
+					tx = em.getTransaction();
+					tx.begin();
+					rows = em.createNativeQuery("DELETE FROM " + table + " WHERE last_date < ? LIMIT " + chunk)
+							.setParameter(1, cutoff).executeUpdate();
+					tx.commit();
 				}
+				while (rows == chunk);
 			}
-			//commit se utiliza para al macenar los cambios en disco
-			
-			tx.commit();
+			final long[] images = new long[1];
+			final String[] after = new String[1];
+			do
+			{
+				tx = em.getTransaction();
+				tx.begin();
+				em.unwrap(Session.class).doWork(new Work()
+				{
+					@Override
+					public void execute(Connection connection) throws SQLException
+					{
+						after[0] = ImageStore.sweep(connection, after[0], chunk, images);
+					}
+				});
+				tx.commit();
+			}
+			while (after[0] != null);
+			Logger.getLogger(DAO.class.getName()).info(images[0] + " unreferenced images deleted");
+			return deleted[0];
 		}
 		catch (Exception e)
 		{
@@ -146,7 +1615,7 @@ public class DAO
 			{
 				tx.rollback();
 			}
-			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+			throw new DatabaseException("Database exception while deleting expired measures:" + e.getMessage(), e);
 		}
 		finally
 		{
@@ -157,35 +1626,116 @@ public class DAO
 		}
 	}
 
-	public static <T extends IoTProperty> List<T> getProperties(Class<T> propertyClass, Integer parentId)
-			throws DatabaseException
+	/**
+	 * Inserts a list of measures in a single transaction using JDBC batches of
+	 * <code>iot.ingest.batch.size</code> rows. With <code>rewriteBatchedStatements=true</code> in the
+	 * JDBC url the driver sends every batch as one multi-row INSERT.
+	 * @param measures
+	 * @throws DatabaseException
+	 */
+	static void insertRows(final List<Measure> measures) throws DatabaseException
 	{
-		EntityManager em = null;
-		List<T> resultList = null;
-		if (parentId == null)
+		if (measures == null)
 		{
-			throw new IllegalArgumentException("getProperties: must provide IoTEntity id.");
+			throw new IllegalArgumentException("Measures cannot be null.");
+		}
+		if (measures.isEmpty())
+		{
+			return;
+		}
+		final int batchSize = Math.max(1, Integer.getInteger(BATCH_SIZE, DEFAULT_BATCH_SIZE));
+		// images are stored once per content, the measures reference them by hash
+		final Map<String, byte[]> images = new LinkedHashMap<>();
+		for (Measure m : measures)
+		{
+			if (m.getImage() != null && m.getImage().length > 0)
+			{
+				String hash = ImageStore.hash(m.getImage());
+				m.setImage_hash(hash);
+				if (!ImageStore.isKnown(hash))
+				{
+					images.put(hash, m.getImage());
+				}
+			}
 		}
+		EntityManager em = null;
+		EntityTransaction tx = null;
 		try
 		{
 			em = getEntityManager();
-			CriteriaBuilder cb = em.getCriteriaBuilder();
-			CriteriaQuery<T> cq = em.getCriteriaBuilder().createQuery(propertyClass);
-			Root<T> from = cq.from(propertyClass);
-			ParameterExpression<Integer> parent = cb.parameter(Integer.class);
-			cq.select(from).where(cb.equal(from.get(getParentRowName(propertyClass)), parent));
-			
-	
-			TypedQuery<T> createQuery = em.createQuery(cq);
-			createQuery.setParameter(parent, parentId);
-			resultList = createQuery.getResultList();
-			return resultList;
-			
-			
+			tx = em.getTransaction();
+			tx.begin();
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					if (!images.isEmpty())
+					{
+						insertImages(connection, images, batchSize);
+					}
+					PreparedStatement ps = connection.prepareStatement(INSERT_MEASURE);
+					try
+					{
+						int pending = 0;
+						for (Measure m : measures)
+						{
+							ps.setString(1, m.getMeasure());
+							ps.setTimestamp(2, m.getMeasure_date());
+							setInteger(ps, 3, m.getIdsensor());
+							setInteger(ps, 4, m.getIdthing());
+							ps.setString(5, m.getImage_hash());
+							setInteger(ps, 6, m.getCharted());
+							setInteger(ps, 7, m.getIdexperiment());
+							if (m.getMeasure_value() == null)
+								ps.setNull(8, Types.DOUBLE);
+							else
+								ps.setDouble(8, m.getMeasure_value());
+							ps.addBatch();
+							if (++pending == batchSize)
+							{
+								ps.executeBatch();
+								pending = 0;
+							}
+						}
+						if (pending > 0)
+						{
+							ps.executeBatch();
+						}
+					}
+					finally
+					{
+						ps.close();
+					}
+					if (isRollupEnabled())
+					{
+						RollupAggregator rollups = new RollupAggregator();
+						for (Measure m : measures)
+						{
+							if (m.getMeasure_value() != null && m.getMeasure_date() != null && m.getIdsensor() != null
+									&& m.getIdexperiment() != null && Integer.valueOf(1).equals(m.getCharted()))
+							{
+								rollups.add(m.getIdsensor(), m.getIdexperiment(), m.getMeasure_date().getTime(),
+										m.getMeasure_value());
+							}
+						}
+						if (!rollups.isEmpty())
+						{
+							rollups.write(connection, batchSize);
+						}
+					}
+				}
+			});
+			tx.commit();
+			ImageStore.committed(images.keySet());
 		}
 		catch (Exception e)
 		{
-			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+			if (tx != null && tx.isActive())
+			{
+				tx.rollback();
+			}
+			throw new DatabaseException("Database exception while inserting measures:" + e.getMessage(), e);
 		}
 		finally
 		{
@@ -196,23 +1746,109 @@ public class DAO
 		}
 	}
 
-	public static <T extends IoTProperty> void deleteProperty(Class<T> propertyClass, Integer id)
-			throws DatabaseException
+	private static void insertImages(Connection connection, Map<String, byte[]> images, int batchSize)
+			throws SQLException
 	{
-		if (id == null)
+		PreparedStatement ps = connection.prepareStatement(INSERT_IMAGE);
+		try
 		{
-			throw new IllegalArgumentException("delete: must provide IoTProperty id.");
+			int pending = 0;
+			for (Map.Entry<String, byte[]> image : images.entrySet())
+			{
+				ps.setString(1, image.getKey());
+				ps.setBytes(2, image.getValue());
+				ps.setInt(3, image.getValue().length);
+				ps.addBatch();
+				if (++pending == batchSize)
+				{
+					ps.executeBatch();
+					pending = 0;
+				}
+			}
+			if (pending > 0)
+			{
+				ps.executeBatch();
+			}
+		}
+		finally
+		{
+			ps.close();
 		}
+	}
+
+	/**
+	 * Moves the images stored inline in the data table to image_blob, chunk rows per transaction.
+	 * Rows are walked in iddata order, so the migration can be stopped and run again.
+	 * @return number of rows updated
+	 */
+	public static long moveInlineImages(final int chunk) throws DatabaseException
+	{
 		EntityManager em = null;
 		EntityTransaction tx = null;
 		try
 		{
 			em = getEntityManager();
-			tx = em.getTransaction();
-			tx.begin();
-			T prop = em.find(propertyClass, id);
-			em.remove(prop);
-			tx.commit();
+			final long[] last = new long[1];
+			long moved = 0;
+			while (true)
+			{
+				final int[] rows = new int[1];
+				tx = em.getTransaction();
+				tx.begin();
+				em.unwrap(Session.class).doWork(new Work()
+				{
+					@Override
+					public void execute(Connection connection) throws SQLException
+					{
+						Map<String, byte[]> images = new LinkedHashMap<>();
+						PreparedStatement select = connection
+								.prepareStatement("SELECT iddata, image FROM data WHERE iddata > ? AND image IS NOT NULL ORDER BY iddata LIMIT ?");
+						PreparedStatement update = connection
+								.prepareStatement("UPDATE data SET image_hash = ?, image = NULL WHERE iddata = ?");
+						try
+						{
+							select.setLong(1, last[0]);
+							select.setInt(2, chunk);
+							java.sql.ResultSet rs = select.executeQuery();
+							while (rs.next())
+							{
+								last[0] = rs.getLong(1);
+								byte[] image = rs.getBytes(2);
+								String hash = null;
+								if (image != null && image.length > 0)
+								{
+									hash = ImageStore.hash(image);
+									images.put(hash, image);
+								}
+								update.setString(1, hash);
+								update.setLong(2, last[0]);
+								update.addBatch();
+								rows[0]++;
+							}
+							rs.close();
+							if (!images.isEmpty())
+							{
+								insertImages(connection, images, chunk);
+							}
+							if (rows[0] > 0)
+							{
+								update.executeBatch();
+							}
+						}
+						finally
+						{
+							select.close();
+							update.close();
+						}
+					}
+				});
+				tx.commit();
+				if (rows[0] == 0)
+				{
+					return moved;
+				}
+				moved += rows[0];
+			}
 		}
 		catch (Exception e)
 		{
@@ -220,7 +1856,7 @@ public class DAO
 			{
 				tx.rollback();
 			}
-			throw new DatabaseException("Database exception while deleting property:" + e.getMessage(), e);
+			throw new DatabaseException("Database exception while moving images:" + e.getMessage(), e);
 		}
 		finally
 		{
@@ -231,22 +1867,37 @@ public class DAO
 		}
 	}
 
-	public static <T extends IoTEntity> void deleteEntity(Class<T> EntityClass, Integer id) throws DatabaseException
+	/**
+	 * Fills measure_value for the rows stored before the column existed. The table is walked in
+	 * ranges of chunk ids, one transaction per range, so rows are not locked for long. Measures that
+	 * are not numbers keep a null value.
+	 * @return number of rows updated
+	 */
+	public static long backfillMeasureValues(int chunk) throws DatabaseException
 	{
 		EntityManager em = null;
 		EntityTransaction tx = null;
-		if (id == null)
-		{
-			throw new IllegalArgumentException("delete: must provide IoTEntity id.");
-		}
 		try
 		{
 			em = getEntityManager();
-			tx = em.getTransaction();
-			tx.begin();
-			T prop = em.find(EntityClass, id);
-			em.remove(prop);
-			tx.commit();
+			Object[] range = (Object[]) em.createNativeQuery(
+					"SELECT MIN(iddata), MAX(iddata) FROM data WHERE measure_value IS NULL").getSingleResult();
+			if (range[0] == null)
+			{
+				return 0;
+			}
+			long updated = 0;
+			long max = ((Number) range[1]).longValue();
+			for (long from = ((Number) range[0]).longValue(); from <= max; from += chunk)
+			{
+				tx = em.getTransaction();
+				tx.begin();
+				updated += em.createNativeQuery("UPDATE data SET measure_value = measure + 0 WHERE iddata BETWEEN ? AND ? "
+								+ "AND measure_value IS NULL AND measure REGEXP ?").setParameter(1, from)
+						.setParameter(2, from + chunk - 1).setParameter(3, NUMBER_PATTERN).executeUpdate();
+				tx.commit();
+			}
+			return updated;
 		}
 		catch (Exception e)
 		{
@@ -254,7 +1905,7 @@ public class DAO
 			{
 				tx.rollback();
 			}
-			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+			throw new DatabaseException("Database exception while filling measure values:" + e.getMessage(), e);
 		}
 		finally
 		{
@@ -265,41 +1916,105 @@ public class DAO
 		}
 	}
 
-	private static String getParentRowName(Class<?> propertyClass)
-	{
-		if (ControllerProperty.class.equals(propertyClass)) return "idcontroller";
-		if (SensorProperty.class.equals(propertyClass)) return "idsensor";
-		if (SmartThingProperty.class.equals(propertyClass)) return "idthing";
-		if (Controller.class.equals(propertyClass)) return "idcontroller";
-		if (Sensor.class.equals(propertyClass)) return "idsensor";
-		if (SmartThing.class.equals(propertyClass)) return "idthing";
-		return null;
-	}
-
-	@SuppressWarnings("unchecked")
-	public static List<Measure> getSensorData(Integer idsensor, Integer idexperiment) throws DatabaseException
+	/**
+	 * Recomputes data_rollup from the measures, for the rows stored before the rollups existed.
+	 * Every series is read through the time series store, so the flushed segments and the archived
+	 * parts count too, in windows of the given days, all in one transaction per series. Only the
+	 * buckets from the first stored measure of the series on are replaced: the rollups of the
+	 * measures already expired are kept, except in the bucket of the first one. Ingestion must be
+	 * stopped while it runs or the new measures are counted twice.
+	 * @return number of measures aggregated
+	 */
+	public static long rebuildRollups(final int days) throws DatabaseException
 	{
 		EntityManager em = null;
-		if (idsensor == null)
-		{
-			throw new IllegalArgumentException("delete: must provide IoTEntity id.");
-		}
+		EntityTransaction tx = null;
 		try
 		{
 			em = getEntityManager();
-			String query = "SELECT * FROM data.data WHERE idsensor=? and idexperiment=? and charted=1 order by measure_date";
-			Query q = em.createNativeQuery(query, Measure.class).setParameter(1, idsensor).setParameter(2, idexperiment);
-            List<Measure> resultList = (List<Measure>) q.getResultList();
-			return resultList;
-
+			@SuppressWarnings("unchecked")
+			List<Object[]> series = em.createNativeQuery("SELECT DISTINCT idsensor, idexperiment FROM data "
+					+ "WHERE charted=1 AND idsensor IS NOT NULL AND idexperiment IS NOT NULL "
+					+ "UNION SELECT idsensor, idexperiment FROM data_segment "
+					+ "UNION SELECT idsensor, idexperiment FROM data_archive").getResultList();
+			final long[] rows = new long[1];
+			final int batchSize = Math.max(1, Integer.getInteger(BATCH_SIZE, DEFAULT_BATCH_SIZE));
+			final long window = Math.max(1, days) * 86400000L;
+			for (Object[] s : series)
+			{
+				final int idsensor = ((Number) s[0]).intValue();
+				final int idexperiment = ((Number) s[1]).intValue();
+				tx = em.getTransaction();
+				tx.begin();
+				em.unwrap(Session.class).doWork(new Work()
+				{
+					@Override
+					public void execute(Connection connection) throws SQLException
+					{
+						ArchiveTimeSeriesStore store = getTimeSeriesStore();
+						Timestamp[] range = store.getRange(connection, idexperiment, Collections.singletonList(idsensor));
+						if (range[0] == null)
+						{
+							return;
+						}
+						PreparedStatement ps = connection.prepareStatement("DELETE FROM data_rollup "
+								+ "WHERE idsensor=? AND idexperiment=? AND resolution=? AND bucket_start >= ?");
+						try
+						{
+							for (int resolution : MeasureRollup.RESOLUTIONS)
+							{
+								ps.setInt(1, idsensor);
+								ps.setInt(2, idexperiment);
+								ps.setInt(3, resolution);
+								ps.setTimestamp(4, new Timestamp(RollupAggregator.bucketStart(range[0].getTime(), resolution)));
+								ps.executeUpdate();
+							}
+						}
+						finally
+						{
+							ps.close();
+						}
+						// the scan streams its rows, so the buckets of a window are written after it
+						for (long from = range[0].getTime(); from <= range[1].getTime(); from += window)
+						{
+							final RollupAggregator rollups = new RollupAggregator();
+							try
+							{
+								store.scan(connection, idsensor, idexperiment, new Timestamp(from), new Timestamp(from + window),
+										new MeasureConsumer()
+										{
+											@Override
+											public void accept(Measure m)
+											{
+												if (m.getMeasure_value() != null)
+												{
+													rollups.add(idsensor, idexperiment, m.getMeasure_date().getTime(), m.getMeasure_value());
+													rows[0]++;
+												}
+											}
+										});
+							}
+							catch (IOException e)
+							{
+								throw new SQLException("Could not read the measures of sensor " + idsensor, e);
+							}
+							rollups.write(connection, batchSize);
+						}
+					}
+				});
+				tx.commit();
+			}
+			return rows[0];
 		}
 		catch (Exception e)
 		{
-			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+			if (tx != null && tx.isActive())
+			{
+				tx.rollback();
+			}
+			throw new DatabaseException("Database exception while rebuilding rollups:" + e.getMessage(), e);
 		}
-		
-
-	finally
+		finally
 		{
 			if (em != null)
 			{
@@ -307,6 +2022,14 @@ public class DAO
 			}
 		}
 	}
+
+	private static void setInteger(PreparedStatement ps, int index, Integer value) throws SQLException
+	{
+		if (value == null)
+			ps.setNull(index, Types.INTEGER);
+		else
+			ps.setInt(index, value);
+	}
 	
 /* 
 Se gener un mtodo  con el nombre getExperimentThing de tipo de dato entero, el cual contiene el parmetro idthing de tipo de dato Integer,
@@ -324,9 +2047,9 @@ por que puede ser el idthing=3 o el idthing=4, a hora se le asigna que  Query q
 y que cree el query y envi el parmetro 1 a idthing, el siguiente paso es: se debe realizar la conversin
 para que q=query obtenga los registros de la lista, el cual se Inicializo el id a 0 y de tipo de dato int (entero), 
 se le da la instruccin de que si es diferente (q) obtenga el resultado de la lista, 
-ahora se realiza la conversin para que (q) obtenga el- resultado de la lista,  
-se le agrega un sout para que realice  una impresin en consola para verificar si est entrando el valor,
-si el valor est entrando retornara el id.
+ahora se realiza la conversin para que (q) obtenga el- resultado de la lista y se retorna el id.
+El resultado se guarda en ExperimentCache, de modo que las mediciones de un mismo smartthing no repiten
+la consulta; el cache se limpia cuando se guarda o elimina un experimento.
  */
 	
 	public static int getExperimentThing(Integer idthing) throws DatabaseException
@@ -336,37 +2059,41 @@ si el valor est
 		{
 			throw new IllegalArgumentException("delete: must provide IoTEntity id.");
 		}
-		     try {
-				    em = getEntityManager();
-				    
-				    String query = "SELECT MAX(idexperiment) as idexperiment FROM experiment where idthing=?";
-					Query q = em.createNativeQuery(query).setParameter(1, idthing);
-			
-					/*conversion para que q=query obtenga los registros de la lista*/
-					int id=0;/*Inicializo el id=0 de tipo de dato int*/
-					if(!q.getResultList().isEmpty()){/*Le damos la instrucion de que si es diferente (q) obtenga el resultado de la lista*/
-				    id=(int)q.getResultList().get(0);/* realizamos la conversion para que (q) obtenga el resultado de la lista */
-				       
-				    System.out.println("si entro el id"+id);/*Sout para imprimir en consola y saber si esta entrando el valor*/	    
-					 }
-				  else
-						System.out.println("No entro el id");/*o de lo contrario no esta entrando*/
-				    return id;
-			
-		     } 
-		     catch (Exception e) 
-		     {
-					throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
-				}
-				finally
-				{
-					if (em != null)
-					{
-						em.close();
-					}
+		Integer cached = ExperimentCache.get(idthing);
+		if (cached != null)
+		{
+			return cached;
+		}
+		try
+		{
+			long generation = ExperimentCache.generation();
+			em = getEntityManager();
 
-				}
-	         }
+			String query = "SELECT MAX(idexperiment) as idexperiment FROM experiment where idthing=?";
+			Query q = em.createNativeQuery(query).setParameter(1, idthing);
+
+			/*MAX devuelve una sola fila, con null si el smartthing no tiene experimentos*/
+			List<?> resultList = q.getResultList();
+			int id = 0;
+			if (!resultList.isEmpty() && resultList.get(0) != null)
+			{
+				id = ((Number) resultList.get(0)).intValue();
+			}
+			ExperimentCache.put(idthing, id, generation);
+			return id;
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while inserting entity:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
 
 	public static User getUser(String username) throws DatabaseException
 	{
@@ -530,6 +2257,8 @@ si el valor est
 			else
 				em.merge(entity);
 			tx.commit();
+			RegistryCache.invalidate(SensorType.class);
+			TopologyIndex.sensorTypeStored(entity);
 		}
 		catch (Exception e)
 		{
@@ -550,6 +2279,12 @@ si el valor est
 
 	public static List<SensorType> getSensorTypeList() throws DatabaseException
 	{
+		List<SensorType> hit = RegistryCache.get(SensorType.class, null);
+		if (hit != null)
+		{
+			return hit;
+		}
+		long generation = RegistryCache.generation();
 		EntityManager em = null;
 		List<SensorType> resultList = null;
 		try
@@ -558,6 +2293,7 @@ si el valor est
 			CriteriaQuery<SensorType> cq = em.getCriteriaBuilder().createQuery(SensorType.class);
 			cq.select(cq.from(SensorType.class));
 			resultList = em.createQuery(cq).getResultList();
+			RegistryCache.put(SensorType.class, null, resultList, generation);
 			return resultList;
 		}
 		catch (Exception e)
@@ -0,0 +1,252 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Monthly partitions of the data table, RANGE on TO_DAYS(measure_date): p&lt;yyyyMM&gt; holds the
+ * measures of a month (the first one also the older measures) and pmax the ones after the last
+ * month, so an insert never fails for a missing partition. The partitions are created
+ * <code>iot.partition.months.ahead</code> months in advance, so pmax stays empty and adding
+ * months only splits an empty partition.
+ * <p>
+ * MySQL reads only the partitions a condition on measure_date can match, so the queries of
+ * {@link DAO} bound measure_date wherever they can. MySQL requires the partition column in every
+ * unique key, so the primary key of a partitioned table is (iddata, measure_date). Months follow
+ * the default time zone of the JVM, the one Connector/J writes the dates in.
+ */
+class DataPartitions
+{
+	static final String MONTHS_AHEAD = "iot.partition.months.ahead";
+	static final int DEFAULT_MONTHS_AHEAD = 3;
+	private static final String LAST = "pmax";
+	private static final long MONTHS_TTL = 600000;
+
+	private static volatile List<Long> months;
+	private static volatile long loaded;
+
+	/**
+	 * @return the first instant of the month of each partition, in order; empty if the data table
+	 *         is not partitioned
+	 */
+	static List<Long> getMonths(Connection connection) throws SQLException
+	{
+		List<Long> result = new ArrayList<>();
+		PreparedStatement ps = connection.prepareStatement("SELECT PARTITION_NAME FROM information_schema.PARTITIONS "
+				+ "WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME='data' AND PARTITION_NAME IS NOT NULL "
+				+ "ORDER BY PARTITION_ORDINAL_POSITION");
+		try
+		{
+			java.sql.ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				String name = rs.getString(1);
+				if (!LAST.equals(name))
+				{
+					result.add(parseName(name));
+				}
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+		months = Collections.unmodifiableList(result);
+		loaded = System.currentTimeMillis();
+		return months;
+	}
+
+	/**
+	 * {@link #getMonths(Connection)} read at most ten minutes ago; partitions change once a day
+	 */
+	static List<Long> getCachedMonths(Connection connection) throws SQLException
+	{
+		List<Long> cached = months;
+		if (cached == null || System.currentTimeMillis() - loaded > MONTHS_TTL)
+		{
+			cached = getMonths(connection);
+		}
+		return cached;
+	}
+
+	/**
+	 * Partitions the data table by month, from the month of its first measure to
+	 * <code>monthsAhead</code> months after the current one. Rebuilds the whole table; if it is
+	 * partitioned already only the missing months are added.
+	 */
+	static void partition(Connection connection, int monthsAhead) throws SQLException
+	{
+		if (!getMonths(connection).isEmpty())
+		{
+			addMonths(connection, monthsAhead);
+			return;
+		}
+		Statement st = connection.createStatement();
+		try
+		{
+			java.sql.ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM data WHERE measure_date IS NULL");
+			rs.next();
+			long undated = rs.getLong(1);
+			rs.close();
+			if (undated > 0)
+			{
+				throw new IllegalStateException(undated + " measures have no measure_date, "
+						+ "which must be part of the primary key of a partitioned table");
+			}
+			rs = st.executeQuery("SELECT MIN(measure_date) FROM data");
+			rs.next();
+			java.sql.Timestamp first = rs.getTimestamp(1);
+			rs.close();
+			long start = monthStart(first == null ? System.currentTimeMillis() : first.getTime());
+			long end = addMonth(monthStart(System.currentTimeMillis()), monthsAhead);
+			st.executeUpdate("ALTER TABLE data DROP PRIMARY KEY, ADD PRIMARY KEY (iddata, measure_date)");
+			st.executeUpdate("ALTER TABLE data PARTITION BY RANGE (TO_DAYS(measure_date)) ("
+					+ definitions(start, end) + ")");
+		}
+		finally
+		{
+			st.close();
+			months = null;
+		}
+	}
+
+	/**
+	 * Adds the months up to <code>monthsAhead</code> months after the current one, splitting pmax
+	 * @return the partitions added, 0 if the table is not partitioned
+	 */
+	static int addMonths(Connection connection, int monthsAhead) throws SQLException
+	{
+		List<Long> current = getMonths(connection);
+		if (current.isEmpty())
+		{
+			return 0;
+		}
+		long start = addMonth(current.get(current.size() - 1), 1);
+		long end = addMonth(monthStart(System.currentTimeMillis()), monthsAhead);
+		if (start > end)
+		{
+			return 0;
+		}
+		Statement st = connection.createStatement();
+		try
+		{
+			st.executeUpdate("ALTER TABLE data REORGANIZE PARTITION " + LAST + " INTO (" + definitions(start, end) + ")");
+		}
+		finally
+		{
+			st.close();
+			months = null;
+		}
+		int added = 0;
+		for (long month = start; month <= end; month = addMonth(month, 1))
+		{
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Drops the partitions whose whole month is before the cutoff. The measures older than the
+	 * cutoff in its own month stay until that month is over.
+	 * @return the measures dropped, as estimated by MySQL
+	 */
+	static long dropBefore(Connection connection, long cutoff) throws SQLException
+	{
+		List<String> expired = new ArrayList<>();
+		for (long month : getMonths(connection))
+		{
+			if (addMonth(month, 1) <= cutoff)
+			{
+				expired.add(name(month));
+			}
+		}
+		if (expired.isEmpty())
+		{
+			return 0;
+		}
+		StringBuilder names = new StringBuilder();
+		StringBuilder in = new StringBuilder();
+		for (String name : expired)
+		{
+			names.append(names.length() == 0 ? "" : ", ").append(name);
+			in.append(in.length() == 0 ? "'" : ", '").append(name).append('\'');
+		}
+		Statement st = connection.createStatement();
+		try
+		{
+			java.sql.ResultSet rs = st.executeQuery("SELECT SUM(TABLE_ROWS) FROM information_schema.PARTITIONS "
+					+ "WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME='data' AND PARTITION_NAME IN (" + in + ")");
+			rs.next();
+			long rows = rs.getLong(1);
+			rs.close();
+			st.executeUpdate("ALTER TABLE data DROP PARTITION " + names);
+			return rows;
+		}
+		finally
+		{
+			st.close();
+			months = null;
+		}
+	}
+
+	/**
+	 * The partitions of the months in [start, end] followed by pmax
+	 */
+	private static String definitions(long start, long end)
+	{
+		SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+		StringBuilder sql = new StringBuilder();
+		for (long month = start; month <= end; month = addMonth(month, 1))
+		{
+			sql.append("PARTITION ").append(name(month)).append(" VALUES LESS THAN (TO_DAYS('")
+					.append(day.format(addMonth(month, 1))).append("')), ");
+		}
+		return sql.append("PARTITION ").append(LAST).append(" VALUES LESS THAN MAXVALUE").toString();
+	}
+
+	private static String name(long month)
+	{
+		return new SimpleDateFormat("'p'yyyyMM").format(month);
+	}
+
+	private static long parseName(String name) throws SQLException
+	{
+		try
+		{
+			return new SimpleDateFormat("'p'yyyyMM").parse(name).getTime();
+		}
+		catch (ParseException e)
+		{
+			throw new SQLException("Unexpected partition " + name + " in the data table", e);
+		}
+	}
+
+	static long monthStart(long time)
+	{
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		c.set(Calendar.DAY_OF_MONTH, 1);
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		return c.getTimeInMillis();
+	}
+
+	static long addMonth(long month, int count)
+	{
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(month);
+		c.add(Calendar.MONTH, count);
+		return c.getTimeInMillis();
+	}
+}
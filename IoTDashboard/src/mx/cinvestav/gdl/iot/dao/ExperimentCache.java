@@ -0,0 +1,78 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Current (newest) experiment of every smart thing, used to assign an experiment to the measures
+ * of automated experiments. The cache is cleared whenever DAO stores or deletes an experiment, and
+ * entries expire after <code>iot.cache.experiment.ttl</code> milliseconds so experiments created
+ * through other instances are eventually seen.
+ */
+class ExperimentCache
+{
+	private static final String TTL = "iot.cache.experiment.ttl";
+	private static final long DEFAULT_TTL = 60000;
+
+	private static final ConcurrentMap<Integer, Entry> cache = new ConcurrentHashMap<>();
+	private static final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @return the cached experiment id, or null if it is unknown or expired
+	 */
+	static Integer get(int idthing)
+	{
+		Entry e = cache.get(idthing);
+		if (e == null)
+		{
+			return null;
+		}
+		if (e.expires < System.currentTimeMillis())
+		{
+			cache.remove(idthing, e);
+			return null;
+		}
+		return e.idexperiment;
+	}
+
+	/**
+	 * Generation to pass to {@link #put(int, int, long)}; read it before querying the database.
+	 */
+	static long generation()
+	{
+		return generation.get();
+	}
+
+	/**
+	 * Stores a value read from the database, unless the cache was invalidated since the
+	 * generation was read.
+	 */
+	static void put(int idthing, int idexperiment, long readGeneration)
+	{
+		long ttl = Long.getLong(TTL, DEFAULT_TTL);
+		cache.put(idthing, new Entry(idexperiment, System.currentTimeMillis() + ttl));
+		if (generation.get() != readGeneration)
+		{
+			cache.remove(idthing);
+		}
+	}
+
+	static void invalidate()
+	{
+		generation.incrementAndGet();
+		cache.clear();
+	}
+
+	private static class Entry
+	{
+		private final int idexperiment;
+		private final long expires;
+
+		Entry(int idexperiment, long expires)
+		{
+			this.idexperiment = idexperiment;
+			this.expires = expires;
+		}
+	}
+}
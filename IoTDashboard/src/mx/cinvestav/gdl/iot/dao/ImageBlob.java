@@ -0,0 +1,70 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/**
+ * Image sent with a measure, stored once and referenced by the SHA-256 of its content
+ */
+@Entity
+@Table(name = "image_blob")
+public class ImageBlob
+{
+	@Id
+	@Column(length = 64)
+	private String hash;
+
+	@Lob
+	@Column(columnDefinition = "LONGBLOB")
+	private byte[] content;
+
+	private Integer length;
+
+	// when a sweep found no measure referencing it, null while it is referenced
+	private Timestamp orphaned;
+
+	public String getHash()
+	{
+		return hash;
+	}
+
+	public void setHash(String hash)
+	{
+		this.hash = hash;
+	}
+
+	public byte[] getContent()
+	{
+		return content;
+	}
+
+	public void setContent(byte[] content)
+	{
+		this.content = content;
+	}
+
+	public Integer getLength()
+	{
+		return length;
+	}
+
+	public void setLength(Integer length)
+	{
+		this.length = length;
+	}
+
+	public Timestamp getOrphaned()
+	{
+		return orphaned;
+	}
+
+	public void setOrphaned(Timestamp orphaned)
+	{
+		this.orphaned = orphaned;
+	}
+}
@@ -0,0 +1,196 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content addressing of the images stored in the image_blob table. An image is identified by the
+ * hex SHA-256 of its bytes, so the same picture sent with many measures is stored once.
+ * <p>
+ * Hashes of the images committed recently are remembered (at most
+ * <code>iot.cache.image.hashes</code>, for an hour) to avoid sending their bytes to the database
+ * again.
+ * <p>
+ * {@link #sweep(Connection, String, int, long[])} deletes the blobs no measure references, in the
+ * data table or in an archived part; flushed segments hold no images. A blob found unreferenced is
+ * marked orphaned and deleted by a sweep at least {@link #ORPHAN_GRACE} later if it is still
+ * unreferenced, with its thumbnails. Storing the image again clears the mark, and the grace is
+ * longer than a hash is remembered, so a measure never references a deleted blob.
+ */
+class ImageStore
+{
+	private static final String KNOWN_HASHES = "iot.cache.image.hashes";
+	private static final int DEFAULT_KNOWN_HASHES = 10000;
+	private static final long KNOWN_TTL = 3600000;
+	static final long ORPHAN_GRACE = 12 * 3600000L;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// hash -> time its transaction committed
+	private static final Map<String, Long> known = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16,
+			0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+		{
+			return size() > Integer.getInteger(KNOWN_HASHES, DEFAULT_KNOWN_HASHES);
+		}
+	});
+
+	/**
+	 * @return the hex SHA-256 of the image
+	 */
+	static String hash(byte[] image)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(image);
+			char[] hex = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++)
+			{
+				hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+				hex[2 * i + 1] = HEX[digest[i] & 0xf];
+			}
+			return new String(hex);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every JVM must provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return true if the image was committed recently
+	 */
+	static boolean isKnown(String hash)
+	{
+		Long committed = known.get(hash);
+		return committed != null && System.currentTimeMillis() - committed < KNOWN_TTL;
+	}
+
+	/**
+	 * Remembers images once the transaction that stored them is committed
+	 */
+	static void committed(Collection<String> hashes)
+	{
+		Long now = System.currentTimeMillis();
+		for (String hash : hashes)
+		{
+			known.put(hash, now);
+		}
+	}
+
+	/**
+	 * Sweeps the blobs of the next chunk hashes after the given one
+	 * @param after null to start with the first blob
+	 * @param deleted incremented with the blobs deleted
+	 * @return the last hash swept, null after the last blob
+	 */
+	static String sweep(Connection connection, String after, int chunk, long[] deleted) throws SQLException
+	{
+		List<String> referenced = new ArrayList<>();
+		List<String> unmarked = new ArrayList<>();
+		List<String> expired = new ArrayList<>();
+		String last = null;
+		long graceStart = System.currentTimeMillis() - ORPHAN_GRACE;
+		PreparedStatement ps = connection.prepareStatement("SELECT b.hash, b.orphaned, "
+				+ "EXISTS (SELECT 1 FROM data d WHERE d.image_hash = b.hash) "
+				+ "OR EXISTS (SELECT 1 FROM data_archive_image a WHERE a.hash = b.hash) "
+				+ "FROM image_blob b WHERE b.hash > ? ORDER BY b.hash LIMIT ?");
+		try
+		{
+			ps.setString(1, after == null ? "" : after);
+			ps.setInt(2, chunk);
+			java.sql.ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				last = rs.getString(1);
+				Timestamp orphaned = rs.getTimestamp(2);
+				if (rs.getBoolean(3))
+				{
+					if (orphaned != null) referenced.add(last);
+				}
+				else if (orphaned == null)
+				{
+					unmarked.add(last);
+				}
+				else if (orphaned.getTime() < graceStart)
+				{
+					expired.add(last);
+				}
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+		mark(connection, "UPDATE image_blob SET orphaned = NULL WHERE hash = ?", referenced);
+		mark(connection, "UPDATE image_blob SET orphaned = NOW() WHERE hash = ? AND orphaned IS NULL", unmarked);
+		if (!expired.isEmpty())
+		{
+			// checked again, a measure may reference it since the select
+			PreparedStatement delete = connection.prepareStatement("DELETE FROM image_blob WHERE hash = ? AND orphaned < ? "
+					+ "AND NOT EXISTS (SELECT 1 FROM data WHERE image_hash = ?) "
+					+ "AND NOT EXISTS (SELECT 1 FROM data_archive_image WHERE hash = ?)");
+			PreparedStatement thumbs = connection.prepareStatement("DELETE FROM image_thumb WHERE id LIKE ?");
+			try
+			{
+				for (String hash : expired)
+				{
+					delete.setString(1, hash);
+					delete.setTimestamp(2, new Timestamp(graceStart));
+					delete.setString(3, hash);
+					delete.setString(4, hash);
+					if (delete.executeUpdate() > 0)
+					{
+						thumbs.setString(1, hash + "-%");
+						thumbs.executeUpdate();
+						known.remove(hash);
+						deleted[0]++;
+					}
+				}
+			}
+			finally
+			{
+				delete.close();
+				thumbs.close();
+			}
+		}
+		return last;
+	}
+
+	private static void mark(Connection connection, String sql, List<String> hashes) throws SQLException
+	{
+		if (hashes.isEmpty())
+		{
+			return;
+		}
+		PreparedStatement ps = connection.prepareStatement(sql);
+		try
+		{
+			for (String hash : hashes)
+			{
+				ps.setString(1, hash);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+}
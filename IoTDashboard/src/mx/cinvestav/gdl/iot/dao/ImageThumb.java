@@ -0,0 +1,49 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/**
+ * Thumbnail generated for an image of image_blob, kept so it is resized only once. The id is the
+ * hash of the image followed by the width, e.g. <code>3a7bd3e2...-160</code>.
+ */
+@Entity
+@Table(name = "image_thumb")
+public class ImageThumb
+{
+	@Id
+	@Column(length = 80)
+	private String id;
+
+	@Lob
+	@Column(columnDefinition = "MEDIUMBLOB")
+	private byte[] content;
+
+	public static String id(String hash, int width)
+	{
+		return hash + "-" + width;
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	public void setId(String id)
+	{
+		this.id = id;
+	}
+
+	public byte[] getContent()
+	{
+		return content;
+	}
+
+	public void setContent(byte[] content)
+	{
+		this.content = content;
+	}
+}
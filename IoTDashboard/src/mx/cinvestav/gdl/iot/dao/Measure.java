@@ -7,9 +7,19 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Transient;
+
+import org.hibernate.annotations.Index;
 
 @Entity
 @Table(name = "data")
+// range queries of a sensor; InnoDB appends iddata to the index, so it also serves the
+// (measure_date, iddata) order of the pages. idx_data_sensor_latest reads the latest measures of a
+// sensor in any experiment backwards. image_hash for the sweep of the unreferenced images
+@org.hibernate.annotations.Table(appliesTo = "data", indexes = {
+		@Index(name = "idx_data_sensor_date", columnNames = { "idsensor", "idexperiment", "charted", "measure_date" }),
+		@Index(name = "idx_data_sensor_latest", columnNames = { "idsensor", "measure_date" }),
+		@Index(name = "idx_data_image", columnNames = { "image_hash" }) })
 
 //clase que genera las get y set de Measure
 public class Measure
@@ -19,10 +29,16 @@ public class Measure
 	@Column(name = "iddata")
 	private Integer id;
 	private String measure;
+	// valor numerico de measure, null si el sensor no envia numeros
+	private Double measure_value;
 	private Timestamp measure_date;
 	private Integer idsensor;
 	private Integer idthing;
+	// bytes recibidos con la medicion; se guardan en image_blob y la fila solo guarda su hash
+	@Transient
 	private byte[] image;
+	@Column(length = 64)
+	private String image_hash;
 	private Integer charted;
 	private Integer idexperiment;
 
@@ -46,6 +62,16 @@ public class Measure
 		this.measure = measure;
 	}
 
+	public Double getMeasure_value()
+	{
+		return measure_value;
+	}
+
+	public void setMeasure_value(Double measure_value)
+	{
+		this.measure_value = measure_value;
+	}
+
 	public Timestamp getMeasure_date()
 	{
 		return measure_date;
@@ -86,6 +112,16 @@ public class Measure
 		this.image = image;
 	}
 
+	public String getImage_hash()
+	{
+		return image_hash;
+	}
+
+	public void setImage_hash(String image_hash)
+	{
+		this.image_hash = image_hash;
+	}
+
 	public Integer getCharted()
 	{
 		return charted;
@@ -0,0 +1,107 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * Measures of a sensor in a finished experiment moved out of the data table by the archiver of
+ * {@link ArchiveTimeSeriesStore}, gzip compressed in one part (see {@link MeasureArchiveCodec}),
+ * ordered by date between first_date and last_date included. Parts are never modified afterwards.
+ */
+@Entity
+@Table(name = "data_archive")
+@org.hibernate.annotations.Table(appliesTo = "data_archive", indexes = { @Index(name = "idx_archive_sensor", columnNames = {
+		"idsensor", "idexperiment", "first_date" }) })
+public class MeasureArchive
+{
+	@Id
+	@GeneratedValue
+	private Integer idarchive;
+	private Integer idsensor;
+	private Integer idexperiment;
+	private Timestamp first_date;
+	private Timestamp last_date;
+	private Integer measures;
+
+	@Lob
+	@Column(columnDefinition = "MEDIUMBLOB")
+	private byte[] content;
+
+	public Integer getIdarchive()
+	{
+		return idarchive;
+	}
+
+	public void setIdarchive(Integer idarchive)
+	{
+		this.idarchive = idarchive;
+	}
+
+	public Integer getIdsensor()
+	{
+		return idsensor;
+	}
+
+	public void setIdsensor(Integer idsensor)
+	{
+		this.idsensor = idsensor;
+	}
+
+	public Integer getIdexperiment()
+	{
+		return idexperiment;
+	}
+
+	public void setIdexperiment(Integer idexperiment)
+	{
+		this.idexperiment = idexperiment;
+	}
+
+	public Timestamp getFirst_date()
+	{
+		return first_date;
+	}
+
+	public void setFirst_date(Timestamp first_date)
+	{
+		this.first_date = first_date;
+	}
+
+	public Timestamp getLast_date()
+	{
+		return last_date;
+	}
+
+	public void setLast_date(Timestamp last_date)
+	{
+		this.last_date = last_date;
+	}
+
+	public Integer getMeasures()
+	{
+		return measures;
+	}
+
+	public void setMeasures(Integer measures)
+	{
+		this.measures = measures;
+	}
+
+	public byte[] getContent()
+	{
+		return content;
+	}
+
+	public void setContent(byte[] content)
+	{
+		this.content = content;
+	}
+}
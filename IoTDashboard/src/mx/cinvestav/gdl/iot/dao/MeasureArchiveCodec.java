@@ -0,0 +1,120 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content of a {@link MeasureArchive}: a version byte, then one record per measure, gzip
+ * compressed. A record is the iddata and the date in milliseconds, both as the difference with the
+ * previous record so gzip finds them repeated, a byte telling which of the nullable columns follow
+ * and those columns, the nanoseconds of the date first. idsensor and idexperiment are the ones
+ * of the part; images keep only their hash, the bytes stay in image_blob.
+ */
+class MeasureArchiveCodec
+{
+	private static final int VERSION = 1;
+	private static final int DATE = 1;
+	private static final int MEASURE = 2;
+	private static final int VALUE = 4;
+	private static final int THING = 8;
+	private static final int IMAGE = 16;
+	private static final int CHARTED = 32;
+
+	static byte[] encode(List<Measure> measures) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(bytes, 8192)));
+		out.writeByte(VERSION);
+		int lastId = 0;
+		long lastTime = 0;
+		for (Measure m : measures)
+		{
+			int flags = (m.getMeasure_date() != null ? DATE : 0) | (m.getMeasure() != null ? MEASURE : 0)
+					| (m.getMeasure_value() != null ? VALUE : 0) | (m.getIdthing() != null ? THING : 0)
+					| (m.getImage_hash() != null ? IMAGE : 0) | (m.getCharted() != null ? CHARTED : 0);
+			out.writeInt(m.getId() - lastId);
+			lastId = m.getId();
+			out.writeByte(flags);
+			if (m.getMeasure_date() != null)
+			{
+				out.writeLong(m.getMeasure_date().getTime() - lastTime);
+				lastTime = m.getMeasure_date().getTime();
+				out.writeInt(m.getMeasure_date().getNanos());
+			}
+			if (m.getMeasure() != null) out.writeUTF(m.getMeasure());
+			if (m.getMeasure_value() != null) out.writeDouble(m.getMeasure_value());
+			if (m.getIdthing() != null) out.writeInt(m.getIdthing());
+			if (m.getImage_hash() != null) out.writeUTF(m.getImage_hash());
+			if (m.getCharted() != null) out.writeInt(m.getCharted());
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads the measures of a part one at a time
+	 */
+	static class Reader
+	{
+		private final DataInputStream in;
+		private final Integer idsensor;
+		private final Integer idexperiment;
+		private int lastId;
+		private long lastTime;
+
+		Reader(byte[] content, int idsensor, int idexperiment) throws IOException
+		{
+			this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(content), 8192)));
+			this.idsensor = idsensor;
+			this.idexperiment = idexperiment;
+			int version = in.readUnsignedByte();
+			if (version != VERSION)
+			{
+				throw new IOException("Unknown archive version " + version);
+			}
+		}
+
+		/**
+		 * @return the next measure, null after the last one
+		 */
+		Measure next() throws IOException
+		{
+			Measure m = new Measure();
+			try
+			{
+				lastId += in.readInt();
+				m.setId(lastId);
+			}
+			catch (EOFException e)
+			{
+				return null;
+			}
+			int flags = in.readUnsignedByte();
+			if ((flags & DATE) != 0)
+			{
+				lastTime += in.readLong();
+				Timestamp date = new Timestamp(lastTime);
+				date.setNanos(in.readInt());
+				m.setMeasure_date(date);
+			}
+			if ((flags & MEASURE) != 0) m.setMeasure(in.readUTF());
+			if ((flags & VALUE) != 0) m.setMeasure_value(in.readDouble());
+			if ((flags & THING) != 0) m.setIdthing(in.readInt());
+			if ((flags & IMAGE) != 0) m.setImage_hash(in.readUTF());
+			if ((flags & CHARTED) != 0) m.setCharted(in.readInt());
+			m.setIdsensor(idsensor);
+			m.setIdexperiment(idexperiment);
+			return m;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * An image of image_blob referenced by the measures of an archived part, whose hashes are inside
+ * the compressed content, so the sweep of {@link ImageStore} does not delete it
+ */
+@Entity
+@Table(name = "data_archive_image")
+@org.hibernate.annotations.Table(appliesTo = "data_archive_image", indexes = {
+		@Index(name = "idx_archive_image_hash", columnNames = { "hash" }),
+		@Index(name = "idx_archive_image_part", columnNames = { "idarchive" }) })
+public class MeasureArchiveImage
+{
+	@Id
+	@GeneratedValue
+	private Integer idref;
+	private Integer idarchive;
+	@Column(length = 64)
+	private String hash;
+
+	public Integer getIdref()
+	{
+		return idref;
+	}
+
+	public void setIdref(Integer idref)
+	{
+		this.idref = idref;
+	}
+
+	public Integer getIdarchive()
+	{
+		return idarchive;
+	}
+
+	public void setIdarchive(Integer idarchive)
+	{
+		this.idarchive = idarchive;
+	}
+
+	public String getHash()
+	{
+		return hash;
+	}
+
+	public void setHash(String hash)
+	{
+		this.hash = hash;
+	}
+}
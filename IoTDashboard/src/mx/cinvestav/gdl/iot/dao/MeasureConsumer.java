@@ -0,0 +1,11 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of {@link DAO#streamSensorData} one at a time
+ */
+public interface MeasureConsumer
+{
+	void accept(Measure m) throws IOException;
+}
@@ -0,0 +1,33 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.util.List;
+
+/**
+ * One page of measures of a sensor, ordered by (measure_date, iddata). The cursor is null on the
+ * last page; otherwise it is passed back to get the next one.
+ */
+public class MeasurePage
+{
+	private List<Measure> measures;
+	private String nextCursor;
+
+	public List<Measure> getMeasures()
+	{
+		return measures;
+	}
+
+	public void setMeasures(List<Measure> measures)
+	{
+		this.measures = measures;
+	}
+
+	public String getNextCursor()
+	{
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor)
+	{
+		this.nextCursor = nextCursor;
+	}
+}
@@ -0,0 +1,241 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.io.Serializable;
+import java.sql.Timestamp;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * Aggregate of the numeric charted measures of a sensor and experiment in one time bucket of
+ * 1 minute, 1 hour or 1 day (resolution in seconds). The rows are maintained by
+ * {@link DAO#insertMeasures(java.util.List)} in the same transaction as the measures.
+ */
+@Entity
+@Table(name = "data_rollup")
+// hibernate may order the primary key columns by name, the index gives the order of the queries
+@org.hibernate.annotations.Table(appliesTo = "data_rollup", indexes = { @Index(name = "idx_rollup_sensor", columnNames = {
+		"idsensor", "idexperiment", "resolution", "bucket_start" }) })
+@IdClass(MeasureRollup.Key.class)
+public class MeasureRollup
+{
+	public static final int MINUTE = 60;
+	public static final int HOUR = 3600;
+	public static final int DAY = 86400;
+	/**
+	 * Resolutions kept, finest first
+	 */
+	public static final int[] RESOLUTIONS = { MINUTE, HOUR, DAY };
+
+	@Id
+	private Integer idsensor;
+	@Id
+	private Integer idexperiment;
+	@Id
+	private Integer resolution;
+	@Id
+	private Timestamp bucket_start;
+
+	private Long samples;
+	private Double min_value;
+	private Double max_value;
+	private Double sum_value;
+	private Double sumsq_value;
+	private Timestamp first_date;
+	private Double first_value;
+	private Timestamp last_date;
+	private Double last_value;
+
+	public Integer getIdsensor()
+	{
+		return idsensor;
+	}
+
+	public void setIdsensor(Integer idsensor)
+	{
+		this.idsensor = idsensor;
+	}
+
+	public Integer getIdexperiment()
+	{
+		return idexperiment;
+	}
+
+	public void setIdexperiment(Integer idexperiment)
+	{
+		this.idexperiment = idexperiment;
+	}
+
+	public Integer getResolution()
+	{
+		return resolution;
+	}
+
+	public void setResolution(Integer resolution)
+	{
+		this.resolution = resolution;
+	}
+
+	public Timestamp getBucket_start()
+	{
+		return bucket_start;
+	}
+
+	public void setBucket_start(Timestamp bucket_start)
+	{
+		this.bucket_start = bucket_start;
+	}
+
+	public Long getSamples()
+	{
+		return samples;
+	}
+
+	public void setSamples(Long samples)
+	{
+		this.samples = samples;
+	}
+
+	public Double getMin_value()
+	{
+		return min_value;
+	}
+
+	public void setMin_value(Double min_value)
+	{
+		this.min_value = min_value;
+	}
+
+	public Double getMax_value()
+	{
+		return max_value;
+	}
+
+	public void setMax_value(Double max_value)
+	{
+		this.max_value = max_value;
+	}
+
+	public Double getSum_value()
+	{
+		return sum_value;
+	}
+
+	public void setSum_value(Double sum_value)
+	{
+		this.sum_value = sum_value;
+	}
+
+	public Double getSumsq_value()
+	{
+		return sumsq_value;
+	}
+
+	public void setSumsq_value(Double sumsq_value)
+	{
+		this.sumsq_value = sumsq_value;
+	}
+
+	public Timestamp getFirst_date()
+	{
+		return first_date;
+	}
+
+	public void setFirst_date(Timestamp first_date)
+	{
+		this.first_date = first_date;
+	}
+
+	public Double getFirst_value()
+	{
+		return first_value;
+	}
+
+	public void setFirst_value(Double first_value)
+	{
+		this.first_value = first_value;
+	}
+
+	public Timestamp getLast_date()
+	{
+		return last_date;
+	}
+
+	public void setLast_date(Timestamp last_date)
+	{
+		this.last_date = last_date;
+	}
+
+	public Double getLast_value()
+	{
+		return last_value;
+	}
+
+	public void setLast_value(Double last_value)
+	{
+		this.last_value = last_value;
+	}
+
+	public Double getAverage()
+	{
+		return samples == null || samples == 0 ? null : sum_value / samples;
+	}
+
+	/**
+	 * @return population standard deviation of the bucket
+	 */
+	public Double getStddev()
+	{
+		if (samples == null || samples == 0) return null;
+		double avg = sum_value / samples;
+		return Math.sqrt(Math.max(0, sumsq_value / samples - avg * avg));
+	}
+
+	public static class Key implements Serializable
+	{
+		private static final long serialVersionUID = 5398467731009446027L;
+		private Integer idsensor;
+		private Integer idexperiment;
+		private Integer resolution;
+		private Timestamp bucket_start;
+
+		public Key()
+		{
+		}
+
+		public Key(Integer idsensor, Integer idexperiment, Integer resolution, Timestamp bucket_start)
+		{
+			this.idsensor = idsensor;
+			this.idexperiment = idexperiment;
+			this.resolution = resolution;
+			this.bucket_start = bucket_start;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return eq(idsensor, k.idsensor) && eq(idexperiment, k.idexperiment) && eq(resolution, k.resolution)
+					&& eq(bucket_start, k.bucket_start);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = idsensor == null ? 0 : idsensor;
+			h = 31 * h + (idexperiment == null ? 0 : idexperiment);
+			h = 31 * h + (resolution == null ? 0 : resolution);
+			return 31 * h + (bucket_start == null ? 0 : bucket_start.hashCode());
+		}
+
+		private static boolean eq(Object a, Object b)
+		{
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * Numeric charted measures of a sensor, experiment and smart thing compressed in one segment
+ * (see {@link mx.cinvestav.gdl.iot.series.SegmentWriter}), between first_date and last_date
+ * included. Written by the segment engine of {@link TimeSeriesStore} when it flushes the rows of
+ * the data table; segments are never modified afterwards.
+ */
+@Entity
+@Table(name = "data_segment")
+@org.hibernate.annotations.Table(appliesTo = "data_segment", indexes = { @Index(name = "idx_segment_sensor", columnNames = {
+		"idsensor", "idexperiment", "first_date" }) })
+public class MeasureSegment
+{
+	@Id
+	@GeneratedValue
+	private Integer idsegment;
+	private Integer idsensor;
+	private Integer idexperiment;
+	private Integer idthing;
+	private Timestamp first_date;
+	private Timestamp last_date;
+	private Integer points;
+
+	@Lob
+	@Column(columnDefinition = "MEDIUMBLOB")
+	private byte[] content;
+
+	public Integer getIdsegment()
+	{
+		return idsegment;
+	}
+
+	public void setIdsegment(Integer idsegment)
+	{
+		this.idsegment = idsegment;
+	}
+
+	public Integer getIdsensor()
+	{
+		return idsensor;
+	}
+
+	public void setIdsensor(Integer idsensor)
+	{
+		this.idsensor = idsensor;
+	}
+
+	public Integer getIdexperiment()
+	{
+		return idexperiment;
+	}
+
+	public void setIdexperiment(Integer idexperiment)
+	{
+		this.idexperiment = idexperiment;
+	}
+
+	public Integer getIdthing()
+	{
+		return idthing;
+	}
+
+	public void setIdthing(Integer idthing)
+	{
+		this.idthing = idthing;
+	}
+
+	public Timestamp getFirst_date()
+	{
+		return first_date;
+	}
+
+	public void setFirst_date(Timestamp first_date)
+	{
+		this.first_date = first_date;
+	}
+
+	public Timestamp getLast_date()
+	{
+		return last_date;
+	}
+
+	public void setLast_date(Timestamp last_date)
+	{
+		this.last_date = last_date;
+	}
+
+	public Integer getPoints()
+	{
+		return points;
+	}
+
+	public void setPoints(Integer points)
+	{
+		this.points = points;
+	}
+
+	public byte[] getContent()
+	{
+		return content;
+	}
+
+	public void setContent(byte[] content)
+	{
+		this.content = content;
+	}
+}
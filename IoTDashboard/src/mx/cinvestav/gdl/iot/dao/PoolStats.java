@@ -0,0 +1,108 @@
+package mx.cinvestav.gdl.iot.dao;
+
+/**
+ * Metrics of the database connection pool. Active connections are in use by a request; waits
+ * counts the requests that found no free connection, and timeouts those that gave up.
+ */
+public class PoolStats
+{
+	private int size;
+	private int idle;
+	private int active;
+	private long created;
+	private long closed;
+	private long borrowed;
+	private long waits;
+	private long avgWaitMs;
+	private long timeouts;
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	public void setSize(int size)
+	{
+		this.size = size;
+	}
+
+	public int getIdle()
+	{
+		return idle;
+	}
+
+	public void setIdle(int idle)
+	{
+		this.idle = idle;
+	}
+
+	public int getActive()
+	{
+		return active;
+	}
+
+	public void setActive(int active)
+	{
+		this.active = active;
+	}
+
+	public long getCreated()
+	{
+		return created;
+	}
+
+	public void setCreated(long created)
+	{
+		this.created = created;
+	}
+
+	public long getClosed()
+	{
+		return closed;
+	}
+
+	public void setClosed(long closed)
+	{
+		this.closed = closed;
+	}
+
+	public long getBorrowed()
+	{
+		return borrowed;
+	}
+
+	public void setBorrowed(long borrowed)
+	{
+		this.borrowed = borrowed;
+	}
+
+	public long getWaits()
+	{
+		return waits;
+	}
+
+	public void setWaits(long waits)
+	{
+		this.waits = waits;
+	}
+
+	public long getAvgWaitMs()
+	{
+		return avgWaitMs;
+	}
+
+	public void setAvgWaitMs(long avgWaitMs)
+	{
+		this.avgWaitMs = avgWaitMs;
+	}
+
+	public long getTimeouts()
+	{
+		return timeouts;
+	}
+
+	public void setTimeouts(long timeouts)
+	{
+		this.timeouts = timeouts;
+	}
+}
@@ -0,0 +1,319 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hibernate.HibernateException;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.Stoppable;
+
+/**
+ * Bounded JDBC connection pool for hibernate, set as hibernate.connection.provider_class. At most
+ * <code>iot.db.pool.size</code> connections are open; a caller that finds none free waits up to
+ * <code>iot.db.pool.timeout.ms</code>. Idle connections are reused newest first, and one idle for
+ * more than <code>iot.db.pool.validate.ms</code> is checked with a query before it is handed out,
+ * since Cloud SQL closes connections that stay idle.
+ */
+public class PooledConnectionProvider implements ConnectionProvider, Configurable, Stoppable
+{
+	private static final long serialVersionUID = -5190420866264720497L;
+	private static final String SIZE = "iot.db.pool.size";
+	private static final String TIMEOUT_MS = "iot.db.pool.timeout.ms";
+	private static final String VALIDATE_MS = "iot.db.pool.validate.ms";
+	private static final int DEFAULT_SIZE = 10;
+	private static final long DEFAULT_TIMEOUT_MS = 10000;
+	private static final long DEFAULT_VALIDATE_MS = 30000;
+	// waiters look again for a permit released by a broken connection this often
+	private static final long POLL_MS = 100;
+
+	private static final Logger logger = Logger.getLogger(PooledConnectionProvider.class.getName());
+
+	private static volatile PooledConnectionProvider current;
+
+	private String url;
+	private final Properties info = new Properties();
+	private boolean autocommit;
+	private int size;
+	private long timeoutMs;
+	private long validateMs;
+	private Semaphore permits;
+	private final LinkedBlockingDeque<Idle> idle = new LinkedBlockingDeque<>();
+	private volatile boolean stopped = false;
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong closed = new AtomicLong();
+	private final AtomicLong borrowed = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong waitMs = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/**
+	 * @return the pool of the entity manager factory, null if hibernate does not use this provider
+	 */
+	static PooledConnectionProvider current()
+	{
+		return current;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void configure(Map settings)
+	{
+		url = setting(settings, "hibernate.connection.url", "javax.persistence.jdbc.url");
+		String driver = setting(settings, "hibernate.connection.driver_class", "javax.persistence.jdbc.driver");
+		String user = setting(settings, "hibernate.connection.username", "javax.persistence.jdbc.user");
+		String password = setting(settings, "hibernate.connection.password", "javax.persistence.jdbc.password");
+		if (url == null)
+		{
+			throw new HibernateException("No JDBC url configured");
+		}
+		if (user != null)
+		{
+			info.setProperty("user", user);
+		}
+		if (password != null)
+		{
+			info.setProperty("password", password);
+		}
+		autocommit = Boolean.parseBoolean(setting(settings, "hibernate.connection.autocommit", null));
+		try
+		{
+			if (driver != null)
+			{
+				Class.forName(driver);
+			}
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new HibernateException("JDBC driver not found: " + driver);
+		}
+		size = Math.max(1, Integer.getInteger(SIZE, DEFAULT_SIZE));
+		timeoutMs = Long.getLong(TIMEOUT_MS, DEFAULT_TIMEOUT_MS);
+		validateMs = Long.getLong(VALIDATE_MS, DEFAULT_VALIDATE_MS);
+		permits = new Semaphore(size);
+		current = this;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException
+	{
+		long start = System.currentTimeMillis();
+		long deadline = start + timeoutMs;
+		boolean waited = false;
+		while (!stopped)
+		{
+			Idle candidate = idle.pollFirst();
+			if (candidate != null)
+			{
+				if (System.currentTimeMillis() - candidate.since < validateMs || isValid(candidate.connection))
+				{
+					return borrow(candidate.connection, waited, start);
+				}
+				discard(candidate.connection);
+				continue;
+			}
+			if (permits.tryAcquire())
+			{
+				try
+				{
+					Connection connection = DriverManager.getConnection(url, info);
+					connection.setAutoCommit(autocommit);
+					created.incrementAndGet();
+					return borrow(connection, waited, start);
+				}
+				catch (SQLException | RuntimeException e)
+				{
+					permits.release();
+					throw e;
+				}
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+			{
+				timeouts.incrementAndGet();
+				throw new SQLException("No database connection available after " + timeoutMs + " ms, pool size "
+						+ size);
+			}
+			waited = true;
+			try
+			{
+				candidate = idle.pollFirst(Math.min(remaining, POLL_MS), TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted waiting for a database connection");
+			}
+			if (candidate != null)
+			{
+				// handed back by another thread a moment ago
+				idle.offerFirst(candidate);
+			}
+		}
+		throw new SQLException("Connection pool is stopped");
+	}
+
+	@Override
+	public void closeConnection(Connection connection) throws SQLException
+	{
+		if (stopped || connection.isClosed())
+		{
+			discard(connection);
+			return;
+		}
+		idle.offerFirst(new Idle(connection));
+	}
+
+	@Override
+	public boolean supportsAggressiveRelease()
+	{
+		return false;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public boolean isUnwrappableAs(Class unwrapType)
+	{
+		return ConnectionProvider.class.equals(unwrapType) || PooledConnectionProvider.class.isAssignableFrom(unwrapType);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T unwrap(Class<T> unwrapType)
+	{
+		if (isUnwrappableAs(unwrapType))
+		{
+			return (T) this;
+		}
+		throw new HibernateException("Cannot unwrap " + getClass().getName() + " as " + unwrapType.getName());
+	}
+
+	@Override
+	public void stop()
+	{
+		stopped = true;
+		for (Idle i = idle.pollFirst(); i != null; i = idle.pollFirst())
+		{
+			discard(i.connection);
+		}
+		if (current == this)
+		{
+			current = null;
+		}
+	}
+
+	/**
+	 * Opens connections until count are idle, so the first requests do not pay for them
+	 */
+	void prefill(int count) throws SQLException
+	{
+		int missing = Math.min(count, size) - idle.size();
+		Connection[] opened = new Connection[Math.max(0, missing)];
+		try
+		{
+			for (int i = 0; i < opened.length; i++)
+			{
+				opened[i] = getConnection();
+			}
+		}
+		finally
+		{
+			for (Connection c : opened)
+			{
+				if (c != null)
+				{
+					closeConnection(c);
+				}
+			}
+		}
+	}
+
+	PoolStats getStats()
+	{
+		PoolStats stats = new PoolStats();
+		stats.setSize(size);
+		stats.setIdle(idle.size());
+		stats.setActive(size - permits.availablePermits() - idle.size());
+		stats.setCreated(created.get());
+		stats.setClosed(closed.get());
+		stats.setBorrowed(borrowed.get());
+		stats.setWaits(waits.get());
+		long w = waits.get();
+		stats.setAvgWaitMs(w == 0 ? 0 : waitMs.get() / w);
+		stats.setTimeouts(timeouts.get());
+		return stats;
+	}
+
+	private Connection borrow(Connection connection, boolean waited, long start)
+	{
+		borrowed.incrementAndGet();
+		if (waited)
+		{
+			waits.incrementAndGet();
+			waitMs.addAndGet(System.currentTimeMillis() - start);
+		}
+		return connection;
+	}
+
+	private boolean isValid(Connection connection)
+	{
+		// Connector/J 5.0 predates Connection.isValid
+		try (Statement st = connection.createStatement())
+		{
+			st.execute("SELECT 1");
+			return true;
+		}
+		catch (SQLException e)
+		{
+			logger.log(Level.FINE, "Discarding broken pooled connection", e);
+			return false;
+		}
+	}
+
+	private void discard(Connection connection)
+	{
+		try
+		{
+			connection.close();
+		}
+		catch (SQLException e)
+		{
+			logger.log(Level.FINE, "Exception closing pooled connection", e);
+		}
+		closed.incrementAndGet();
+		permits.release();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static String setting(Map settings, String key, String fallback)
+	{
+		Object value = settings.get(key);
+		if (value == null && fallback != null)
+		{
+			value = settings.get(fallback);
+		}
+		return value == null ? null : value.toString();
+	}
+
+	private static class Idle
+	{
+		private final Connection connection;
+		private final long since = System.currentTimeMillis();
+
+		Idle(Connection connection)
+		{
+			this.connection = connection;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of the registry queries of DAO (controllers, smart things, sensors, experiments, sensor
+ * types and their properties), which change rarely and are read by every page. A result is kept per entity
+ * class and id (null for the full list) or parent id for properties. The cache is cleared whenever
+ * DAO stores or deletes one of these entities, and entries expire after
+ * <code>iot.cache.registry.ttl</code> milliseconds so changes made through other instances are
+ * eventually seen. The cached entities are detached and shared: callers must not modify them.
+ */
+class RegistryCache
+{
+	private static final String TTL = "iot.cache.registry.ttl";
+	private static final long DEFAULT_TTL = 60000;
+	private static final Set<Class<?>> CACHED = new HashSet<Class<?>>(Arrays.asList(Controller.class,
+			SmartThing.class, Sensor.class, Experiment.class, SensorType.class, ControllerProperty.class,
+			SmartThingProperty.class, SensorProperty.class));
+
+	private static final ConcurrentMap<Key, Entry> cache = new ConcurrentHashMap<>();
+	private static final AtomicLong generation = new AtomicLong();
+
+	static boolean isCached(Class<?> entityClass)
+	{
+		return CACHED.contains(entityClass);
+	}
+
+	/**
+	 * @return a copy of the cached result, or null if it is unknown or expired
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> List<T> get(Class<T> entityClass, Integer id)
+	{
+		Key key = new Key(entityClass, id);
+		Entry e = cache.get(key);
+		if (e == null)
+		{
+			return null;
+		}
+		if (e.expires < System.currentTimeMillis())
+		{
+			cache.remove(key, e);
+			return null;
+		}
+		return new ArrayList<>((List<T>) e.result);
+	}
+
+	/**
+	 * Generation to pass to {@link #put(Class, Integer, List, long)}; read it before querying the
+	 * database.
+	 */
+	static long generation()
+	{
+		return generation.get();
+	}
+
+	/**
+	 * Stores a result read from the database, unless the cache was invalidated since the
+	 * generation was read.
+	 */
+	static void put(Class<?> entityClass, Integer id, List<?> result, long readGeneration)
+	{
+		long ttl = Long.getLong(TTL, DEFAULT_TTL);
+		Key key = new Key(entityClass, id);
+		cache.put(key, new Entry(new ArrayList<Object>(result), System.currentTimeMillis() + ttl));
+		if (generation.get() != readGeneration)
+		{
+			cache.remove(key);
+		}
+	}
+
+	/**
+	 * Clears the cache if the class is cached; a change to one entity can change the lists and
+	 * properties of the others, and changes are rare, so everything is dropped.
+	 */
+	static void invalidate(Class<?> entityClass)
+	{
+		if (isCached(entityClass))
+		{
+			generation.incrementAndGet();
+			cache.clear();
+		}
+	}
+
+	private static class Key
+	{
+		private final Class<?> entityClass;
+		private final Integer id;
+
+		Key(Class<?> entityClass, Integer id)
+		{
+			this.entityClass = entityClass;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return entityClass.equals(k.entityClass) && (id == null ? k.id == null : id.equals(k.id));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * entityClass.hashCode() + (id == null ? 0 : id.hashCode());
+		}
+	}
+
+	private static class Entry
+	{
+		private final List<?> result;
+		private final long expires;
+
+		Entry(List<?> result, long expires)
+		{
+			this.result = result;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Accumulates measures into the buckets of data_rollup and merges them into the table with one
+ * upsert per bucket. Buckets are written in key order so concurrent transactions lock the same
+ * rows in the same order.
+ */
+class RollupAggregator
+{
+	private static final String UPSERT = "INSERT INTO data_rollup (idsensor, idexperiment, resolution, bucket_start, samples, "
+			+ "min_value, max_value, sum_value, sumsq_value, first_date, first_value, last_date, last_value) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE "
+			+ "samples = samples + VALUES(samples), min_value = LEAST(min_value, VALUES(min_value)), "
+			+ "max_value = GREATEST(max_value, VALUES(max_value)), sum_value = sum_value + VALUES(sum_value), "
+			+ "sumsq_value = sumsq_value + VALUES(sumsq_value), "
+			// assignments are applied left to right: values before dates
+			+ "first_value = IF(VALUES(first_date) < first_date, VALUES(first_value), first_value), "
+			+ "first_date = LEAST(first_date, VALUES(first_date)), "
+			+ "last_value = IF(VALUES(last_date) >= last_date, VALUES(last_value), last_value), "
+			+ "last_date = GREATEST(last_date, VALUES(last_date))";
+
+	private final Map<Key, Bucket> buckets = new TreeMap<>();
+
+	void add(int idsensor, int idexperiment, long time, double value)
+	{
+		for (int resolution : MeasureRollup.RESOLUTIONS)
+		{
+			Key key = new Key(idsensor, idexperiment, resolution, bucketStart(time, resolution));
+			Bucket b = buckets.get(key);
+			if (b == null)
+			{
+				b = new Bucket(time, value);
+				buckets.put(key, b);
+			}
+			else
+			{
+				b.add(time, value);
+			}
+		}
+	}
+
+	boolean isEmpty()
+	{
+		return buckets.isEmpty();
+	}
+
+	void write(Connection connection, int batchSize) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement(UPSERT);
+		try
+		{
+			int pending = 0;
+			for (Map.Entry<Key, Bucket> e : buckets.entrySet())
+			{
+				Key k = e.getKey();
+				Bucket b = e.getValue();
+				ps.setInt(1, k.idsensor);
+				ps.setInt(2, k.idexperiment);
+				ps.setInt(3, k.resolution);
+				ps.setTimestamp(4, new Timestamp(k.start));
+				ps.setLong(5, b.samples);
+				ps.setDouble(6, b.min);
+				ps.setDouble(7, b.max);
+				ps.setDouble(8, b.sum);
+				ps.setDouble(9, b.sumsq);
+				ps.setTimestamp(10, new Timestamp(b.firstTime));
+				ps.setDouble(11, b.firstValue);
+				ps.setTimestamp(12, new Timestamp(b.lastTime));
+				ps.setDouble(13, b.lastValue);
+				ps.addBatch();
+				if (++pending == batchSize)
+				{
+					ps.executeBatch();
+					pending = 0;
+				}
+			}
+			if (pending > 0)
+			{
+				ps.executeBatch();
+			}
+		}
+		finally
+		{
+			ps.close();
+		}
+		buckets.clear();
+	}
+
+	/**
+	 * @return start of the bucket of the resolution that holds the time, in milliseconds
+	 */
+	static long bucketStart(long time, int resolution)
+	{
+		long size = resolution * 1000L;
+		return time - ((time % size) + size) % size;
+	}
+
+	private static class Key implements Comparable<Key>
+	{
+		private final int idsensor;
+		private final int idexperiment;
+		private final int resolution;
+		private final long start;
+
+		Key(int idsensor, int idexperiment, int resolution, long start)
+		{
+			this.idsensor = idsensor;
+			this.idexperiment = idexperiment;
+			this.resolution = resolution;
+			this.start = start;
+		}
+
+		@Override
+		public int compareTo(Key o)
+		{
+			// same order as idx_rollup_sensor
+			if (idsensor != o.idsensor) return idsensor < o.idsensor ? -1 : 1;
+			if (idexperiment != o.idexperiment) return idexperiment < o.idexperiment ? -1 : 1;
+			if (resolution != o.resolution) return resolution < o.resolution ? -1 : 1;
+			return start < o.start ? -1 : start == o.start ? 0 : 1;
+		}
+	}
+
+	private static class Bucket
+	{
+		private long samples;
+		private double min;
+		private double max;
+		private double sum;
+		private double sumsq;
+		private long firstTime;
+		private double firstValue;
+		private long lastTime;
+		private double lastValue;
+
+		Bucket(long time, double value)
+		{
+			samples = 1;
+			min = max = sum = value;
+			sumsq = value * value;
+			firstTime = lastTime = time;
+			firstValue = lastValue = value;
+		}
+
+		void add(long time, double value)
+		{
+			samples++;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sum += value;
+			sumsq += value * value;
+			if (time < firstTime)
+			{
+				firstTime = time;
+				firstValue = value;
+			}
+			if (time >= lastTime)
+			{
+				lastTime = time;
+				lastValue = value;
+			}
+		}
+	}
+}
@@ -0,0 +1,421 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import mx.cinvestav.gdl.iot.series.SegmentReader;
+
+/**
+ * Local copy of the segments of each series, one file per (idsensor, idexperiment) in
+ * <code>iot.tsdb.cache.dir</code>, read through a read-only memory mapping. The file starts with
+ * an index of its segments ordered by first date, with the time range and the minimum and
+ * maximum of each one, so a range query binary-searches the index and decodes only the segments
+ * it touches, from the mapping, without copying them to the heap.
+ * <p>
+ * Segments are immutable, so a file is only out of date when segments are added or removed. Each
+ * use compares the number of segments and the last idsegment of the series with data_segment and
+ * rewrites the file when they changed; the new file replaces the old one atomically and readers
+ * of the old mapping are not disturbed. Needs a writable local disk, which the standard App
+ * Engine environment does not provide.
+ */
+class SegmentFileCache
+{
+	static final String CACHE_DIR = "iot.tsdb.cache.dir";
+	private static final int MAGIC = 0x494f5453;
+	private static final int HEADER_BYTES = 16;
+	private static final int ENTRY_BYTES = 64;
+	private static final int NO_THING = Integer.MIN_VALUE;
+
+	private static final ConcurrentMap<String, SegmentFile> files = new ConcurrentHashMap<>();
+
+	static boolean isEnabled()
+	{
+		String dir = System.getProperty(CACHE_DIR);
+		return dir != null && !dir.isEmpty();
+	}
+
+	/**
+	 * The file of a series, brought up to date with data_segment first
+	 */
+	static SegmentFile get(Connection connection, int idsensor, int idexperiment) throws SQLException, IOException
+	{
+		String key = idsensor + "-" + idexperiment;
+		int[] current = getVersion(connection, idsensor, idexperiment);
+		SegmentFile file = files.get(key);
+		if (file != null && file.isVersion(current))
+		{
+			return file;
+		}
+		synchronized (SegmentFileCache.class)
+		{
+			file = files.get(key);
+			if (file == null)
+			{
+				// a file written before this instance started
+				file = map(getPath(key));
+			}
+			if (file == null || !file.isVersion(current))
+			{
+				file = update(connection, idsensor, idexperiment, key, file, current);
+			}
+			files.put(key, file);
+			return file;
+		}
+	}
+
+	/**
+	 * @return number of segments and last idsegment of the series
+	 */
+	private static int[] getVersion(Connection connection, int idsensor, int idexperiment) throws SQLException
+	{
+		PreparedStatement ps = connection
+				.prepareStatement("SELECT COUNT(*), MAX(idsegment) FROM data_segment WHERE idsensor=? AND idexperiment=?");
+		try
+		{
+			ps.setInt(1, idsensor);
+			ps.setInt(2, idexperiment);
+			java.sql.ResultSet rs = ps.executeQuery();
+			rs.next();
+			int[] version = { rs.getInt(1), rs.getInt(2) };
+			rs.close();
+			return version;
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * Adds the segments stored after the ones of the file, or reads all of them again if some were
+	 * removed, and writes the new file
+	 */
+	private static SegmentFile update(Connection connection, int idsensor, int idexperiment, String key,
+			SegmentFile old, int[] version) throws SQLException, IOException
+	{
+		List<Entry> entries = new ArrayList<>();
+		int after = 0;
+		if (old != null && old.maxIdsegment <= version[1])
+		{
+			for (int i = 0; i < old.count; i++)
+			{
+				entries.add(old.entry(i));
+			}
+			after = old.maxIdsegment;
+		}
+		readSegments(connection, idsensor, idexperiment, after, entries);
+		if (entries.size() != version[0])
+		{
+			entries.clear();
+			readSegments(connection, idsensor, idexperiment, 0, entries);
+		}
+		Collections.sort(entries, new Comparator<Entry>()
+		{
+			@Override
+			public int compare(Entry a, Entry b)
+			{
+				return Long.compare(a.first, b.first);
+			}
+		});
+		Path path = getPath(key);
+		write(path, entries, version[1]);
+		return map(path);
+	}
+
+	private static void readSegments(Connection connection, int idsensor, int idexperiment, int after,
+			List<Entry> entries) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement("SELECT idthing, content FROM data_segment "
+				+ "WHERE idsensor=? AND idexperiment=? AND idsegment > ?");
+		try
+		{
+			ps.setInt(1, idsensor);
+			ps.setInt(2, idexperiment);
+			ps.setInt(3, after);
+			java.sql.ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				int idthing = rs.getInt(1);
+				byte[] content = rs.getBytes(2);
+				entries.add(Entry.summarize(ByteBuffer.wrap(content), 0, content.length, rs.wasNull() ? NO_THING
+						: idthing));
+			}
+			rs.close();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	private static void write(Path path, List<Entry> entries, int maxIdsegment) throws IOException
+	{
+		ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + entries.size() * ENTRY_BYTES);
+		index.putInt(MAGIC).putInt(entries.size()).putInt(maxIdsegment).putInt(0);
+		long offset = index.capacity();
+		for (Entry e : entries)
+		{
+			index.putLong(e.first).putLong(e.last).putLong(e.minTime).putDouble(e.min).putLong(e.maxTime)
+					.putDouble(e.max).putLong(offset).putInt(e.length).putInt(e.idthing);
+			offset += e.length;
+		}
+		index.flip();
+		File dir = path.getParent().toFile();
+		dir.mkdirs();
+		Path tmp = File.createTempFile(path.getFileName().toString(), ".tmp", dir).toPath();
+		try
+		{
+			FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+			try
+			{
+				writeFully(channel, index);
+				for (Entry e : entries)
+				{
+					ByteBuffer segment = e.buffer.duplicate();
+					segment.limit(e.offset + e.length).position(e.offset);
+					writeFully(channel, segment);
+				}
+				channel.force(false);
+			}
+			finally
+			{
+				channel.close();
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * @return the mapped file, null if it does not exist or is not a segment file
+	 */
+	private static SegmentFile map(Path path) throws IOException
+	{
+		if (!Files.exists(path))
+		{
+			return null;
+		}
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try
+		{
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+			{
+				return null;
+			}
+			return new SegmentFile(buffer);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	private static Path getPath(String key)
+	{
+		return new File(System.getProperty(CACHE_DIR), key + ".seg").toPath();
+	}
+
+	/**
+	 * A segment and its summary
+	 */
+	private static class Entry
+	{
+		long first;
+		long last;
+		long minTime;
+		double min;
+		long maxTime;
+		double max;
+		ByteBuffer buffer;
+		int offset;
+		int length;
+		int idthing;
+
+		/**
+		 * Decodes the segment once to get its range, minimum and maximum, the way
+		 * MinMaxDownsampler keeps them
+		 */
+		static Entry summarize(ByteBuffer buffer, int offset, int length, int idthing)
+		{
+			Entry e = new Entry();
+			e.buffer = buffer;
+			e.offset = offset;
+			e.length = length;
+			e.idthing = idthing;
+			SegmentReader reader = new SegmentReader(buffer, offset, length);
+			boolean first = true;
+			while (reader.next())
+			{
+				long time = reader.time();
+				double value = reader.value();
+				if (first)
+				{
+					e.first = e.minTime = e.maxTime = time;
+					e.min = e.max = value;
+					first = false;
+				}
+				if (value < e.min)
+				{
+					e.min = value;
+					e.minTime = time;
+				}
+				if (value > e.max)
+				{
+					e.max = value;
+					e.maxTime = time;
+				}
+				e.last = time;
+			}
+			return e;
+		}
+	}
+
+	/**
+	 * A mapped segment file. The index is read into arrays when it is mapped, the segments are
+	 * read from the mapping.
+	 */
+	static class SegmentFile
+	{
+		final int count;
+		final int maxIdsegment;
+		private final ByteBuffer buffer;
+		private final long[] first;
+		private final long[] last;
+		// greatest last date of the segments up to each one, the first date order does not sort them
+		private final long[] lastUpTo;
+
+		SegmentFile(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+			this.count = buffer.getInt(4);
+			this.maxIdsegment = buffer.getInt(8);
+			this.first = new long[count];
+			this.last = new long[count];
+			this.lastUpTo = new long[count];
+			for (int i = 0; i < count; i++)
+			{
+				first[i] = buffer.getLong(entry(i, 0));
+				last[i] = buffer.getLong(entry(i, 8));
+				lastUpTo[i] = i == 0 ? last[i] : Math.max(lastUpTo[i - 1], last[i]);
+			}
+		}
+
+		boolean isVersion(int[] version)
+		{
+			return count == version[0] && maxIdsegment == version[1];
+		}
+
+		/**
+		 * @return the first segment that may have points at or after the given time, count if none
+		 */
+		int search(long from)
+		{
+			int low = 0;
+			int high = count;
+			while (low < high)
+			{
+				int middle = (low + high) >>> 1;
+				if (lastUpTo[middle] < from)
+				{
+					low = middle + 1;
+				}
+				else
+				{
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		long first(int i)
+		{
+			return first[i];
+		}
+
+		long last(int i)
+		{
+			return last[i];
+		}
+
+		long minTime(int i)
+		{
+			return buffer.getLong(entry(i, 16));
+		}
+
+		double min(int i)
+		{
+			return buffer.getDouble(entry(i, 24));
+		}
+
+		long maxTime(int i)
+		{
+			return buffer.getLong(entry(i, 32));
+		}
+
+		double max(int i)
+		{
+			return buffer.getDouble(entry(i, 40));
+		}
+
+		Integer idthing(int i)
+		{
+			int idthing = buffer.getInt(entry(i, 60));
+			return idthing == NO_THING ? null : idthing;
+		}
+
+		SegmentReader reader(int i)
+		{
+			return new SegmentReader(buffer, (int) buffer.getLong(entry(i, 48)), buffer.getInt(entry(i, 56)));
+		}
+
+		private Entry entry(int i)
+		{
+			Entry e = new Entry();
+			e.first = first[i];
+			e.last = last[i];
+			e.minTime = minTime(i);
+			e.min = min(i);
+			e.maxTime = maxTime(i);
+			e.max = max(i);
+			e.buffer = buffer;
+			e.offset = (int) buffer.getLong(entry(i, 48));
+			e.length = buffer.getInt(entry(i, 56));
+			e.idthing = buffer.getInt(entry(i, 60));
+			return e;
+		}
+
+		private static int entry(int i, int field)
+		{
+			return HEADER_BYTES + i * ENTRY_BYTES + field;
+		}
+	}
+}
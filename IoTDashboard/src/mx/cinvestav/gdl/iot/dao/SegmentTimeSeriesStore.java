@@ -0,0 +1,723 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import mx.cinvestav.gdl.iot.series.MinMaxDownsampler;
+import mx.cinvestav.gdl.iot.series.PointConsumer;
+import mx.cinvestav.gdl.iot.series.SegmentReader;
+import mx.cinvestav.gdl.iot.series.SegmentWriter;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+/**
+ * Keeps the numeric history of each (idsensor, idexperiment) in immutable compressed segments of
+ * the data_segment table. New measures are stored as rows of the data table, which act as the
+ * mutable head of the series, and are flushed to segments:
+ * <ul>
+ * <li>by size, when this instance has stored <code>iot.tsdb.segment.points</code> measures of a
+ * series since its last flush; only full segments are written</li>
+ * <li>by time, when {@link #flush(Timestamp)} is called (by the /tasks/tsdb/flush cron) for the
+ * rows older than <code>iot.tsdb.head.ms</code></li>
+ * </ul>
+ * A flushed row must be charted, numeric, without image and with the text {@link SegmentWriter#format(double)}
+ * gives its value, so it can be rebuilt exactly; other rows stay in the data table. Measures
+ * read from a segment have no iddata.
+ * <p>
+ * Reads merge the segments and the rows of a series by date, the points of a segment before the
+ * rows of the same date and the segments of a date in idsegment order, so a page cursor can tell a
+ * point by its position among the points of its date. The segments are read from the mapped files
+ * of {@link SegmentFileCache} when <code>iot.tsdb.cache.dir</code> is set. Otherwise only the dates
+ * of the segments are listed first and the range is read in windows of whole clusters of
+ * overlapping segments, about {@link #WINDOW_POINTS} points each: the content of the segments of
+ * a window is fetched and then the rows of the window are streamed, so the heap holds the segments
+ * of one window at a time. getLatestMeasures and the migrations read the data table only.
+ */
+class SegmentTimeSeriesStore implements TimeSeriesStore
+{
+	static final String SEGMENT_POINTS = "iot.tsdb.segment.points";
+	static final int DEFAULT_SEGMENT_POINTS = 4096;
+	static final String HEAD_MS = "iot.tsdb.head.ms";
+	static final long DEFAULT_HEAD_MS = 3600000;
+
+	private static final String FLUSH_COLUMNS = "iddata, measure, measure_value, measure_date, idthing";
+	private static final String FLUSHABLE = "charted=1 AND measure_value IS NOT NULL AND image_hash IS NULL";
+	private static final String INSERT_SEGMENT = "INSERT INTO data_segment (idsensor, idexperiment, idthing, first_date, last_date, points, content) VALUES (?, ?, ?, ?, ?, ?, ?)";
+	// points of the segments read from data_segment before the rows of a window are read
+	private static final int WINDOW_POINTS = 65536;
+	private static final Logger logger = Logger.getLogger(SegmentTimeSeriesStore.class.getName());
+
+	// measures stored by this instance since the last flush of each series, "idsensor.idexperiment"
+	private final ConcurrentMap<String, AtomicInteger> appended = new ConcurrentHashMap<>();
+
+	@Override
+	public void append(List<Measure> measures) throws DatabaseException
+	{
+		DAO.insertRows(measures);
+		int segmentPoints = getSegmentPoints();
+		List<String> full = new ArrayList<>();
+		for (Measure m : measures)
+		{
+			if (m.getIdsensor() == null || m.getIdexperiment() == null || m.getMeasure_value() == null)
+			{
+				continue;
+			}
+			String series = m.getIdsensor() + "." + m.getIdexperiment();
+			AtomicInteger count = appended.get(series);
+			if (count == null)
+			{
+				AtomicInteger created = new AtomicInteger();
+				count = appended.putIfAbsent(series, created);
+				if (count == null) count = created;
+			}
+			if (count.incrementAndGet() == segmentPoints)
+			{
+				full.add(series);
+			}
+		}
+		for (String series : full)
+		{
+			appended.remove(series);
+			String[] key = series.split("\\.");
+			try
+			{
+				flushSeries(Integer.parseInt(key[0]), Integer.parseInt(key[1]), null);
+			}
+			catch (DatabaseException e)
+			{
+				// the measures are stored, the cron flushes them later
+				logger.log(Level.WARNING, "Could not flush series " + series, e);
+			}
+		}
+	}
+
+	@Override
+	public void scan(Connection connection, int idsensor, int idexperiment, Timestamp from, final Timestamp to,
+			final MeasureConsumer consumer) throws SQLException, IOException
+	{
+		for (Window w : listSegments(connection, idsensor, idexperiment, from, to, null))
+		{
+			// the segments are read before the rows, Connector/J cannot run a query while it streams another
+			final PriorityQueue<SegmentCursor> segments = w.open(connection, idsensor, idexperiment, from, to);
+			DAO.scanRows(connection, idsensor, idexperiment, w.from, w.to, new MeasureConsumer()
+			{
+				@Override
+				public void accept(Measure m) throws IOException
+				{
+					if (m.getMeasure_date() != null)
+					{
+						emit(segments, m.getMeasure_date().getTime(), to, consumer);
+					}
+					consumer.accept(m);
+				}
+			});
+			emit(segments, Long.MAX_VALUE, to, consumer);
+		}
+	}
+
+	/**
+	 * Merges the points of the segments and of the rows straight into the sampler, without a
+	 * Measure per point. With the file cache, a segment that falls in one bucket of the sampler is
+	 * not decoded: its minimum and maximum, kept in the index, are enough.
+	 */
+	@Override
+	public void sample(Connection connection, int idsensor, int idexperiment, Timestamp from, final Timestamp to,
+			final MinMaxDownsampler sampler) throws SQLException
+	{
+		for (Window w : listSegments(connection, idsensor, idexperiment, from, to, sampler))
+		{
+			final PriorityQueue<SegmentCursor> segments = w.open(connection, idsensor, idexperiment, from, to);
+			DAO.sampleRows(connection, idsensor, idexperiment, w.from, w.to, new PointConsumer()
+			{
+				@Override
+				public void add(long time, double value)
+				{
+					emit(segments, time, to, sampler);
+					sampler.add(time, value);
+				}
+			});
+			emit(segments, Long.MAX_VALUE, to, sampler);
+		}
+	}
+
+	@Override
+	public Timestamp[] getRange(Connection connection, int idexperiment, List<Integer> idsensors) throws SQLException
+	{
+		Timestamp[] range = DAO.getRowRange(connection, idexperiment, idsensors);
+		StringBuilder sql = new StringBuilder(
+				"SELECT MIN(first_date), MAX(last_date) FROM data_segment WHERE idexperiment=? AND idsensor IN (");
+		for (int i = 0; i < idsensors.size(); i++)
+		{
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		PreparedStatement ps = connection.prepareStatement(sql.append(')').toString());
+		try
+		{
+			ps.setInt(1, idexperiment);
+			int index = 2;
+			for (Integer idsensor : idsensors)
+			{
+				ps.setInt(index++, idsensor);
+			}
+			java.sql.ResultSet rs = ps.executeQuery();
+			rs.next();
+			Timestamp first = rs.getTimestamp(1);
+			Timestamp last = rs.getTimestamp(2);
+			rs.close();
+			if (first != null && (range[0] == null || first.before(range[0]))) range[0] = first;
+			if (last != null && (range[1] == null || last.after(range[1]))) range[1] = last;
+			return range;
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	@Override
+	public MeasurePage getPage(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			Object[] after, int limit) throws SQLException
+	{
+		return DAO.scanPage(connection, this, idsensor, idexperiment, from, to, after, limit);
+	}
+
+	@Override
+	public long flush(Timestamp before) throws DatabaseException
+	{
+		final List<int[]> series = new ArrayList<>();
+		EntityManager em = null;
+		try
+		{
+			em = DAO.getEntityManager();
+			final Timestamp cutoff = before;
+			em.unwrap(Session.class).doWork(new Work()
+			{
+				@Override
+				public void execute(Connection connection) throws SQLException
+				{
+					PreparedStatement ps = connection.prepareStatement("SELECT DISTINCT idsensor, idexperiment FROM data WHERE "
+							+ FLUSHABLE + " AND measure_date < ? AND idsensor IS NOT NULL AND idexperiment IS NOT NULL");
+					try
+					{
+						ps.setTimestamp(1, cutoff);
+						java.sql.ResultSet rs = ps.executeQuery();
+						while (rs.next())
+						{
+							series.add(new int[] { rs.getInt(1), rs.getInt(2) });
+						}
+						rs.close();
+					}
+					finally
+					{
+						ps.close();
+					}
+				}
+			});
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while listing series to flush:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+		long moved = 0;
+		for (int[] s : series)
+		{
+			moved += flushSeries(s[0], s[1], before);
+			appended.remove(s[0] + "." + s[1]);
+		}
+		return moved;
+	}
+
+	/**
+	 * Moves the flushable rows of a series to segments, <code>iot.tsdb.segment.points</code> rows
+	 * per transaction. The rows are locked while they are read, so two instances flushing the same
+	 * series do not write them twice.
+	 * @param before only the rows older than this date, writing the last segment even if it is
+	 *            not full; null to write full segments only
+	 * @return the rows moved
+	 */
+	private long flushSeries(final int idsensor, final int idexperiment, final Timestamp before)
+			throws DatabaseException
+	{
+		final int segmentPoints = getSegmentPoints();
+		// keyset of the last row read, the rows that cannot be flushed stay before it
+		final Object[] after = new Object[2];
+		final int[] read = new int[1];
+		long moved = 0;
+		do
+		{
+			final int[] flushed = new int[1];
+			EntityManager em = null;
+			EntityTransaction tx = null;
+			try
+			{
+				em = DAO.getEntityManager();
+				tx = em.getTransaction();
+				tx.begin();
+				em.unwrap(Session.class).doWork(new Work()
+				{
+					@Override
+					public void execute(Connection connection) throws SQLException
+					{
+						read[0] = 0;
+						StringBuilder sql = new StringBuilder("SELECT " + FLUSH_COLUMNS
+								+ " FROM data WHERE idsensor=? AND idexperiment=? AND " + FLUSHABLE);
+						if (before != null) sql.append(" AND measure_date < ?");
+						if (after[0] != null) sql.append(" AND measure_date >= ? AND (measure_date > ? OR (measure_date = ? AND iddata > ?))");
+						sql.append(" ORDER BY measure_date, iddata LIMIT ? FOR UPDATE");
+						PreparedStatement ps = connection.prepareStatement(sql.toString());
+						Map<Integer, SegmentWriter> writers = new LinkedHashMap<>();
+						Map<Integer, List<Integer>> ids = new LinkedHashMap<>();
+						try
+						{
+							int index = 1;
+							ps.setInt(index++, idsensor);
+							ps.setInt(index++, idexperiment);
+							if (before != null) ps.setTimestamp(index++, before);
+							if (after[0] != null)
+							{
+								ps.setTimestamp(index++, (Timestamp) after[0]);
+								ps.setTimestamp(index++, (Timestamp) after[0]);
+								ps.setTimestamp(index++, (Timestamp) after[0]);
+								ps.setInt(index++, (Integer) after[1]);
+							}
+							ps.setInt(index, segmentPoints);
+							java.sql.ResultSet rs = ps.executeQuery();
+							while (rs.next())
+							{
+								read[0]++;
+								int iddata = rs.getInt(1);
+								String measure = rs.getString(2);
+								double value = rs.getDouble(3);
+								Timestamp date = rs.getTimestamp(4);
+								int idthing = rs.getInt(5);
+								Integer thing = rs.wasNull() ? null : idthing;
+								after[0] = date;
+								after[1] = iddata;
+								if (date.getNanos() % 1000000 != 0 || !SegmentWriter.format(value).equals(measure))
+								{
+									continue;
+								}
+								SegmentWriter writer = writers.get(thing);
+								if (writer == null)
+								{
+									writer = new SegmentWriter();
+									writers.put(thing, writer);
+									ids.put(thing, new ArrayList<Integer>());
+								}
+								writer.add(date.getTime(), value);
+								ids.get(thing).add(iddata);
+							}
+							rs.close();
+						}
+						finally
+						{
+							ps.close();
+						}
+						// without a date limit only a full read is written, the rest is the head
+						if (before == null && read[0] < segmentPoints)
+						{
+							return;
+						}
+						for (Map.Entry<Integer, SegmentWriter> e : writers.entrySet())
+						{
+							insertSegment(connection, idsensor, idexperiment, e.getKey(), e.getValue());
+							DAO.deleteRows(connection, ids.get(e.getKey()), new Timestamp(e.getValue().firstTime()),
+									new Timestamp(e.getValue().lastTime()));
+							flushed[0] += e.getValue().size();
+						}
+					}
+				});
+				tx.commit();
+				moved += flushed[0];
+			}
+			catch (Exception e)
+			{
+				if (tx != null && tx.isActive())
+				{
+					tx.rollback();
+				}
+				throw new DatabaseException("Database exception while flushing series:" + e.getMessage(), e);
+			}
+			finally
+			{
+				if (em != null)
+				{
+					em.close();
+				}
+			}
+		}
+		while (read[0] == segmentPoints);
+		return moved;
+	}
+
+	private static void insertSegment(Connection connection, int idsensor, int idexperiment, Integer idthing,
+			SegmentWriter writer) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement(INSERT_SEGMENT);
+		try
+		{
+			ps.setInt(1, idsensor);
+			ps.setInt(2, idexperiment);
+			if (idthing == null)
+				ps.setNull(3, java.sql.Types.INTEGER);
+			else
+				ps.setInt(3, idthing);
+			ps.setTimestamp(4, new Timestamp(writer.firstTime()));
+			ps.setTimestamp(5, new Timestamp(writer.lastTime()));
+			ps.setInt(6, writer.size());
+			ps.setBytes(7, writer.toByteArray());
+			ps.executeUpdate();
+		}
+		finally
+		{
+			ps.close();
+		}
+	}
+
+	/**
+	 * The windows [from, to) is read in, with the segments of the series that overlap each one. With
+	 * the file cache the mapped segments are opened at once, in one window; from data_segment only
+	 * their dates are listed, a window ends where a segment starts after the last date of the
+	 * previous ones and the window has {@link #WINDOW_POINTS} points already.
+	 * @param sampler the sampler the points are for, null if they are read as measures
+	 */
+	private static List<Window> listSegments(Connection connection, int idsensor, int idexperiment, Timestamp from,
+			Timestamp to, MinMaxDownsampler sampler) throws SQLException
+	{
+		List<Window> windows = new ArrayList<>();
+		if (SegmentFileCache.isEnabled())
+		{
+			try
+			{
+				SegmentFileCache.SegmentFile file = SegmentFileCache.get(connection, idsensor, idexperiment);
+				Window window = new Window(from);
+				window.to = to;
+				long start = from == null ? Long.MIN_VALUE : from.getTime();
+				for (int i = file.search(start); i < file.count && (to == null || file.first(i) < to.getTime()); i++)
+				{
+					if (file.last(i) < start)
+					{
+						continue;
+					}
+					SegmentCursor cursor;
+					if (sampler != null && file.first(i) >= start && (to == null || file.last(i) < to.getTime())
+							&& sampler.isSameBucket(file.first(i), file.last(i)))
+					{
+						cursor = new SegmentCursor(i, file.first(i), file.minTime(i), file.min(i), file.maxTime(i),
+								file.max(i));
+					}
+					else
+					{
+						cursor = new SegmentCursor(i, idsensor, idexperiment, file.idthing(i), file.reader(i));
+					}
+					if (cursor.start(from, to))
+					{
+						window.open.add(cursor);
+					}
+				}
+				windows.add(window);
+				return windows;
+			}
+			catch (IOException e)
+			{
+				logger.log(Level.WARNING, "Could not use the segment file cache, reading data_segment", e);
+			}
+		}
+		StringBuilder sql = new StringBuilder(
+				"SELECT idsegment, first_date, last_date, points FROM data_segment WHERE idsensor=? AND idexperiment=?");
+		if (from != null) sql.append(" AND last_date >= ?");
+		if (to != null) sql.append(" AND first_date < ?");
+		PreparedStatement ps = connection.prepareStatement(sql.append(" ORDER BY first_date, idsegment").toString());
+		try
+		{
+			int index = 1;
+			ps.setInt(index++, idsensor);
+			ps.setInt(index++, idexperiment);
+			if (from != null) ps.setTimestamp(index++, from);
+			if (to != null) ps.setTimestamp(index++, to);
+			java.sql.ResultSet rs = ps.executeQuery();
+			Window window = new Window(from);
+			Timestamp last = null;
+			int points = 0;
+			while (rs.next())
+			{
+				Timestamp first = rs.getTimestamp(2);
+				// a segment that starts after the last date of the window may start the next one
+				if (points >= WINDOW_POINTS && (from == null || first.after(from)) && first.after(last))
+				{
+					window.to = first;
+					windows.add(window);
+					window = new Window(first);
+					points = 0;
+				}
+				window.pending.add(rs.getInt(1));
+				points += rs.getInt(4);
+				Timestamp segmentLast = rs.getTimestamp(3);
+				if (last == null || segmentLast.after(last))
+				{
+					last = segmentLast;
+				}
+			}
+			rs.close();
+			window.to = to;
+			windows.add(window);
+		}
+		finally
+		{
+			ps.close();
+		}
+		return windows;
+	}
+
+	/**
+	 * Hands the points of the segments up to the given time (included) to the consumer
+	 */
+	private static void emit(PriorityQueue<SegmentCursor> segments, long until, Timestamp to, MeasureConsumer consumer)
+			throws IOException
+	{
+		while (!segments.isEmpty() && segments.peek().time <= until)
+		{
+			SegmentCursor cursor = segments.poll();
+			boolean more;
+			do
+			{
+				consumer.accept(cursor.toMeasure());
+				more = cursor.next(to);
+			}
+			while (more && cursor.time <= until && (segments.isEmpty() || cursor.compareTo(segments.peek()) < 0));
+			if (more)
+			{
+				segments.add(cursor);
+			}
+		}
+	}
+
+	/**
+	 * Adds the points of the segments up to the given time (included) to the sampler
+	 */
+	private static void emit(PriorityQueue<SegmentCursor> segments, long until, Timestamp to, PointConsumer points)
+	{
+		while (!segments.isEmpty() && segments.peek().time <= until)
+		{
+			SegmentCursor cursor = segments.poll();
+			// the points of a segment go on without the queue while no other segment comes first
+			boolean more;
+			do
+			{
+				cursor.add(points);
+				more = cursor.next(to);
+			}
+			while (more && cursor.time <= until && (segments.isEmpty() || cursor.compareTo(segments.peek()) < 0));
+			if (more)
+			{
+				segments.add(cursor);
+			}
+		}
+	}
+
+	private static int getSegmentPoints()
+	{
+		return Math.max(2, Integer.getInteger(SEGMENT_POINTS, DEFAULT_SEGMENT_POINTS));
+	}
+
+	/**
+	 * A range read with one query of the rows, with the segments that overlap it: open already
+	 * from the file cache, or the idsegment of the ones to fetch from data_segment
+	 */
+	private static class Window
+	{
+		final Timestamp from;
+		Timestamp to;
+		final PriorityQueue<SegmentCursor> open = new PriorityQueue<>();
+		final List<Integer> pending = new ArrayList<>();
+
+		Window(Timestamp from)
+		{
+			this.from = from;
+		}
+
+		/**
+		 * Fetches the pending segments and opens them at their first point in [from, to)
+		 */
+		PriorityQueue<SegmentCursor> open(Connection connection, int idsensor, int idexperiment, Timestamp from,
+				Timestamp to) throws SQLException
+		{
+			if (pending.isEmpty())
+			{
+				return open;
+			}
+			StringBuilder sql = new StringBuilder("SELECT idsegment, idthing, content FROM data_segment WHERE idsegment IN (");
+			for (int i = 0; i < pending.size(); i++)
+			{
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			PreparedStatement ps = connection.prepareStatement(sql.append(')').toString());
+			try
+			{
+				for (int i = 0; i < pending.size(); i++)
+				{
+					ps.setInt(i + 1, pending.get(i));
+				}
+				java.sql.ResultSet rs = ps.executeQuery();
+				while (rs.next())
+				{
+					int idsegment = rs.getInt(1);
+					int idthing = rs.getInt(2);
+					SegmentCursor cursor = new SegmentCursor(idsegment, idsensor, idexperiment, rs.wasNull() ? null
+							: idthing, new SegmentReader(rs.getBytes(3)));
+					if (cursor.start(from, to))
+					{
+						open.add(cursor);
+					}
+				}
+				rs.close();
+			}
+			finally
+			{
+				ps.close();
+			}
+			pending.clear();
+			return open;
+		}
+	}
+
+	/**
+	 * A segment being read, ordered by the time of its current point and then by its order in the
+	 * series, so the points of a date always come in the same order. A summary stands for a whole
+	 * segment that falls in one bucket of a sampler, it only has the minimum and the maximum.
+	 */
+	private static class SegmentCursor implements Comparable<SegmentCursor>
+	{
+		final int idsensor;
+		final int idexperiment;
+		final Integer idthing;
+		// idsegment, or the index of the segment in its cache file
+		final int order;
+		final SegmentReader reader;
+		final long minTime;
+		final double min;
+		final long maxTime;
+		final double max;
+		long time;
+
+		SegmentCursor(int order, int idsensor, int idexperiment, Integer idthing, SegmentReader reader)
+		{
+			this.order = order;
+			this.idsensor = idsensor;
+			this.idexperiment = idexperiment;
+			this.idthing = idthing;
+			this.reader = reader;
+			this.minTime = this.maxTime = 0;
+			this.min = this.max = 0;
+		}
+
+		SegmentCursor(int order, long first, long minTime, double min, long maxTime, double max)
+		{
+			this.order = order;
+			this.idsensor = this.idexperiment = 0;
+			this.idthing = null;
+			this.reader = null;
+			this.time = first;
+			this.minTime = minTime;
+			this.min = min;
+			this.maxTime = maxTime;
+			this.max = max;
+		}
+
+		/**
+		 * Moves to the first point in [from, to)
+		 * @return false if there is none
+		 */
+		boolean start(Timestamp from, Timestamp to)
+		{
+			if (reader == null)
+			{
+				return true;
+			}
+			boolean more = reader.next();
+			while (more && from != null && reader.time() < from.getTime())
+			{
+				more = reader.next();
+			}
+			time = reader.time();
+			return more && (to == null || time < to.getTime());
+		}
+
+		/**
+		 * Moves to the next point before to
+		 * @return false after the last one
+		 */
+		boolean next(Timestamp to)
+		{
+			if (reader == null || !reader.next())
+			{
+				return false;
+			}
+			time = reader.time();
+			return to == null || time < to.getTime();
+		}
+
+		void add(PointConsumer points)
+		{
+			if (reader != null)
+			{
+				points.add(reader.time(), reader.value());
+			}
+			else if (minTime <= maxTime)
+			{
+				points.add(minTime, min);
+				points.add(maxTime, max);
+			}
+			else
+			{
+				points.add(maxTime, max);
+				points.add(minTime, min);
+			}
+		}
+
+		Measure toMeasure()
+		{
+			Measure m = new Measure();
+			m.setIdsensor(idsensor);
+			m.setIdexperiment(idexperiment);
+			m.setIdthing(idthing);
+			m.setCharted(1);
+			m.setMeasure_date(new Timestamp(reader.time()));
+			m.setMeasure_value(reader.value());
+			m.setMeasure(SegmentWriter.format(reader.value()));
+			return m;
+		}
+
+		@Override
+		public int compareTo(SegmentCursor o)
+		{
+			int c = Long.compare(time, o.time);
+			return c != 0 ? c : Integer.compare(order, o.order);
+		}
+	}
+}
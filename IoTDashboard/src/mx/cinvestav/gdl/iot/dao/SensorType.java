@@ -15,6 +15,12 @@ public class SensorType
 	@Column(name = "idsensor_type")
 	private Integer id;
 	private String name;
+	/**
+	 * true if the sensors of this type only send numbers; null for types created before the flag,
+	 * which accept any value
+	 */
+	@Column(name = "isnumeric")
+	private Boolean numeric;
 
 	public Integer getId()
 	{
@@ -35,4 +41,14 @@ public class SensorType
 	{
 		this.name = name;
 	}
+
+	public Boolean getNumeric()
+	{
+		return numeric;
+	}
+
+	public void setNumeric(Boolean numeric)
+	{
+		this.numeric = numeric;
+	}
 }
@@ -0,0 +1,55 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import mx.cinvestav.gdl.iot.series.MinMaxDownsampler;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * The data table alone, one row per measure
+ */
+class SqlTimeSeriesStore implements TimeSeriesStore
+{
+	@Override
+	public void append(List<Measure> measures) throws DatabaseException
+	{
+		DAO.insertRows(measures);
+	}
+
+	@Override
+	public void scan(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			MeasureConsumer consumer) throws SQLException, IOException
+	{
+		DAO.scanRows(connection, idsensor, idexperiment, from, to, consumer);
+	}
+
+	@Override
+	public void sample(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			MinMaxDownsampler sampler) throws SQLException
+	{
+		DAO.sampleRows(connection, idsensor, idexperiment, from, to, sampler);
+	}
+
+	@Override
+	public Timestamp[] getRange(Connection connection, int idexperiment, List<Integer> idsensors) throws SQLException
+	{
+		return DAO.getRowRange(connection, idexperiment, idsensors);
+	}
+
+	@Override
+	public MeasurePage getPage(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			Object[] after, int limit) throws SQLException
+	{
+		return DAO.getRowPage(connection, idsensor, idexperiment, from, to, after, limit);
+	}
+
+	@Override
+	public long flush(Timestamp before)
+	{
+		return 0;
+	}
+}
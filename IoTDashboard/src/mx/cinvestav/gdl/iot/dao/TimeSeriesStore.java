@@ -0,0 +1,63 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import mx.cinvestav.gdl.iot.series.MinMaxDownsampler;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * Storage of the measure history behind {@link DAO}, selected with <code>iot.tsdb.engine</code>:
+ * <ul>
+ * <li><code>sql</code> (default): one row per measure in the data table, {@link SqlTimeSeriesStore}</li>
+ * <li><code>segment</code>: the rows of the data table are the head of each series and are
+ * flushed to compressed segments in data_segment, {@link SegmentTimeSeriesStore}</li>
+ * </ul>
+ * The engine is wrapped in {@link ArchiveTimeSeriesStore}, which adds the archived experiments to
+ * its reads. The methods that take a connection run inside the work of a DAO query and must not close it.
+ */
+interface TimeSeriesStore
+{
+	/**
+	 * Stores the measures in one transaction
+	 */
+	void append(List<Measure> measures) throws DatabaseException;
+
+	/**
+	 * Hands the charted measures of a series in [from, to) to the consumer in date order. An
+	 * IOException of the consumer stops the scan and is thrown as is.
+	 * @param from null to start at the first measure
+	 * @param to null to end after the last measure
+	 */
+	void scan(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			MeasureConsumer consumer) throws SQLException, IOException;
+
+	/**
+	 * Adds the numeric charted measures of a series in [from, to) to the sampler, in date order
+	 */
+	void sample(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			MinMaxDownsampler sampler) throws SQLException;
+
+	/**
+	 * @return the first and the last date of the charted measures of the sensors in the
+	 *         experiment, nulls if there are none
+	 */
+	Timestamp[] getRange(Connection connection, int idexperiment, List<Integer> idsensors) throws SQLException;
+
+	/**
+	 * A page of {@link DAO#getSensorDataPage(Integer, Integer, Timestamp, Timestamp, String, int)}
+	 * @param after {measure_date, iddata} of the last measure of the previous page, or null
+	 */
+	MeasurePage getPage(Connection connection, int idsensor, int idexperiment, Timestamp from, Timestamp to,
+			Object[] after, int limit) throws SQLException;
+
+	/**
+	 * Moves the measures stored before the given date to the long term storage, if the engine
+	 * has one
+	 * @return the measures moved
+	 */
+	long flush(Timestamp before) throws DatabaseException;
+}
@@ -0,0 +1,337 @@
+package mx.cinvestav.gdl.iot.dao;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * In-memory index of the controller -> smart thing -> sensor hierarchy, used to validate update
+ * requests without querying the database. Ids are auto increment integers, so the parent of each
+ * thing and sensor is kept in an int array indexed by id (0 = no parent) and the existing
+ * controllers in a bit set. The type of every sensor is kept the same way, with the sensor types
+ * that only accept numbers in a second bit set.
+ * <p>
+ * The index is an immutable snapshot replaced on every change: DAO updates it when entities are
+ * stored or deleted, and it is reloaded after <code>iot.cache.topology.ttl</code> milliseconds, or
+ * when an unknown id is looked up, to see changes made through other instances.
+ */
+public class TopologyIndex
+{
+	private static final String TTL = "iot.cache.topology.ttl";
+	private static final long DEFAULT_TTL = 60000;
+	private static final long MIN_RELOAD_INTERVAL = 5000;
+
+	private static final Logger logger = Logger.getLogger(TopologyIndex.class.getName());
+	private static final Object writeLock = new Object();
+	private static final AtomicBoolean loading = new AtomicBoolean();
+	private static volatile Snapshot snapshot;
+
+	/**
+	 * @return true if the controller exists
+	 */
+	public static boolean isController(int idcontroller) throws DatabaseException
+	{
+		if (current().isController(idcontroller)) return true;
+		return reloadOnMiss().isController(idcontroller);
+	}
+
+	/**
+	 * @return true if the smart thing exists and belongs to the controller
+	 */
+	public static boolean isThingOf(int idthing, int idcontroller) throws DatabaseException
+	{
+		if (current().thingController(idthing) == idcontroller) return true;
+		return reloadOnMiss().thingController(idthing) == idcontroller;
+	}
+
+	/**
+	 * @return true if the sensor exists and belongs to the smart thing
+	 */
+	public static boolean isSensorOf(int idsensor, int idthing) throws DatabaseException
+	{
+		if (current().sensorThing(idsensor) == idthing) return true;
+		return reloadOnMiss().sensorThing(idsensor) == idthing;
+	}
+
+	/**
+	 * @return true if the sensor exists
+	 */
+	public static boolean isSensor(int idsensor) throws DatabaseException
+	{
+		if (current().sensorThing(idsensor) != 0) return true;
+		return reloadOnMiss().sensorThing(idsensor) != 0;
+	}
+
+	/**
+	 * @return true if the sensor type of the sensor only accepts numeric measures
+	 */
+	public static boolean requiresNumber(int idsensor) throws DatabaseException
+	{
+		return current().requiresNumber(idsensor);
+	}
+
+	/**
+	 * Updates the index after an entity was stored
+	 */
+	static void stored(IoTEntity entity)
+	{
+		if (entity.getId() == null) return;
+		int id = entity.getId();
+		synchronized (writeLock)
+		{
+			Snapshot s = snapshot;
+			if (s == null) return;
+			if (entity instanceof Controller)
+			{
+				snapshot = s.withController(id, true);
+			}
+			else if (entity instanceof SmartThing)
+			{
+				snapshot = s.withThing(id, parentId(((SmartThing) entity).getIdcontroller()));
+			}
+			else if (entity instanceof Sensor)
+			{
+				Sensor sensor = (Sensor) entity;
+				snapshot = s.withSensor(id, parentId(sensor.getIdthing()), toInt(sensor.getSensor_type()));
+			}
+		}
+	}
+
+	/**
+	 * Updates the index after an entity was deleted
+	 */
+	static void deleted(Class<? extends IoTEntity> entityClass, int id)
+	{
+		synchronized (writeLock)
+		{
+			Snapshot s = snapshot;
+			if (s == null) return;
+			if (Controller.class.equals(entityClass))
+			{
+				snapshot = s.withController(id, false);
+			}
+			else if (SmartThing.class.equals(entityClass))
+			{
+				snapshot = s.withThing(id, 0);
+			}
+			else if (Sensor.class.equals(entityClass))
+			{
+				snapshot = s.withSensor(id, 0, 0);
+			}
+		}
+	}
+
+	/**
+	 * Updates the index after a sensor type was stored
+	 */
+	static void sensorTypeStored(SensorType type)
+	{
+		if (type.getId() == null) return;
+		synchronized (writeLock)
+		{
+			Snapshot s = snapshot;
+			if (s == null) return;
+			snapshot = s.withNumericType(type.getId(), Boolean.TRUE.equals(type.getNumeric()));
+		}
+	}
+
+	private static int parentId(Integer id)
+	{
+		return id == null ? 0 : id;
+	}
+
+	/**
+	 * Sensor.sensor_type holds the id of the type as text
+	 */
+	private static int toInt(Object value)
+	{
+		if (value instanceof Number) return ((Number) value).intValue();
+		if (value == null) return 0;
+		try
+		{
+			return Integer.parseInt(value.toString().trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	private static Snapshot current() throws DatabaseException
+	{
+		Snapshot s = snapshot;
+		if (s == null)
+		{
+			return reload();
+		}
+		if (System.currentTimeMillis() - s.loaded > Long.getLong(TTL, DEFAULT_TTL)
+				&& loading.compareAndSet(false, true))
+		{
+			// one request refreshes the index, the others keep using the previous snapshot
+			try
+			{
+				return reload();
+			}
+			catch (DatabaseException e)
+			{
+				logger.log(Level.WARNING, "Could not refresh topology index, using previous one", e);
+			}
+			finally
+			{
+				loading.set(false);
+			}
+		}
+		return s;
+	}
+
+	private static Snapshot reloadOnMiss() throws DatabaseException
+	{
+		Snapshot s = snapshot;
+		if (System.currentTimeMillis() - s.loaded < MIN_RELOAD_INTERVAL)
+		{
+			return s;
+		}
+		return reload();
+	}
+
+	private static Snapshot reload() throws DatabaseException
+	{
+		EntityManager em = null;
+		try
+		{
+			em = DAO.getEntityManager();
+			long loaded = System.currentTimeMillis();
+			BitSet controllers = new BitSet();
+			for (Object id : em.createNativeQuery("SELECT idcontroller FROM controller").getResultList())
+			{
+				controllers.set(((Number) id).intValue());
+			}
+			int[] thingController = loadParents(em, "SELECT idthing, idcontroller FROM smart_thing");
+			int[] sensorThing = loadParents(em, "SELECT idsensor, idthing FROM sensor");
+			int[] sensorType = loadParents(em, "SELECT idsensor, sensor_type FROM sensor");
+			BitSet numericTypes = new BitSet();
+			for (Object id : em.createNativeQuery("SELECT idsensor_type FROM sensor_type WHERE isnumeric = 1")
+					.getResultList())
+			{
+				numericTypes.set(((Number) id).intValue());
+			}
+
+			Snapshot s = new Snapshot(controllers, thingController, sensorThing, sensorType, numericTypes, loaded);
+			synchronized (writeLock)
+			{
+				snapshot = s;
+			}
+			return s;
+		}
+		catch (Exception e)
+		{
+			throw new DatabaseException("Database exception while loading topology:" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+		}
+	}
+
+	private static int[] loadParents(EntityManager em, String query)
+	{
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = em.createNativeQuery(query).getResultList();
+		int[] parents = new int[0];
+		for (Object[] row : rows)
+		{
+			int id = ((Number) row[0]).intValue();
+			if (id >= parents.length)
+			{
+				parents = Arrays.copyOf(parents, Math.max(id + 1, parents.length * 2));
+			}
+			parents[id] = toInt(row[1]);
+		}
+		return parents;
+	}
+
+	private static class Snapshot
+	{
+		private final BitSet controllers;
+		private final int[] thingController;
+		private final int[] sensorThing;
+		private final int[] sensorType;
+		private final BitSet numericTypes;
+		private final long loaded;
+
+		Snapshot(BitSet controllers, int[] thingController, int[] sensorThing, int[] sensorType,
+				BitSet numericTypes, long loaded)
+		{
+			this.controllers = controllers;
+			this.thingController = thingController;
+			this.sensorThing = sensorThing;
+			this.sensorType = sensorType;
+			this.numericTypes = numericTypes;
+			this.loaded = loaded;
+		}
+
+		boolean isController(int id)
+		{
+			return id > 0 && controllers.get(id);
+		}
+
+		int thingController(int id)
+		{
+			return id > 0 && id < thingController.length ? thingController[id] : 0;
+		}
+
+		int sensorThing(int id)
+		{
+			return id > 0 && id < sensorThing.length ? sensorThing[id] : 0;
+		}
+
+		boolean requiresNumber(int id)
+		{
+			int type = id > 0 && id < sensorType.length ? sensorType[id] : 0;
+			return type > 0 && numericTypes.get(type);
+		}
+
+		Snapshot withController(int id, boolean exists)
+		{
+			BitSet c = (BitSet) controllers.clone();
+			c.set(id, exists);
+			return new Snapshot(c, thingController, sensorThing, sensorType, numericTypes, loaded);
+		}
+
+		Snapshot withThing(int id, int idcontroller)
+		{
+			return new Snapshot(controllers, withParent(thingController, id, idcontroller), sensorThing, sensorType,
+					numericTypes, loaded);
+		}
+
+		Snapshot withSensor(int id, int idthing, int type)
+		{
+			return new Snapshot(controllers, thingController, withParent(sensorThing, id, idthing), withParent(
+					sensorType, id, type), numericTypes, loaded);
+		}
+
+		Snapshot withNumericType(int id, boolean numeric)
+		{
+			BitSet n = (BitSet) numericTypes.clone();
+			n.set(id, numeric);
+			return new Snapshot(controllers, thingController, sensorThing, sensorType, n, loaded);
+		}
+
+		private static int[] withParent(int[] parents, int id, int parent)
+		{
+			int[] copy = Arrays.copyOf(parents, Math.max(parents.length, id + 1));
+			copy[id] = parent;
+			return copy;
+		}
+	}
+}
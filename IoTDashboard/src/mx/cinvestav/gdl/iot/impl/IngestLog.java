@@ -0,0 +1,574 @@
+package mx.cinvestav.gdl.iot.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.validation.UpdateRequestValidator;
+
+/**
+ * Segmented write-ahead log of the measures accepted by the asynchronous ingestion. Every accepted
+ * request is appended as one record (length, CRC32, measures) with a FileChannel and is durable on
+ * disk before the request is acknowledged. Concurrent appends share fsyncs: a thread that waits for
+ * the sync lock finds its record already forced by the previous sync and returns without forcing
+ * again (group commit).
+ * <p>
+ * The offset of every record committed to the database is appended to the marker file of its
+ * segment (wal-N.done), without forcing it. A segment and its markers are deleted once it was
+ * rolled over and all its records were committed. Segments left by a previous run are replayed on
+ * startup skipping the marked records, so a request is inserted twice only if the JVM died between
+ * its commit and its marker, or the machine lost the page cache before the markers reached disk.
+ * <p>
+ * A record the database keeps rejecting during the replay is appended to wal-N.failed, in the
+ * format of a segment, and marked; a segment that cannot be read is renamed to wal-N.corrupt.
+ * Neither is replayed again: rename them to a new wal-N.log to retry them.
+ */
+public class IngestLog
+{
+	private static final String SEGMENT_PREFIX = "wal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String DONE_SUFFIX = ".done";
+	private static final String FAILED_SUFFIX = ".failed";
+	private static final String CORRUPT_SUFFIX = ".corrupt";
+	private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+	private static final Logger logger = Logger.getLogger(IngestLog.class.getName());
+
+	private final Path dir;
+	private final long segmentBytes;
+	private final List<Path> recovered;
+	private final Object syncLock = new Object();
+	private final AtomicLong syncs = new AtomicLong();
+	private long nextSequence;
+	private Segment current;
+
+	/**
+	 * Opens the log in the directory. Segments already present are kept for {@link #recovered()}
+	 * and new records go to a new segment.
+	 */
+	public IngestLog(Path dir, long segmentBytes) throws IOException
+	{
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		Files.createDirectories(dir);
+		List<Path> existing = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*"))
+		{
+			for (Path p : stream)
+			{
+				// the sequence of quarantined segments is not reused either
+				nextSequence = Math.max(nextSequence, sequence(p) + 1);
+				if (p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+				{
+					existing.add(p);
+				}
+			}
+		}
+		// sequence numbers are zero padded, so name order is append order
+		Collections.sort(existing);
+		this.recovered = existing;
+	}
+
+	/**
+	 * @return the segments left by a previous run, oldest first
+	 */
+	public List<Path> recovered()
+	{
+		return recovered;
+	}
+
+	/**
+	 * Appends the measures of one request and waits until they are on disk
+	 * @return the appended record; release it once the measures are committed
+	 */
+	public Record append(List<Measure> measures) throws IOException
+	{
+		ByteBuffer record = encode(measures);
+		Segment seg;
+		long start;
+		long end;
+		synchronized (this)
+		{
+			if (current == null || current.written >= segmentBytes)
+			{
+				roll();
+			}
+			seg = current;
+			while (record.hasRemaining())
+			{
+				seg.channel.write(record);
+			}
+			start = seg.written;
+			end = start + record.limit();
+			seg.written = end;
+			seg.pending.incrementAndGet();
+		}
+		try
+		{
+			sync(seg, end);
+		}
+		catch (IOException e)
+		{
+			seg.release(start, false);
+			throw e;
+		}
+		return new Record(seg, start);
+	}
+
+	private void sync(Segment seg, long end) throws IOException
+	{
+		synchronized (syncLock)
+		{
+			if (seg.synced >= end)
+			{
+				return;
+			}
+			long target = seg.written;
+			seg.channel.force(false);
+			seg.synced = target;
+			syncs.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Must hold the log lock
+	 */
+	private void roll() throws IOException
+	{
+		Segment previous = current;
+		Path path = dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		current = new Segment(path, channel, FileChannel.open(done(path), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+		if (previous != null)
+		{
+			previous.close(this);
+		}
+	}
+
+	/**
+	 * Closes the current segment, deleting it if all its records were committed
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (current != null)
+		{
+			current.close(this);
+			current = null;
+		}
+	}
+
+	/**
+	 * @return number of fsyncs done, each one covering one or more appended requests
+	 */
+	public long getSyncs()
+	{
+		return syncs.get();
+	}
+
+	/**
+	 * Reads the records of a segment written by a previous run that are not marked as committed.
+	 * Reading stops at the first incomplete or corrupt record, which is the tail of a write
+	 * interrupted by a crash.
+	 */
+	public static List<Entry> read(Path segment) throws IOException
+	{
+		Set<Long> committed = readCommitted(segment);
+		List<Entry> records = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment))))
+		{
+			long offset = 0;
+			while (true)
+			{
+				int length;
+				long crc;
+				byte[] payload;
+				try
+				{
+					length = in.readInt();
+					crc = in.readInt() & 0xffffffffL;
+					if (length < 0 || length > MAX_RECORD_BYTES)
+					{
+						logger.log(Level.WARNING, "Corrupt record length in " + segment + ", ignoring the rest");
+						break;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				CRC32 check = new CRC32();
+				check.update(payload);
+				if (check.getValue() != crc)
+				{
+					logger.log(Level.WARNING, "Checksum mismatch in " + segment + ", ignoring the rest");
+					break;
+				}
+				if (!committed.contains(offset))
+				{
+					records.add(new Entry(offset, decode(payload)));
+				}
+				offset += 8 + length;
+			}
+		}
+		return records;
+	}
+
+	private static Set<Long> readCommitted(Path segment) throws IOException
+	{
+		Set<Long> committed = new HashSet<>();
+		Path done = done(segment);
+		if (!Files.exists(done))
+		{
+			return committed;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(done))))
+		{
+			while (true)
+			{
+				try
+				{
+					committed.add(in.readLong());
+				}
+				catch (EOFException e)
+				{
+					// a marker cut by a crash is ignored, its record is replayed
+					break;
+				}
+			}
+		}
+		return committed;
+	}
+
+	/**
+	 * Marks records of a segment written by a previous run as committed, so a replay interrupted
+	 * later does not insert them again
+	 */
+	public static void committed(Path segment, List<Entry> entries) throws IOException
+	{
+		ByteBuffer offsets = ByteBuffer.allocate(8 * entries.size());
+		for (Entry e : entries)
+		{
+			offsets.putLong(e.offset);
+		}
+		offsets.flip();
+		try (FileChannel channel = FileChannel.open(done(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND))
+		{
+			while (offsets.hasRemaining())
+			{
+				channel.write(offsets);
+			}
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Moves a record of a segment written by a previous run that the database rejects to the failed
+	 * records of the segment and marks it as committed, so it no longer holds back the replay
+	 */
+	public static void quarantine(Path segment, Entry entry) throws IOException
+	{
+		ByteBuffer record = encode(entry.measures);
+		try (FileChannel channel = FileChannel.open(sibling(segment, FAILED_SUFFIX), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+		{
+			while (record.hasRemaining())
+			{
+				channel.write(record);
+			}
+			channel.force(false);
+		}
+		committed(segment, Collections.singletonList(entry));
+	}
+
+	/**
+	 * Renames a segment written by a previous run that cannot be read, keeping it for inspection
+	 */
+	public static void quarantine(Path segment) throws IOException
+	{
+		Files.move(segment, sibling(segment, CORRUPT_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Deletes a segment written by a previous run and its markers once it was replayed
+	 */
+	public static void delete(Path segment) throws IOException
+	{
+		Files.deleteIfExists(segment);
+		Files.deleteIfExists(done(segment));
+	}
+
+	private static Path done(Path segment)
+	{
+		return sibling(segment, DONE_SUFFIX);
+	}
+
+	private static Path sibling(Path segment, String suffix)
+	{
+		String name = segment.getFileName().toString();
+		return segment.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + suffix);
+	}
+
+	/**
+	 * Sequence of a segment or of one of its sibling files
+	 */
+	private static long sequence(Path file)
+	{
+		String name = file.getFileName().toString();
+		int end = name.indexOf('.');
+		try
+		{
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), end < 0 ? name.length() : end));
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	private static ByteBuffer encode(List<Measure> measures) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeInt(measures.size());
+		for (Measure m : measures)
+		{
+			out.writeLong(m.getMeasure_date().getTime());
+			out.writeInt(m.getMeasure_date().getNanos());
+			writeInteger(out, m.getIdsensor());
+			writeInteger(out, m.getIdthing());
+			writeInteger(out, m.getIdexperiment());
+			writeInteger(out, m.getCharted());
+			writeBytes(out, m.getMeasure() == null ? null : m.getMeasure().getBytes(StandardCharsets.UTF_8));
+			writeBytes(out, m.getImage());
+		}
+		out.flush();
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 8, record.limit() - 8);
+		record.putInt(0, record.limit() - 8);
+		record.putInt(4, (int) crc.getValue());
+		return record;
+	}
+
+	private static List<Measure> decode(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		int count = in.readInt();
+		List<Measure> measures = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+		{
+			Measure m = new Measure();
+			Timestamp date = new Timestamp(in.readLong());
+			date.setNanos(in.readInt());
+			m.setMeasure_date(date);
+			m.setIdsensor(readInteger(in));
+			m.setIdthing(readInteger(in));
+			m.setIdexperiment(readInteger(in));
+			m.setCharted(readInteger(in));
+			byte[] measure = readBytes(in);
+			m.setMeasure(measure == null ? null : new String(measure, StandardCharsets.UTF_8));
+			// the numeric value is not logged, it is parsed again from the text
+			m.setMeasure_value(UpdateRequestValidator.parseNumber(m.getMeasure()));
+			m.setImage(readBytes(in));
+			measures.add(m);
+		}
+		return measures;
+	}
+
+	private static void writeInteger(DataOutputStream out, Integer value) throws IOException
+	{
+		out.writeBoolean(value != null);
+		if (value != null) out.writeInt(value);
+	}
+
+	private static Integer readInteger(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readInt() : null;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] value) throws IOException
+	{
+		out.writeInt(value == null ? -1 : value.length);
+		if (value != null) out.write(value);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] value = new byte[length];
+		in.readFully(value);
+		return value;
+	}
+
+	/**
+	 * A record read back from a segment: its offset in the file and its measures
+	 */
+	public static class Entry
+	{
+		private final long offset;
+		private final List<Measure> measures;
+
+		Entry(long offset, List<Measure> measures)
+		{
+			this.offset = offset;
+			this.measures = measures;
+		}
+
+		public List<Measure> getMeasures()
+		{
+			return measures;
+		}
+	}
+
+	/**
+	 * A record appended by {@link IngestLog#append(List)}, released once its measures are committed
+	 * or given up
+	 */
+	public static class Record
+	{
+		private final Segment segment;
+		private final long offset;
+
+		Record(Segment segment, long offset)
+		{
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+		/**
+		 * Marks the record as done. A committed record is marked so it is not replayed; one that
+		 * could not be committed keeps the segment on disk to be replayed on the next start.
+		 */
+		public void release(boolean committed)
+		{
+			segment.release(offset, committed);
+		}
+	}
+
+	/**
+	 * A segment file of the log and its marker file. It counts the appended records that are not
+	 * yet committed to the database.
+	 */
+	public static class Segment
+	{
+		private final Path path;
+		private final FileChannel channel;
+		private final FileChannel done;
+		private final AtomicInteger pending = new AtomicInteger();
+		private final AtomicBoolean deleted = new AtomicBoolean();
+		private volatile long written;
+		private long synced;
+		private volatile boolean closed;
+		private volatile boolean failed;
+
+		Segment(Path path, FileChannel channel, FileChannel done)
+		{
+			this.path = path;
+			this.channel = channel;
+			this.done = done;
+		}
+
+		private void release(long offset, boolean committed)
+		{
+			if (committed)
+			{
+				mark(offset);
+			}
+			else
+			{
+				failed = true;
+			}
+			if (pending.decrementAndGet() == 0 && closed)
+			{
+				deleteIfDone();
+			}
+		}
+
+		private synchronized void mark(long offset)
+		{
+			ByteBuffer marker = ByteBuffer.allocate(8);
+			marker.putLong(0, offset);
+			try
+			{
+				while (marker.hasRemaining())
+				{
+					done.write(marker);
+				}
+			}
+			catch (IOException e)
+			{
+				// without its marker the record is replayed if the segment is kept
+				logger.log(Level.WARNING, "Could not mark a committed record of " + path, e);
+			}
+		}
+
+		private void close(IngestLog log) throws IOException
+		{
+			synchronized (log.syncLock)
+			{
+				channel.force(false);
+				synced = written;
+				channel.close();
+			}
+			closed = true;
+			if (pending.get() == 0)
+			{
+				deleteIfDone();
+			}
+		}
+
+		private void deleteIfDone()
+		{
+			if (deleted.compareAndSet(false, true))
+			{
+				try
+				{
+					synchronized (this)
+					{
+						done.close();
+					}
+					if (!failed)
+					{
+						IngestLog.delete(path);
+					}
+				}
+				catch (IOException e)
+				{
+					logger.log(Level.WARNING, "Could not delete log segment " + path, e);
+				}
+			}
+		}
+	}
+}
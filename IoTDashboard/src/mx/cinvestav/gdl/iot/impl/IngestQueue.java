@@ -0,0 +1,534 @@
+package mx.cinvestav.gdl.iot.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.utils.SystemProperty;
+
+/**
+ * Write-behind queue for asynchronous ingestion. Update requests append their decoded measures
+ * and return immediately; a pool of writer threads drains the queue into the database in large
+ * transactions. The queue is bounded by <code>iot.ingest.queue.capacity</code> rows and a request
+ * that does not fit is rejected as a whole, so callers can answer 429 and let the controller retry.
+ * <p>
+ * In production the writers are App Engine background threads, which requires an instance with
+ * manual or basic scaling.
+ * <p>
+ * When <code>iot.ingest.wal.dir</code> is set every accepted request is first appended to an
+ * {@link IngestLog} in that directory, so measures that could not be written, or were still queued
+ * when the JVM died, are replayed when the queue starts again.
+ */
+public class IngestQueue
+{
+	private static final String CAPACITY = "iot.ingest.queue.capacity";
+	private static final String WRITERS = "iot.ingest.writers";
+	private static final String DRAIN_ROWS = "iot.ingest.drain.rows";
+	private static final String WAL_DIR = "iot.ingest.wal.dir";
+	private static final String WAL_SEGMENT_BYTES = "iot.ingest.wal.segment.bytes";
+	private static final int DEFAULT_CAPACITY = 50000;
+	private static final int DEFAULT_WRITERS = 2;
+	private static final int DEFAULT_DRAIN_ROWS = 5000;
+	private static final long DEFAULT_WAL_SEGMENT_BYTES = 64L * 1024 * 1024;
+	private static final int MAX_ATTEMPTS = 5;
+
+	private static final Logger logger = Logger.getLogger(IngestQueue.class.getName());
+
+	private static IngestQueue instance;
+
+	private final int capacity;
+	private final int drainRows;
+	private final Semaphore free;
+	private final IngestLog log;
+	private final BlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+	private final List<Thread> writers = new ArrayList<>();
+	private volatile boolean running = true;
+
+	private final AtomicLong acceptedRows = new AtomicLong();
+	private final AtomicLong rejectedRequests = new AtomicLong();
+	private final AtomicLong writtenRows = new AtomicLong();
+	private final AtomicLong failedRows = new AtomicLong();
+	private final AtomicLong transactions = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong lastLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+	private final AtomicLong replayedRows = new AtomicLong();
+
+	/**
+	 * Returns the queue, starting the writer threads on first use
+	 */
+	public static synchronized IngestQueue get()
+	{
+		if (instance == null)
+		{
+			IngestLog log = null;
+			if (isLogEnabled())
+			{
+				try
+				{
+					log = new IngestLog(Paths.get(System.getProperty(WAL_DIR)), Long.getLong(WAL_SEGMENT_BYTES,
+							DEFAULT_WAL_SEGMENT_BYTES));
+				}
+				catch (IOException e)
+				{
+					throw new IllegalStateException("Cannot open ingest log in " + System.getProperty(WAL_DIR), e);
+				}
+			}
+			instance = new IngestQueue(Integer.getInteger(CAPACITY, DEFAULT_CAPACITY), Integer.getInteger(
+					DRAIN_ROWS, DEFAULT_DRAIN_ROWS), log);
+			instance.start(Integer.getInteger(WRITERS, DEFAULT_WRITERS));
+		}
+		return instance;
+	}
+
+	/**
+	 * Metrics of the queue of this instance, zeros if it was not started; unlike {@link #get()} it
+	 * never starts the writers
+	 */
+	public static IngestStats getCurrentStats()
+	{
+		IngestQueue q;
+		synchronized (IngestQueue.class)
+		{
+			q = instance;
+		}
+		return q == null ? new IngestStats() : q.getStats();
+	}
+
+	/**
+	 * @return true if accepted measures are written to the local write-ahead log
+	 */
+	public static boolean isLogEnabled()
+	{
+		String dir = System.getProperty(WAL_DIR);
+		return dir != null && !dir.isEmpty();
+	}
+
+	/**
+	 * Stops the writers once the queued measures are written, waiting at most timeoutMillis
+	 */
+	public static void shutdown(long timeoutMillis)
+	{
+		IngestQueue q;
+		synchronized (IngestQueue.class)
+		{
+			q = instance;
+			instance = null;
+		}
+		if (q != null)
+		{
+			q.stop(timeoutMillis);
+		}
+	}
+
+	private IngestQueue(int capacity, int drainRows, IngestLog log)
+	{
+		this.capacity = capacity;
+		this.drainRows = drainRows;
+		this.free = new Semaphore(capacity);
+		this.log = log;
+	}
+
+	private void start(int count)
+	{
+		ThreadFactory factory;
+		if (SystemProperty.environment.value() == SystemProperty.Environment.Value.Production)
+		{
+			factory = ThreadManager.backgroundThreadFactory();
+		}
+		else
+		{
+			factory = Executors.defaultThreadFactory();
+		}
+		for (int i = 0; i < count; i++)
+		{
+			final boolean replay = i == 0 && log != null && !log.recovered().isEmpty();
+			Thread t = factory.newThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (replay)
+					{
+						replay();
+					}
+					drain();
+				}
+			});
+			t.setName("ingest-writer-" + i);
+			t.setDaemon(true);
+			writers.add(t);
+			t.start();
+		}
+	}
+
+	private void stop(long timeoutMillis)
+	{
+		running = false;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (Thread t : writers)
+		{
+			try
+			{
+				t.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (!queue.isEmpty())
+		{
+			logger.log(Level.SEVERE, "Ingest queue stopped with " + (capacity - free.availablePermits())
+					+ " measures not written");
+		}
+		if (log != null)
+		{
+			try
+			{
+				log.close();
+			}
+			catch (IOException e)
+			{
+				logger.log(Level.WARNING, "Could not close ingest log", e);
+			}
+		}
+	}
+
+	/**
+	 * Appends all the measures of a request, or none of them if the queue has no room
+	 * @param measures
+	 * @return false if the queue is full
+	 * @throws IOException if the measures could not be written to the ingest log
+	 */
+	public boolean offer(List<Measure> measures) throws IOException
+	{
+		int rows = measures.size();
+		if (!running || rows > capacity || !free.tryAcquire(rows))
+		{
+			rejectedRequests.incrementAndGet();
+			return false;
+		}
+		IngestLog.Record record = null;
+		if (log != null)
+		{
+			try
+			{
+				record = log.append(measures);
+			}
+			catch (IOException e)
+			{
+				free.release(rows);
+				throw e;
+			}
+		}
+		queue.add(new Batch(measures, System.nanoTime(), record));
+		acceptedRows.addAndGet(rows);
+		return true;
+	}
+
+	/**
+	 * Writes the measures left in the log by the previous run, one record at a time. Every committed
+	 * record is marked in the log and a segment is deleted once all its records are committed. A
+	 * record the database rejects is quarantined in the log once another record was written, which
+	 * shows the database is up; while none can be written the remaining records are kept for the
+	 * next start.
+	 */
+	private void replay()
+	{
+		// records that failed before any other could be written, the database may be down
+		Map<Path, List<IngestLog.Entry>> doubtful = new LinkedHashMap<>();
+		boolean written = false;
+		int failures = 0;
+		try
+		{
+			for (Path segment : log.recovered())
+			{
+				List<IngestLog.Entry> entries;
+				try
+				{
+					entries = IngestLog.read(segment);
+				}
+				catch (IOException e)
+				{
+					logger.log(Level.SEVERE, "Could not read ingest log segment " + segment + ", moving it aside", e);
+					IngestLog.quarantine(segment);
+					continue;
+				}
+				for (IngestLog.Entry entry : entries)
+				{
+					try
+					{
+						// once a record failed while nothing was written, the next ones get one attempt
+						insert(entry.getMeasures(), written || failures == 0 ? MAX_ATTEMPTS : 1);
+					}
+					catch (DatabaseException | RuntimeException e)
+					{
+						if (written)
+						{
+							logger.log(Level.SEVERE, "Could not replay a record of " + segment
+									+ ", moving it to the failed records", e);
+							IngestLog.quarantine(segment, entry);
+							continue;
+						}
+						logger.log(Level.WARNING, "Could not replay a record of " + segment, e);
+						if (!doubtful.containsKey(segment))
+						{
+							doubtful.put(segment, new ArrayList<IngestLog.Entry>());
+						}
+						doubtful.get(segment).add(entry);
+						if (++failures == MAX_ATTEMPTS)
+						{
+							logger.log(Level.SEVERE, "Database unavailable, the ingest log will be replayed on the next start");
+							return;
+						}
+						continue;
+					}
+					IngestLog.committed(segment, Collections.singletonList(entry));
+					replayedRows.addAndGet(entry.getMeasures().size());
+					MeasureBatcher.committed(entry.getMeasures());
+					if (!written)
+					{
+						written = true;
+						for (Map.Entry<Path, List<IngestLog.Entry>> d : doubtful.entrySet())
+						{
+							for (IngestLog.Entry failed : d.getValue())
+							{
+								logger.log(Level.SEVERE, "Moving a record of " + d.getKey() + " to the failed records");
+								IngestLog.quarantine(d.getKey(), failed);
+							}
+						}
+						doubtful.clear();
+					}
+				}
+				if (!doubtful.containsKey(segment))
+				{
+					IngestLog.delete(segment);
+					logger.log(Level.INFO, "Replayed ingest log segment " + segment);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.SEVERE, "Could not update the ingest log, it will be replayed on the next start", e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain()
+	{
+		while (running || !queue.isEmpty())
+		{
+			Batch first;
+			try
+			{
+				first = queue.poll(1, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			if (first == null)
+			{
+				continue;
+			}
+			List<Batch> batches = new ArrayList<>();
+			batches.add(first);
+			int rows = first.measures.size();
+			while (rows < drainRows)
+			{
+				Batch next = queue.poll();
+				if (next == null) break;
+				batches.add(next);
+				rows += next.measures.size();
+			}
+			try
+			{
+				write(batches, rows);
+			}
+			catch (RuntimeException e)
+			{
+				// the writer must outlive any request, or the queue fills up with nobody draining it
+				logger.log(Level.SEVERE, "Unexpected error writing " + rows + " measures", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the drained requests in one transaction. If that fails they are written one by one, so
+	 * a request the database rejects does not drop the requests drained with it.
+	 */
+	private void write(List<Batch> batches, int rows)
+	{
+		try
+		{
+			List<Measure> measures = new ArrayList<>(rows);
+			for (Batch b : batches)
+			{
+				measures.addAll(b.measures);
+			}
+			try
+			{
+				insert(measures, MAX_ATTEMPTS);
+				committed(batches, measures);
+				return;
+			}
+			catch (DatabaseException | RuntimeException e)
+			{
+				if (batches.size() == 1)
+				{
+					logger.log(Level.SEVERE, "Dropping " + rows + " measures", e);
+					return;
+				}
+				logger.log(Level.WARNING, "Group insert of " + batches.size()
+						+ " requests failed, retrying individually", e);
+			}
+			for (Batch b : batches)
+			{
+				try
+				{
+					DAO.insertMeasures(b.measures);
+				}
+				catch (DatabaseException | RuntimeException e)
+				{
+					logger.log(Level.SEVERE, "Dropping the " + b.measures.size() + " measures of a request", e);
+					continue;
+				}
+				committed(Collections.singletonList(b), b.measures);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			logger.log(Level.SEVERE, "Interrupted while writing " + rows + " measures", e);
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			for (Batch b : batches)
+			{
+				if (!b.finished)
+				{
+					failedRows.addAndGet(b.measures.size());
+					finish(b, false);
+				}
+			}
+		}
+	}
+
+	private void committed(List<Batch> batches, List<Measure> measures)
+	{
+		long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batches.get(0).enqueued);
+		writtenRows.addAndGet(measures.size());
+		transactions.incrementAndGet();
+		totalLatency.addAndGet(latency);
+		lastLatency.set(latency);
+		long max = maxLatency.get();
+		while (latency > max && !maxLatency.compareAndSet(max, latency))
+		{
+			max = maxLatency.get();
+		}
+		for (Batch b : batches)
+		{
+			finish(b, true);
+		}
+		MeasureBatcher.committed(measures);
+	}
+
+	private void finish(Batch b, boolean committed)
+	{
+		b.finished = true;
+		if (b.record != null)
+		{
+			// measures that were not committed stay in the log until the next start
+			b.record.release(committed);
+		}
+		free.release(b.measures.size());
+	}
+
+	/**
+	 * Inserts the measures, retrying with a growing pause while the database fails
+	 */
+	private void insert(List<Measure> measures, int attempts) throws DatabaseException, InterruptedException
+	{
+		for (int attempt = 1;; attempt++)
+		{
+			try
+			{
+				DAO.insertMeasures(measures);
+				return;
+			}
+			catch (DatabaseException e)
+			{
+				if (attempt >= attempts)
+				{
+					throw e;
+				}
+				logger.log(Level.WARNING, "Could not write " + measures.size() + " measures, attempt " + attempt, e);
+				Thread.sleep(1000L << (attempt - 1));
+			}
+		}
+	}
+
+	/**
+	 * Snapshot of the queue metrics. Drain latency is measured from the moment the oldest request
+	 * of a transaction was queued until the transaction commits.
+	 */
+	public IngestStats getStats()
+	{
+		IngestStats stats = new IngestStats();
+		stats.setQueueCapacity(capacity);
+		stats.setQueueDepth(capacity - free.availablePermits());
+		stats.setWriters(writers.size());
+		stats.setAcceptedRows(acceptedRows.get());
+		stats.setRejectedRequests(rejectedRequests.get());
+		stats.setWrittenRows(writtenRows.get());
+		stats.setFailedRows(failedRows.get());
+		stats.setTransactions(transactions.get());
+		long tx = transactions.get();
+		stats.setAvgDrainLatencyMs(tx == 0 ? 0 : totalLatency.get() / tx);
+		stats.setLastDrainLatencyMs(lastLatency.get());
+		stats.setMaxDrainLatencyMs(maxLatency.get());
+		stats.setReplayedRows(replayedRows.get());
+		stats.setLogSyncs(log == null ? 0 : log.getSyncs());
+		return stats;
+	}
+
+	private static class Batch
+	{
+		private final List<Measure> measures;
+		private final long enqueued;
+		private final IngestLog.Record record;
+		// set by the writer once the permits and the log record are released
+		private boolean finished = false;
+
+		Batch(List<Measure> measures, long enqueued, IngestLog.Record record)
+		{
+			this.measures = measures;
+			this.enqueued = enqueued;
+			this.record = record;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package mx.cinvestav.gdl.iot.impl;
+
+/**
+ * Metrics of the asynchronous ingest queue. The depth counts the measures accepted but not yet
+ * committed. Replayed rows and log syncs are only counted when the write-ahead log is enabled.
+ */
+public class IngestStats
+{
+	private int queueCapacity;
+	private int queueDepth;
+	private int writers;
+	private long acceptedRows;
+	private long rejectedRequests;
+	private long writtenRows;
+	private long failedRows;
+	private long transactions;
+	private long avgDrainLatencyMs;
+	private long lastDrainLatencyMs;
+	private long maxDrainLatencyMs;
+	private long replayedRows;
+	private long logSyncs;
+
+	public int getQueueCapacity()
+	{
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity)
+	{
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getQueueDepth()
+	{
+		return queueDepth;
+	}
+
+	public void setQueueDepth(int queueDepth)
+	{
+		this.queueDepth = queueDepth;
+	}
+
+	public int getWriters()
+	{
+		return writers;
+	}
+
+	public void setWriters(int writers)
+	{
+		this.writers = writers;
+	}
+
+	public long getAcceptedRows()
+	{
+		return acceptedRows;
+	}
+
+	public void setAcceptedRows(long acceptedRows)
+	{
+		this.acceptedRows = acceptedRows;
+	}
+
+	public long getRejectedRequests()
+	{
+		return rejectedRequests;
+	}
+
+	public void setRejectedRequests(long rejectedRequests)
+	{
+		this.rejectedRequests = rejectedRequests;
+	}
+
+	public long getWrittenRows()
+	{
+		return writtenRows;
+	}
+
+	public void setWrittenRows(long writtenRows)
+	{
+		this.writtenRows = writtenRows;
+	}
+
+	public long getFailedRows()
+	{
+		return failedRows;
+	}
+
+	public void setFailedRows(long failedRows)
+	{
+		this.failedRows = failedRows;
+	}
+
+	public long getTransactions()
+	{
+		return transactions;
+	}
+
+	public void setTransactions(long transactions)
+	{
+		this.transactions = transactions;
+	}
+
+	public long getAvgDrainLatencyMs()
+	{
+		return avgDrainLatencyMs;
+	}
+
+	public void setAvgDrainLatencyMs(long avgDrainLatencyMs)
+	{
+		this.avgDrainLatencyMs = avgDrainLatencyMs;
+	}
+
+	public long getLastDrainLatencyMs()
+	{
+		return lastDrainLatencyMs;
+	}
+
+	public void setLastDrainLatencyMs(long lastDrainLatencyMs)
+	{
+		this.lastDrainLatencyMs = lastDrainLatencyMs;
+	}
+
+	public long getMaxDrainLatencyMs()
+	{
+		return maxDrainLatencyMs;
+	}
+
+	public void setMaxDrainLatencyMs(long maxDrainLatencyMs)
+	{
+		this.maxDrainLatencyMs = maxDrainLatencyMs;
+	}
+
+	public long getReplayedRows()
+	{
+		return replayedRows;
+	}
+
+	public void setReplayedRows(long replayedRows)
+	{
+		this.replayedRows = replayedRows;
+	}
+
+	public long getLogSyncs()
+	{
+		return logSyncs;
+	}
+
+	public void setLogSyncs(long logSyncs)
+	{
+		this.logSyncs = logSyncs;
+	}
+}
@@ -0,0 +1,47 @@
+package mx.cinvestav.gdl.iot.impl;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * Opens the database, replays the ingest write-ahead log when the application starts and flushes
+ * the asynchronous ingest queue and closes the database when it is stopped
+ */
+public class IoTContextListener implements ServletContextListener
+{
+	private static final long SHUTDOWN_TIMEOUT = 20000;
+
+	private static final Logger logger = Logger.getLogger(IoTContextListener.class.getName());
+
+	@Override
+	public void contextInitialized(ServletContextEvent event)
+	{
+		try
+		{
+			DAO.warmUp();
+		}
+		catch (DatabaseException e)
+		{
+			// the requests retry when they need the database
+			logger.log(Level.SEVERE, "Could not open the database at startup", e);
+		}
+		if (IngestQueue.isLogEnabled())
+		{
+			// starting the queue replays the measures left in the log by the previous run
+			IngestQueue.get();
+		}
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event)
+	{
+		IngestQueue.shutdown(SHUTDOWN_TIMEOUT);
+		DAO.close();
+	}
+}
@@ -3,14 +3,13 @@ package mx.cinvestav.gdl.iot.impl;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.persistence.EntityManager;
-import javax.persistence.EntityTransaction;
 import javax.persistence.Query;
 
 import mx.cinvestav.gdl.iot.cloudclient.Data;
@@ -20,10 +19,18 @@ import mx.cinvestav.gdl.iot.cloudclient.UpdateDataRequest;
 import mx.cinvestav.gdl.iot.cloudclient.UpdateDataResponse;
 import mx.cinvestav.gdl.iot.dao.DAO;
 import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.dao.MeasurePage;
+import mx.cinvestav.gdl.iot.dao.MeasureRollup;
+import mx.cinvestav.gdl.iot.dao.PoolStats;
 import mx.cinvestav.gdl.iot.validation.UpdateRequestValidator;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
 
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
+import com.google.api.server.spi.config.Named;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.InternalServerErrorException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.appengine.api.search.query.ExpressionParser.condExpr_return;
 import com.google.cloud.sql.jdbc.Statement;
@@ -41,13 +48,160 @@ public class IoTService
 	private Logger logger = Logger.getLogger(this.getClass().getName());
 
 
+	private static final String ASYNC_INGEST = "iot.ingest.async";
+
+	/**
+	 * Stores the measures of the request before answering. When iot.ingest.async is true it
+	 * behaves like {@link #updateDataAsync(UpdateDataRequest)}.
+	 */
 	@ApiMethod(name = "updateData", httpMethod = "post")
 	public UpdateDataResponse updateData(UpdateDataRequest request) throws NotFoundException
 	{
-		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssssZ");
-		SimpleDateFormat gmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssss");
-		gmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-		
+		return update(request, Boolean.getBoolean(ASYNC_INGEST));
+	}
+
+	/**
+	 * Validates the request and queues its measures to be written by the ingest writers. Answers
+	 * 202 once queued, or 429 if the ingest queue is full and the request should be retried. When
+	 * iot.ingest.wal.dir is set the measures are also on the local write-ahead log before the 202.
+	 */
+	@ApiMethod(name = "updateDataAsync", path = "updatedataasync", httpMethod = "post")
+	public UpdateDataResponse updateDataAsync(UpdateDataRequest request) throws NotFoundException
+	{
+		return update(request, true);
+	}
+
+	@ApiMethod(name = "ingestStats", path = "ingeststats", httpMethod = "get")
+	public IngestStats ingestStats()
+	{
+		return IngestQueue.getCurrentStats();
+	}
+
+	/**
+	 * Metrics of the database connection pool of this instance
+	 */
+	@ApiMethod(name = "dbStats", path = "dbstats", httpMethod = "get")
+	public PoolStats dbStats() throws NotFoundException
+	{
+		PoolStats stats = DAO.getPoolStats();
+		if (stats == null)
+		{
+			throw new NotFoundException("The connection pool is not in use");
+		}
+		return stats;
+	}
+
+	/**
+	 * Measures of a sensor in [from, to), limit at a time. Pass the nextCursor of a page as cursor
+	 * to get the next one; it is null on the last page. With maxPoints the whole range is returned
+	 * in one page, downsampled to at most that many points for a chart.
+	 */
+	@ApiMethod(name = "getSensorData", path = "sensordata", httpMethod = "get")
+	public MeasurePage getSensorData(@Named("idsensor") Integer idsensor, @Named("idexperiment") Integer idexperiment,
+			@Named("from") @Nullable Date from, @Named("to") @Nullable Date to,
+			@Named("cursor") @Nullable String cursor, @Named("limit") @Nullable Integer limit,
+			@Named("maxPoints") @Nullable Integer maxPoints) throws BadRequestException,
+			InternalServerErrorException
+	{
+		try
+		{
+			Timestamp start = from == null ? null : new Timestamp(from.getTime());
+			Timestamp end = to == null ? null : new Timestamp(to.getTime());
+			if (maxPoints != null)
+			{
+				if (maxPoints < 2) throw new IllegalArgumentException("maxPoints must be at least 2");
+				MeasurePage page = new MeasurePage();
+				page.setMeasures(DAO.getSensorDataSeries(idsensor, idexperiment, start, end, maxPoints));
+				return page;
+			}
+			return DAO.getSensorDataPage(idsensor, idexperiment, start, end, cursor, limit == null ? 0 : limit);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new BadRequestException(e.getMessage());
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception getting sensor data", e);
+			throw new InternalServerErrorException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Measures of a sensor stored after the one with the given date and id, for clients that poll
+	 * for new data. Without lastId the measures of exactly lastTimestamp are skipped.
+	 */
+	@ApiMethod(name = "getSensorDataSince", path = "sensordata/since", httpMethod = "get")
+	public MeasurePage getSensorDataSince(@Named("idsensor") Integer idsensor,
+			@Named("idexperiment") Integer idexperiment, @Named("lastTimestamp") Date lastTimestamp,
+			@Named("lastId") @Nullable Integer lastId, @Named("limit") @Nullable Integer limit)
+			throws BadRequestException, InternalServerErrorException
+	{
+		try
+		{
+			return DAO.getSensorDataSince(idsensor, idexperiment, lastTimestamp == null ? null : new Timestamp(
+					lastTimestamp.getTime()), lastId, limit == null ? 0 : limit);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new BadRequestException(e.getMessage());
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception getting new sensor data", e);
+			throw new InternalServerErrorException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Last readings of each sensor, newest first, from memory; at most iot.latest.readings each
+	 */
+	@ApiMethod(name = "getLatestValues", path = "latest", httpMethod = "get")
+	public List<SensorReadings> getLatestValues(@Named("idsensor") List<Integer> idsensors)
+			throws BadRequestException, InternalServerErrorException
+	{
+		try
+		{
+			return LatestValues.get().getReadings(idsensors);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new BadRequestException(e.getMessage());
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception getting latest values", e);
+			throw new InternalServerErrorException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Pre-aggregated statistics (count, min, max, average, deviation, first and last value) of a
+	 * numeric sensor per minute, hour or day. resolution is in seconds and defaults to one hour.
+	 */
+	@ApiMethod(name = "getSensorRollups", path = "sensorrollups", httpMethod = "get")
+	public List<MeasureRollup> getSensorRollups(@Named("idsensor") Integer idsensor,
+			@Named("idexperiment") Integer idexperiment, @Named("from") Date from, @Named("to") Date to,
+			@Named("resolution") @Nullable Integer resolution) throws BadRequestException, InternalServerErrorException
+	{
+		try
+		{
+			return DAO.getRollups(idsensor, idexperiment, from == null ? null : new Timestamp(from.getTime()),
+					to == null ? null : new Timestamp(to.getTime()), resolution == null ? MeasureRollup.HOUR : resolution);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new BadRequestException(e.getMessage());
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception getting sensor rollups", e);
+			throw new InternalServerErrorException(e.getMessage());
+		}
+	}
+
+	private UpdateDataResponse update(UpdateDataRequest request, boolean async)
+	{
 		UpdateDataResponse res = new UpdateDataResponse();
 		try
 		{
@@ -56,84 +210,34 @@ public class IoTService
 				String validationResult = UpdateRequestValidator.validate(request);
 				if (validationResult == null || "".equals(validationResult))
 				{
-					SmartThingData[] thing_data_array = request.getSmartThingData();
-					EntityManager em = null;
-					EntityTransaction tx = null;
 					try
 					{
-						em = DAO.getEntityManager();
-					
-						tx = em.getTransaction();
-						tx.begin();
-						for (SmartThingData thing_data : thing_data_array)
+						List<Measure> measures = toMeasures(request);
+						if (!async)
+						{
+							/*all the measures of the request are stored in a single batched transaction*/
+							MeasureBatcher.write(measures);
+							res.setMessage("ok");
+							res.setStatus(200);
+						}
+						else if (IngestQueue.get().offer(measures))
 						{
-							SensorData[] sensor_data_array = thing_data.getSensorData();
-							
-							for (SensorData sensor_data : sensor_data_array)
-							{
-								Data[] measures = sensor_data.getMeasures();
-								for (Data m : measures)
-								{
-									/*create and persist the new measure*/
-									Measure measureEntity = new Measure();
-									measureEntity.setMeasure(m.getData());
-									Date parse = dateFormat.parse(m.getTime());
-									measureEntity.setMeasure_date(Timestamp.valueOf(gmt.format(parse)));
-									measureEntity.setIdsensor(sensor_data.getSensorId());
-									measureEntity.setIdthing(thing_data.getSmartThingId());
-									measureEntity.setImage(Base64.decodeBase64(m.getImage()));
-									
-						/* 1. identificar si es un smartthing con experimentos automatizados*/
-									int idexperimento =m.getIdexperiment();
-									boolean experimentoAutomatizado = false;
-									//if(thing_data.getSmartThingId() == 3)
-									if(idexperimento == 0)
-										experimentoAutomatizado = true;
-									
-				       /*2. Determinar el ultimo o mas nuevo idexperimento y usarlo
-						    declaramos una variable nueva Idexperimento, si la variable nueva Idexperimento = a el ultimo o mas nuevo experimento
-							de la base de datos lo mandamos llamar	*/	
-									
-									 
-									 if(experimentoAutomatizado){
-										 idexperimento = DAO.getExperimentThing(thing_data.getSmartThingId());
-									 }
-										 
-				                     measureEntity.setIdexperiment(idexperimento);
-									 measureEntity.setCharted(m.getCharted());
-							     	 em.persist(measureEntity);
-							   }
-			 
-							}  	
-									 
-							
-							em.flush();
+							res.setMessage("accepted");
+							res.setStatus(202);
+						}
+						else
+						{
+							res.setMessage("Ingest queue is full, retry later");
+							res.setStatus(429);
 						}
-						tx.commit();
-						res.setMessage("ok");
-						res.setStatus(200);
 					}
 					catch (Exception e)
-					
 					{
-						if (tx != null && tx.isActive())
-						{
-							tx.rollback();
-						}
-						e.printStackTrace();
-						
 						logger.log(Level.SEVERE, "Unexpected exception executing query", e);
 						                          //Excepcin inesperada consulta ejecucin
 						res.setMessage(e.getMessage());
 						res.setStatus(500);
 					}
-					finally
-					{
-						if (em != null)
-						{
-							em.close();
-						}
-					}
 				}
 					
 				else
@@ -156,6 +260,57 @@ public class IoTService
 		}
 		return res;
 	}
+
+	/**
+	 * Decodes the measures of a validated request into entities ready to be persisted
+	 * @param request
+	 * @return
+	 * @throws ParseException
+	 * @throws DatabaseException
+	 */
+	private List<Measure> toMeasures(UpdateDataRequest request) throws ParseException, DatabaseException
+	{
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssssZ");
+		SimpleDateFormat gmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssss");
+		gmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+		List<Measure> measureList = new ArrayList<>();
+		for (SmartThingData thing_data : request.getSmartThingData())
+		{
+			for (SensorData sensor_data : thing_data.getSensorData())
+			{
+				for (Data m : sensor_data.getMeasures())
+				{
+					/*create the new measure*/
+					Measure measureEntity = new Measure();
+					measureEntity.setMeasure(m.getData());
+					measureEntity.setMeasure_value(UpdateRequestValidator.parseNumber(m.getData()));
+					Date parse = dateFormat.parse(m.getTime());
+					measureEntity.setMeasure_date(Timestamp.valueOf(gmt.format(parse)));
+					measureEntity.setIdsensor(sensor_data.getSensorId());
+					measureEntity.setIdthing(thing_data.getSmartThingId());
+					measureEntity.setImage(Base64.decodeBase64(m.getImage()));
+
+					/* 1. identificar si es un smartthing con experimentos automatizados*/
+					int idexperimento = m.getIdexperiment() == null ? 0 : m.getIdexperiment();
+					boolean experimentoAutomatizado = false;
+					if (idexperimento == 0)
+						experimentoAutomatizado = true;
+
+					/*2. Determinar el ultimo o mas nuevo idexperimento y usarlo*/
+					if (experimentoAutomatizado)
+					{
+						idexperimento = DAO.getExperimentThing(thing_data.getSmartThingId());
+					}
+
+					measureEntity.setIdexperiment(idexperimento);
+					measureEntity.setCharted(m.getCharted());
+					measureList.add(measureEntity);
+				}
+			}
+		}
+		return measureList;
+	}
 	
 	public static void main(String[] args) throws ParseException
 	{
@@ -0,0 +1,181 @@
+package mx.cinvestav.gdl.iot.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.dao.TopologyIndex;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * Last known readings of every sensor, updated with the measures committed by this instance.
+ * Each sensor keeps its last <code>iot.latest.readings</code> measures, newest first, in an
+ * immutable array that writers replace with compare-and-set, so readers never wait. The stored
+ * readings of a sensor are loaded from the database on its first read and again once they are
+ * older than <code>iot.latest.ttl.ms</code>, merged with the ones committed here meanwhile, so the
+ * measures stored by other instances show up within that time. A load that finds nothing is kept
+ * for the same time, and sensors unknown to the {@link TopologyIndex} are neither loaded nor kept.
+ */
+public class LatestValues
+{
+	private static final String READINGS = "iot.latest.readings";
+	private static final int DEFAULT_READINGS = 10;
+	private static final String TTL = "iot.latest.ttl.ms";
+	private static final long DEFAULT_TTL = 60000;
+	private static final Measure[] EMPTY = new Measure[0];
+
+	private static final LatestValues instance = new LatestValues(Integer.getInteger(READINGS, DEFAULT_READINGS),
+			Long.getLong(TTL, DEFAULT_TTL));
+
+	private final int size;
+	private final long ttl;
+	private final ConcurrentMap<Integer, Readings> sensors = new ConcurrentHashMap<>();
+
+	public static LatestValues get()
+	{
+		return instance;
+	}
+
+	LatestValues(int size, long ttl)
+	{
+		this.size = Math.max(1, size);
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Adds committed measures. Measures that arrive late are placed by date, and dropped if they
+	 * are older than all the kept ones.
+	 */
+	public void update(List<Measure> measures)
+	{
+		for (Measure m : measures)
+		{
+			if (m.getIdsensor() == null || m.getMeasure_date() == null)
+			{
+				continue;
+			}
+			// the cache must not keep the image bytes of the request
+			sensor(m.getIdsensor()).add(copy(m));
+		}
+	}
+
+	/**
+	 * @return the last readings of each sensor, in the order of idsensors
+	 */
+	public List<SensorReadings> getReadings(List<Integer> idsensors) throws DatabaseException
+	{
+		List<SensorReadings> result = new ArrayList<>(idsensors.size());
+		for (Integer idsensor : idsensors)
+		{
+			SensorReadings readings = new SensorReadings();
+			readings.setIdsensor(idsensor);
+			if (idsensor == null || !TopologyIndex.isSensor(idsensor))
+			{
+				// a deleted sensor leaves the cache, an id that never existed does not enter it
+				sensors.remove(idsensor);
+				readings.setReadings(Arrays.asList(EMPTY));
+				result.add(readings);
+				continue;
+			}
+			Readings sensor = sensor(idsensor);
+			long now = System.currentTimeMillis();
+			if (now - sensor.loaded > ttl)
+			{
+				// concurrent reloads only merge the same measures twice
+				for (Measure m : DAO.getLatestMeasures(idsensor, size))
+				{
+					sensor.add(m);
+				}
+				sensor.loaded = now;
+			}
+			readings.setReadings(Arrays.asList(sensor.ref.get()));
+			result.add(readings);
+		}
+		return result;
+	}
+
+	private Readings sensor(Integer idsensor)
+	{
+		Readings sensor = sensors.get(idsensor);
+		if (sensor == null)
+		{
+			Readings created = new Readings();
+			sensor = sensors.putIfAbsent(idsensor, created);
+			if (sensor == null)
+			{
+				sensor = created;
+			}
+		}
+		return sensor;
+	}
+
+	/**
+	 * @return a new array with the measure in its place, or the same array if it is too old or
+	 *         already kept
+	 */
+	private Measure[] insert(Measure[] current, Measure m)
+	{
+		int position = 0;
+		while (position < current.length && !m.getMeasure_date().after(current[position].getMeasure_date()))
+		{
+			if (m.getMeasure_date().equals(current[position].getMeasure_date())
+					&& Objects.equals(m.getMeasure(), current[position].getMeasure()))
+			{
+				return current;
+			}
+			position++;
+		}
+		if (position == size)
+		{
+			return current;
+		}
+		Measure[] next = new Measure[Math.min(size, current.length + 1)];
+		System.arraycopy(current, 0, next, 0, position);
+		next[position] = m;
+		System.arraycopy(current, position, next, position + 1, next.length - position - 1);
+		return next;
+	}
+
+	private static Measure copy(Measure m)
+	{
+		Measure c = new Measure();
+		c.setId(m.getId());
+		c.setMeasure(m.getMeasure());
+		c.setMeasure_value(m.getMeasure_value());
+		c.setMeasure_date(m.getMeasure_date());
+		c.setIdsensor(m.getIdsensor());
+		c.setIdthing(m.getIdthing());
+		c.setImage_hash(m.getImage_hash());
+		c.setCharted(m.getCharted());
+		c.setIdexperiment(m.getIdexperiment());
+		return c;
+	}
+
+	/**
+	 * The readings of a sensor and when they were last loaded from the database, 0 if never
+	 */
+	private class Readings
+	{
+		private final AtomicReference<Measure[]> ref = new AtomicReference<>(EMPTY);
+		private volatile long loaded;
+
+		void add(Measure m)
+		{
+			while (true)
+			{
+				Measure[] current = ref.get();
+				Measure[] next = insert(current, m);
+				if (next == current || ref.compareAndSet(current, next))
+				{
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package mx.cinvestav.gdl.iot.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * Group commit of measures coming from concurrent update requests. The first caller becomes the
+ * leader and writes the rows of every request queued at that moment in one batched transaction;
+ * the other callers wait until their rows are committed. When the leader finishes it hands the
+ * leadership to the oldest waiting request, so no request pays for more than one extra group.
+ */
+public class MeasureBatcher
+{
+	private static final String MAX_GROUP_ROWS = "iot.ingest.group.rows";
+	private static final int DEFAULT_MAX_GROUP_ROWS = 5000;
+
+	private static final Logger logger = Logger.getLogger(MeasureBatcher.class.getName());
+	private static final Object lock = new Object();
+	private static final List<Pending> queue = new ArrayList<>();
+	private static boolean writing = false;
+
+	/**
+	 * Persists the measures, possibly together with the measures of other concurrent requests.
+	 * Returns once the measures are committed.
+	 * @param measures
+	 * @throws DatabaseException if the measures of this request could not be stored
+	 */
+	public static void write(List<Measure> measures) throws DatabaseException
+	{
+		if (measures.isEmpty())
+		{
+			return;
+		}
+		Pending own = new Pending(measures);
+		boolean leader;
+		synchronized (lock)
+		{
+			queue.add(own);
+			leader = !writing;
+			writing = true;
+		}
+		if (!leader && !own.awaitTurn())
+		{
+			// stored by another leader
+			own.rethrow();
+			return;
+		}
+
+		List<Pending> group = nextGroup();
+		try
+		{
+			commit(group);
+		}
+		finally
+		{
+			// a RuntimeException or Error of the insert must not leave the followers waiting
+			for (Pending p : group)
+			{
+				p.abandon();
+			}
+			synchronized (lock)
+			{
+				if (queue.isEmpty())
+				{
+					writing = false;
+				}
+				else
+				{
+					queue.get(0).promote();
+				}
+			}
+		}
+		own.rethrow();
+	}
+
+	private static List<Pending> nextGroup()
+	{
+		int maxRows = Integer.getInteger(MAX_GROUP_ROWS, DEFAULT_MAX_GROUP_ROWS);
+		List<Pending> group = new ArrayList<>();
+		int rows = 0;
+		synchronized (lock)
+		{
+			while (!queue.isEmpty() && (group.isEmpty() || rows + queue.get(0).measures.size() <= maxRows))
+			{
+				Pending p = queue.remove(0);
+				rows += p.measures.size();
+				group.add(p);
+			}
+		}
+		return group;
+	}
+
+	private static void commit(List<Pending> group)
+	{
+		if (group.size() == 1)
+		{
+			Pending p = group.get(0);
+			try
+			{
+				DAO.insertMeasures(p.measures);
+			}
+			catch (DatabaseException e)
+			{
+				p.done(e);
+				return;
+			}
+			p.done(null);
+			committed(p.measures);
+			return;
+		}
+
+		List<Measure> rows = new ArrayList<>();
+		for (Pending p : group)
+		{
+			rows.addAll(p.measures);
+		}
+		try
+		{
+			DAO.insertMeasures(rows);
+		}
+		catch (DatabaseException e)
+		{
+			// one bad request must not fail the others: retry them one by one
+			logger.log(Level.WARNING, "Group insert of " + group.size() + " requests failed, retrying individually", e);
+			for (Pending p : group)
+			{
+				try
+				{
+					DAO.insertMeasures(p.measures);
+				}
+				catch (DatabaseException ex)
+				{
+					p.done(ex);
+					continue;
+				}
+				p.done(null);
+				committed(p.measures);
+			}
+			return;
+		}
+		for (Pending p : group)
+		{
+			p.done(null);
+		}
+		committed(rows);
+	}
+
+	/**
+	 * Called with the measures of every committed transaction, here and in {@link IngestQueue}:
+	 * updates the latest values and pushes the measures to the dashboards. The measures are already
+	 * stored, so a failure here is only logged and never changes the result of the ingest.
+	 */
+	static void committed(List<Measure> measures)
+	{
+		try
+		{
+			LatestValues.get().update(measures);
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.WARNING, "Could not update the latest values with " + measures.size() + " measures", e);
+		}
+		try
+		{
+			MeasureBroadcaster.get().publish(measures);
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.WARNING, "Could not push " + measures.size() + " measures", e);
+		}
+	}
+
+	private static class Pending
+	{
+		private final List<Measure> measures;
+		private boolean leader = false;
+		private boolean done = false;
+		private DatabaseException error;
+
+		Pending(List<Measure> measures)
+		{
+			this.measures = measures;
+		}
+
+		/**
+		 * Waits until the request was stored by another leader (returns false) or until this
+		 * request has to lead the next group (returns true).
+		 */
+		synchronized boolean awaitTurn()
+		{
+			boolean interrupted = false;
+			while (!done && !leader)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return !done;
+		}
+
+		synchronized void promote()
+		{
+			leader = true;
+			notifyAll();
+		}
+
+		synchronized void done(DatabaseException e)
+		{
+			error = e;
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Completes the request with an error if the leader did not complete it
+		 */
+		synchronized void abandon()
+		{
+			if (!done)
+			{
+				done(new DatabaseException("Measures not stored: the group commit failed", null));
+			}
+		}
+
+		synchronized void rethrow() throws DatabaseException
+		{
+			if (error != null)
+			{
+				throw error;
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package mx.cinvestav.gdl.iot.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import mx.cinvestav.gdl.iot.dao.Measure;
+
+/**
+ * Fans out the measures committed by this instance to the dashboards subscribed to their sensors,
+ * without reading them back from the database. Every subscription has a buffer of
+ * <code>iot.push.buffer</code> measures: the measures published while the client is not reading
+ * are coalesced there and sent together, and when the buffer overflows the oldest ones are dropped
+ * and the client is told to fill the gap with a query.
+ * <p>
+ * A subscription outlives the request that reads it by <code>iot.push.park.ms</code>, so a client
+ * that reconnects with its token gets what was published in between. The subscriptions parked
+ * longer are dropped by the next subscribe, publish or release, at most once a second for the
+ * last two.
+ * <p>
+ * Push only lowers the latency of the charts, it does not deliver the measures: only measures
+ * stored by the same instance are seen, and every waiting request holds a thread, so the
+ * subscriptions of an instance are capped by <code>iot.push.max.clients</code>. The tail polling of
+ * the charts, one batched request per chart, is what keeps them complete on any number of
+ * instances.
+ */
+public class MeasureBroadcaster
+{
+	private static final String ENABLED = "iot.push.enabled";
+	private static final String MAX_CLIENTS = "iot.push.max.clients";
+	private static final String BUFFER = "iot.push.buffer";
+	private static final String PARK_MS = "iot.push.park.ms";
+	private static final int DEFAULT_MAX_CLIENTS = 200;
+	private static final int DEFAULT_BUFFER = 1000;
+	private static final long DEFAULT_PARK_MS = 30000;
+	private static final long SWEEP_MS = 1000;
+
+	private static final MeasureBroadcaster instance = new MeasureBroadcaster();
+
+	private final Map<Integer, List<Subscription>> bySensor = new ConcurrentHashMap<>();
+	private final Map<String, Subscription> byToken = new ConcurrentHashMap<>();
+	private volatile long swept;
+
+	public static MeasureBroadcaster get()
+	{
+		return instance;
+	}
+
+	public static boolean isEnabled()
+	{
+		return Boolean.getBoolean(ENABLED);
+	}
+
+	/**
+	 * @return a new subscription to the measures of the sensors in the experiment, or null if
+	 *         <code>iot.push.max.clients</code> are already subscribed
+	 */
+	public Subscription subscribe(int idexperiment, Collection<Integer> sensors)
+	{
+		expire();
+		if (byToken.size() >= Integer.getInteger(MAX_CLIENTS, DEFAULT_MAX_CLIENTS))
+		{
+			return null;
+		}
+		Subscription s = new Subscription(idexperiment, sensors, Integer.getInteger(BUFFER, DEFAULT_BUFFER));
+		byToken.put(s.token, s);
+		for (Integer idsensor : s.sensors)
+		{
+			synchronized (bySensor)
+			{
+				List<Subscription> list = bySensor.get(idsensor);
+				if (list == null)
+				{
+					list = new CopyOnWriteArrayList<>();
+					bySensor.put(idsensor, list);
+				}
+				list.add(s);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * @return the parked subscription with the token, or null if it expired
+	 */
+	public Subscription resume(String token)
+	{
+		Subscription s = token == null ? null : byToken.get(token);
+		if (s != null)
+		{
+			s.attach();
+		}
+		return s;
+	}
+
+	/**
+	 * Parks the subscription when its request ends; it is dropped if nobody resumes it in time
+	 */
+	public void release(Subscription s)
+	{
+		s.detach();
+		sweep();
+	}
+
+	/**
+	 * Offers committed measures to the subscriptions of their sensors. Only charted measures with
+	 * a numeric value are sent.
+	 */
+	public void publish(List<Measure> measures)
+	{
+		if (byToken.isEmpty())
+		{
+			return;
+		}
+		sweep();
+		Map<Subscription, List<Measure>> targets = new HashMap<>();
+		for (Measure m : measures)
+		{
+			if (m.getMeasure_value() == null || m.getIdsensor() == null || m.getIdexperiment() == null
+					|| !Integer.valueOf(1).equals(m.getCharted()))
+			{
+				continue;
+			}
+			List<Subscription> list = bySensor.get(m.getIdsensor());
+			if (list == null)
+			{
+				continue;
+			}
+			for (Subscription s : list)
+			{
+				if (s.idexperiment == m.getIdexperiment())
+				{
+					List<Measure> own = targets.get(s);
+					if (own == null)
+					{
+						own = new ArrayList<>();
+						targets.put(s, own);
+					}
+					own.add(m);
+				}
+			}
+		}
+		for (Map.Entry<Subscription, List<Measure>> e : targets.entrySet())
+		{
+			e.getKey().offer(e.getValue());
+		}
+	}
+
+	/**
+	 * Expires the parked subscriptions unless it was done in the last second, so the buffers of the
+	 * clients that left stop filling without waiting for a new subscription
+	 */
+	private void sweep()
+	{
+		long now = System.currentTimeMillis();
+		if (now - swept >= SWEEP_MS)
+		{
+			swept = now;
+			expire();
+		}
+	}
+
+	private void expire()
+	{
+		long limit = System.currentTimeMillis() - Long.getLong(PARK_MS, DEFAULT_PARK_MS);
+		for (Iterator<Subscription> it = byToken.values().iterator(); it.hasNext();)
+		{
+			Subscription s = it.next();
+			if (s.isParkedSince(limit))
+			{
+				it.remove();
+				for (Integer idsensor : s.sensors)
+				{
+					synchronized (bySensor)
+					{
+						List<Subscription> list = bySensor.get(idsensor);
+						if (list != null)
+						{
+							list.remove(s);
+							if (list.isEmpty())
+							{
+								bySensor.remove(idsensor);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	public static class Subscription
+	{
+		private final String token = UUID.randomUUID().toString();
+		private final int idexperiment;
+		private final Set<Integer> sensors;
+		private final int capacity;
+		private final ArrayDeque<Measure> buffer = new ArrayDeque<>();
+		private boolean gap = false;
+		private long parkedAt = 0;
+
+		Subscription(int idexperiment, Collection<Integer> sensors, int capacity)
+		{
+			this.idexperiment = idexperiment;
+			this.sensors = new HashSet<>(sensors);
+			this.capacity = Math.max(1, capacity);
+		}
+
+		public String getToken()
+		{
+			return token;
+		}
+
+		/**
+		 * Waits up to timeoutMillis for measures and returns all the buffered ones
+		 */
+		public synchronized List<Measure> await(long timeoutMillis) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long remaining = timeoutMillis;
+			while (buffer.isEmpty() && !gap && remaining > 0)
+			{
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			List<Measure> measures = new ArrayList<>(buffer);
+			buffer.clear();
+			return measures;
+		}
+
+		/**
+		 * @return true if measures were dropped since the last call
+		 */
+		public synchronized boolean takeGap()
+		{
+			boolean g = gap;
+			gap = false;
+			return g;
+		}
+
+		/**
+		 * Marks that the client may have missed measures, e.g. because its subscription expired
+		 */
+		public synchronized void markGap()
+		{
+			gap = true;
+			notifyAll();
+		}
+
+		synchronized void offer(List<Measure> measures)
+		{
+			for (Measure m : measures)
+			{
+				if (buffer.size() == capacity)
+				{
+					buffer.poll();
+					gap = true;
+				}
+				buffer.add(m);
+			}
+			notifyAll();
+		}
+
+		synchronized void attach()
+		{
+			parkedAt = 0;
+		}
+
+		synchronized void detach()
+		{
+			parkedAt = System.currentTimeMillis();
+		}
+
+		synchronized boolean isParkedSince(long time)
+		{
+			return parkedAt != 0 && parkedAt < time;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package mx.cinvestav.gdl.iot.impl;
+
+import java.util.List;
+
+import mx.cinvestav.gdl.iot.dao.Measure;
+
+/**
+ * The last readings of a sensor, newest first; the first one is the current value.
+ */
+public class SensorReadings
+{
+	private Integer idsensor;
+	private List<Measure> readings;
+
+	public Integer getIdsensor()
+	{
+		return idsensor;
+	}
+
+	public void setIdsensor(Integer idsensor)
+	{
+		this.idsensor = idsensor;
+	}
+
+	public List<Measure> getReadings()
+	{
+		return readings;
+	}
+
+	public void setReadings(List<Measure> readings)
+	{
+		this.readings = readings;
+	}
+}
@@ -0,0 +1,26 @@
+package mx.cinvestav.gdl.iot.migration;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+
+/**
+ * Moves the images stored inline in data.image to the image_blob table, leaving their hash in
+ * data.image_hash. The image_blob table and the image_hash column are created by hibernate
+ * (hbm2ddl.auto=update) the first time the application starts; run this afterwards, e.g.
+ *
+ * <pre>
+ * java -Dcloudsql.url.dev="jdbc:mysql://localhost:3306/data?user=root" \
+ *      mx.cinvestav.gdl.iot.migration.InlineImageMigration [rows per transaction]
+ * </pre>
+ *
+ * It can be run again safely: moved rows have a null image.
+ */
+public class InlineImageMigration
+{
+	public static void main(String[] args) throws Exception
+	{
+		int chunk = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long start = System.currentTimeMillis();
+		long moved = DAO.moveInlineImages(chunk);
+		System.out.printf("%d measures updated in %.1f s%n", moved, (System.currentTimeMillis() - start) / 1000.0);
+	}
+}
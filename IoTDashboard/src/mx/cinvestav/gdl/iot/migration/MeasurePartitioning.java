@@ -0,0 +1,26 @@
+package mx.cinvestav.gdl.iot.migration;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+
+/**
+ * Partitions the data table by month (dao.DataPartitions), so the queries of a date range and the
+ * retention of /tasks/data/retention only touch the months involved. MySQL copies the whole table
+ * and locks it meanwhile; stop the ingestion and run this against the same database, e.g.
+ *
+ * <pre>
+ * java -Dcloudsql.url.dev="jdbc:mysql://localhost:3306/data?user=root" \
+ *      mx.cinvestav.gdl.iot.migration.MeasurePartitioning
+ * </pre>
+ *
+ * The primary key becomes (iddata, measure_date), so every measure must have a date. It can be run
+ * again safely: a partitioned table only gets the missing months.
+ */
+public class MeasurePartitioning
+{
+	public static void main(String[] args) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		DAO.partitionMeasures();
+		System.out.printf("data table partitioned in %.1f s%n", (System.currentTimeMillis() - start) / 1000.0);
+	}
+}
@@ -0,0 +1,26 @@
+package mx.cinvestav.gdl.iot.migration;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+
+/**
+ * Fills the numeric measure_value column of the measures stored before it existed. The column
+ * itself is added by hibernate (hbm2ddl.auto=update) the first time the application starts; run
+ * this afterwards against the same database, e.g.
+ *
+ * <pre>
+ * java -Dcloudsql.url.dev="jdbc:mysql://localhost:3306/data?user=root" \
+ *      mx.cinvestav.gdl.iot.migration.MeasureValueMigration [rows per transaction]
+ * </pre>
+ *
+ * It can be run again safely: only rows with a null value are updated.
+ */
+public class MeasureValueMigration
+{
+	public static void main(String[] args) throws Exception
+	{
+		int chunk = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		long start = System.currentTimeMillis();
+		long updated = DAO.backfillMeasureValues(chunk);
+		System.out.printf("%d measures updated in %.1f s%n", updated, (System.currentTimeMillis() - start) / 1000.0);
+	}
+}
@@ -0,0 +1,28 @@
+package mx.cinvestav.gdl.iot.migration;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+
+/**
+ * Recomputes the data_rollup table from the stored measures. The table is created by hibernate
+ * (hbm2ddl.auto=update) the first time the application starts; stop the ingestion and run this
+ * against the same database, e.g.
+ *
+ * <pre>
+ * java -Dcloudsql.url.dev="jdbc:mysql://localhost:3306/data?user=root" \
+ *      mx.cinvestav.gdl.iot.migration.RollupRebuild [days per scan]
+ * </pre>
+ *
+ * then set iot.rollup.query to true. It can be run again: each series replaces only the buckets of
+ * the measures it still stores, in the data table, its segments or its archived parts, so the
+ * rollups of the measures deleted by iot.retention.days are kept.
+ */
+public class RollupRebuild
+{
+	public static void main(String[] args) throws Exception
+	{
+		int days = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+		long start = System.currentTimeMillis();
+		long rows = DAO.rebuildRollups(days);
+		System.out.printf("%d measures aggregated in %.1f s%n", rows, (System.currentTimeMillis() - start) / 1000.0);
+	}
+}
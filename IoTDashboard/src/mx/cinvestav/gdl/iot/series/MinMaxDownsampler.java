@@ -0,0 +1,131 @@
+package mx.cinvestav.gdl.iot.series;
+
+import java.util.Arrays;
+
+/**
+ * Single pass downsampling of a time series for charts. The range [from, to) is split in
+ * maxPoints / 2 buckets of equal time and only the minimum and the maximum of each bucket are
+ * kept, in time order, so peaks survive and a line chart of the result looks like the one of
+ * the raw points. Points must be added in time order; memory is bounded by maxPoints.
+ */
+public class MinMaxDownsampler implements PointConsumer
+{
+	private final long from;
+	private final double bucketWidth;
+	private final int buckets;
+
+	private long[] times;
+	private double[] values;
+	private int size;
+
+	private int bucket = -1;
+	private long minTime;
+	private double min;
+	private long maxTime;
+	private double max;
+
+	public MinMaxDownsampler(long from, long to, int maxPoints)
+	{
+		this.from = from;
+		this.buckets = Math.max(1, maxPoints / 2);
+		this.bucketWidth = Math.max(1, to - from) / (double) buckets;
+		this.times = new long[Math.min(2 * buckets, 1024)];
+		this.values = new double[times.length];
+	}
+
+	@Override
+	public void add(long time, double value)
+	{
+		int b = bucketOf(time);
+		if (b != bucket)
+		{
+			flush();
+			bucket = b;
+			minTime = maxTime = time;
+			min = max = value;
+			return;
+		}
+		if (value < min)
+		{
+			min = value;
+			minTime = time;
+		}
+		if (value > max)
+		{
+			max = value;
+			maxTime = time;
+		}
+	}
+
+	/**
+	 * @return true if both times fall in the same bucket; then adding only the minimum and the
+	 *         maximum of the points between them gives the same result as adding all of them
+	 */
+	public boolean isSameBucket(long time1, long time2)
+	{
+		return bucketOf(time1) == bucketOf(time2);
+	}
+
+	/**
+	 * Emits the last bucket; call it once after the last point
+	 */
+	public void finish()
+	{
+		flush();
+		bucket = -1;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public long time(int i)
+	{
+		return times[i];
+	}
+
+	public double value(int i)
+	{
+		return values[i];
+	}
+
+	private int bucketOf(long time)
+	{
+		return (int) Math.min(buckets - 1, Math.max(0, (long) ((time - from) / bucketWidth)));
+	}
+
+	private void flush()
+	{
+		if (bucket < 0)
+		{
+			return;
+		}
+		if (minTime == maxTime)
+		{
+			emit(minTime, min);
+		}
+		else if (minTime < maxTime)
+		{
+			emit(minTime, min);
+			emit(maxTime, max);
+		}
+		else
+		{
+			emit(maxTime, max);
+			emit(minTime, min);
+		}
+	}
+
+	private void emit(long time, double value)
+	{
+		if (size == times.length)
+		{
+			times = Arrays.copyOf(times, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		times[size] = time;
+		values[size] = value;
+		size++;
+	}
+}
@@ -0,0 +1,9 @@
+package mx.cinvestav.gdl.iot.series;
+
+/**
+ * Receives the points of a time series, in time order, without an object per point
+ */
+public interface PointConsumer
+{
+	void add(long time, double value);
+}
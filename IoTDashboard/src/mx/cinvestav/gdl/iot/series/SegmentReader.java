@@ -0,0 +1,158 @@
+package mx.cinvestav.gdl.iot.series;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the points of a segment written by {@link SegmentWriter}, in time order:
+ *
+ * <pre>
+ * SegmentReader reader = new SegmentReader(content);
+ * while (reader.next())
+ * {
+ * 	use(reader.time(), reader.value());
+ * }
+ * </pre>
+ *
+ * It reads the bytes of the segment where they are, e.g. a region of a mapped file, with absolute
+ * gets: readers of the same buffer can be used by different threads.
+ */
+public class SegmentReader
+{
+	private final ByteBuffer bits;
+	private final int size;
+	private final int end;
+	// next byte to load in the window
+	private int position;
+	// bits loaded and not read yet, left aligned
+	private long window;
+	private int available;
+
+	private int read;
+	private long time;
+	private long delta;
+	private long value;
+	private int leading;
+	private int trailing;
+
+	public SegmentReader(byte[] content)
+	{
+		this(ByteBuffer.wrap(content), 0, content.length);
+	}
+
+	/**
+	 * Reads the segment stored in buffer from offset, length bytes
+	 */
+	public SegmentReader(ByteBuffer buffer, int offset, int length)
+	{
+		if (length < SegmentWriter.HEADER_BYTES || buffer.get(offset) != SegmentWriter.VERSION)
+		{
+			throw new IllegalArgumentException("Not a segment of version " + SegmentWriter.VERSION);
+		}
+		this.bits = buffer;
+		this.size = buffer.getInt(offset + 1);
+		this.position = offset + SegmentWriter.HEADER_BYTES;
+		this.end = offset + length;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Moves to the next point
+	 * @return false after the last point
+	 */
+	public boolean next()
+	{
+		if (read == size)
+		{
+			return false;
+		}
+		if (read == 0)
+		{
+			time = read(64);
+			value = read(64);
+		}
+		else
+		{
+			delta += readTime();
+			time += delta;
+			value ^= readValue();
+		}
+		read++;
+		return true;
+	}
+
+	public long time()
+	{
+		return time;
+	}
+
+	public double value()
+	{
+		return Double.longBitsToDouble(value);
+	}
+
+	private long readTime()
+	{
+		if (read(1) == 0) return 0;
+		if (read(1) == 0) return read(7) - 63;
+		if (read(1) == 0) return read(9) - 255;
+		if (read(1) == 0) return read(12) - 2047;
+		return read(64);
+	}
+
+	private long readValue()
+	{
+		if (read(1) == 0)
+		{
+			return 0;
+		}
+		if (read(1) == 1)
+		{
+			leading = (int) read(5);
+			int meaningful = (int) read(6);
+			trailing = 64 - leading - (meaningful == 0 ? 64 : meaningful);
+		}
+		return read(64 - leading - trailing) << trailing;
+	}
+
+	/**
+	 * Reads count bits from a window of up to 64 bits loaded ahead, so most reads do not touch the
+	 * buffer
+	 */
+	private long read(int count)
+	{
+		if (count > 56)
+		{
+			long high = read(count - 32);
+			return (high << 32) | read(32);
+		}
+		if (count == 0)
+		{
+			return 0;
+		}
+		if (available < count)
+		{
+			if (position + 8 <= end && available == 0)
+			{
+				window = bits.getLong(position);
+				position += 8;
+				available = 64;
+			}
+			else
+			{
+				while (available <= 56 && position < end)
+				{
+					window |= (bits.get(position++) & 0xffL) << (56 - available);
+					available += 8;
+				}
+			}
+		}
+		long result = window >>> (64 - count);
+		window <<= count;
+		available -= count;
+		return result;
+	}
+}
@@ -0,0 +1,173 @@
+package mx.cinvestav.gdl.iot.series;
+
+import java.util.Arrays;
+
+/**
+ * Compresses the points of one time series into a segment, in the way of Facebook's Gorilla:
+ * each time is stored as the difference between its delta and the previous delta
+ * (delta-of-delta), and each value as the XOR with the previous value, keeping only its
+ * meaningful bits. Regular readings take a bit or two for the time and a few bits for the value,
+ * 2 to 4 bytes per point instead of about 100 for a row of the data table.
+ * <p>
+ * Layout: a version byte, the number of points (int), then a bit stream with the first time and
+ * value in 64 bits each and the deltas of the following points. {@link SegmentReader} reads it.
+ * Points must be added in time order, times in milliseconds.
+ */
+public class SegmentWriter
+{
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 5;
+
+	private byte[] bits = new byte[256];
+	private long bitLength;
+
+	private int size;
+	private long firstTime;
+	private long lastTime;
+	private long lastDelta;
+	private long lastValue;
+	private int lastLeading = -1;
+	private int lastTrailing;
+
+	public void add(long time, double value)
+	{
+		long valueBits = Double.doubleToRawLongBits(value);
+		if (size == 0)
+		{
+			firstTime = time;
+			write(time, 64);
+			write(valueBits, 64);
+		}
+		else
+		{
+			if (time < lastTime)
+			{
+				throw new IllegalArgumentException("Points must be added in time order: " + time + " < " + lastTime);
+			}
+			long delta = time - lastTime;
+			writeTime(delta - lastDelta);
+			writeValue(valueBits ^ lastValue);
+			lastDelta = delta;
+		}
+		lastTime = time;
+		lastValue = valueBits;
+		size++;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public long firstTime()
+	{
+		return firstTime;
+	}
+
+	public long lastTime()
+	{
+		return lastTime;
+	}
+
+	public byte[] toByteArray()
+	{
+		int length = (int) ((bitLength + 7) / 8);
+		byte[] content = new byte[HEADER_BYTES + length];
+		content[0] = VERSION;
+		content[1] = (byte) (size >>> 24);
+		content[2] = (byte) (size >>> 16);
+		content[3] = (byte) (size >>> 8);
+		content[4] = (byte) size;
+		System.arraycopy(bits, 0, content, HEADER_BYTES, length);
+		return content;
+	}
+
+	/**
+	 * The text a numeric measure is stored with when it is read back from a segment: whole values
+	 * without decimals, the others as Double.toString. A measure whose text differs (e.g. "21.50")
+	 * cannot be rebuilt from its value and is not moved to a segment.
+	 */
+	public static String format(double value)
+	{
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+		{
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	private void writeTime(long dod)
+	{
+		if (dod == 0)
+		{
+			write(0, 1);
+		}
+		else if (dod >= -63 && dod <= 64)
+		{
+			write(0x2, 2);
+			write(dod + 63, 7);
+		}
+		else if (dod >= -255 && dod <= 256)
+		{
+			write(0x6, 3);
+			write(dod + 255, 9);
+		}
+		else if (dod >= -2047 && dod <= 2048)
+		{
+			write(0xe, 4);
+			write(dod + 2047, 12);
+		}
+		else
+		{
+			write(0xf, 4);
+			write(dod, 64);
+		}
+	}
+
+	private void writeValue(long xor)
+	{
+		if (xor == 0)
+		{
+			write(0, 1);
+			return;
+		}
+		int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+		int trailing = Long.numberOfTrailingZeros(xor);
+		if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing)
+		{
+			// the meaningful bits fit in the window of the previous value
+			write(0x2, 2);
+			write(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+		}
+		else
+		{
+			int meaningful = 64 - leading - trailing;
+			write(0x3, 2);
+			write(leading, 5);
+			// 64 meaningful bits do not fit in 6 bits, they are written as 0
+			write(meaningful & 0x3f, 6);
+			write(xor >>> trailing, meaningful);
+			lastLeading = leading;
+			lastTrailing = trailing;
+		}
+	}
+
+	/**
+	 * Appends the lowest count bits of value, most significant first
+	 */
+	private void write(long value, int count)
+	{
+		if (bitLength + count > (long) bits.length * 8)
+		{
+			bits = Arrays.copyOf(bits, bits.length * 2);
+		}
+		for (int i = count - 1; i >= 0; i--)
+		{
+			if (((value >>> i) & 1) != 0)
+			{
+				bits[(int) (bitLength >>> 3)] |= 0x80 >>> (bitLength & 7);
+			}
+			bitLength++;
+		}
+	}
+}
@@ -2,29 +2,29 @@ package mx.cinvestav.gdl.iot.validation;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
-import javax.persistence.EntityManager;
-
+import mx.cinvestav.gdl.iot.cloudclient.Data;
 import mx.cinvestav.gdl.iot.cloudclient.SensorData;
 import mx.cinvestav.gdl.iot.cloudclient.SmartThingData;
 import mx.cinvestav.gdl.iot.cloudclient.UpdateDataRequest;
-import mx.cinvestav.gdl.iot.dao.Controller;
-import mx.cinvestav.gdl.iot.dao.DAO;
-import mx.cinvestav.gdl.iot.dao.Sensor;
-import mx.cinvestav.gdl.iot.dao.SmartThing;
+import mx.cinvestav.gdl.iot.dao.TopologyIndex;
 
 public class UpdateRequestValidator
 {
+	// the same numbers the backfill of measure_value accepts in SQL, Double.parseDouble alone
+	// would also take "1f", "0x1p3", "NaN" or "Infinity"
+	private static final Pattern NUMBER = Pattern
+			.compile("\\s*[-+]?([0-9]+[.]?[0-9]*|[.][0-9]+)([eE][-+]?[0-9]+)?\\s*");
+
 	public static String validate(UpdateDataRequest req)
 	{
 		StringBuffer sb = new StringBuffer();
-		EntityManager em = null;
 		try
 		{
-			em = DAO.getEntityManager();
+			// the hierarchy is checked against the in-memory topology index, no queries are issued
 			int c_id = req.getControllerId();
-			Controller c = em.find(Controller.class, c_id);
-			if (c == null)
+			if (!TopologyIndex.isController(c_id))
 			{
 				sb.append("The controller id is invalid; ");
 			}
@@ -33,8 +33,7 @@ public class UpdateRequestValidator
 				for (SmartThingData std : req.getSmartThingData())
 				{
 					int s_id = std.getSmartThingId();
-					SmartThing sm = em.find(SmartThing.class, s_id);
-					if(sm==null || sm.getIdcontroller()!=c_id)
+					if (!TopologyIndex.isThingOf(s_id, c_id))
 					{
 						sb.append("Controller id " + c_id + " is not associated with Smarthing "
 								+ s_id + "; ");						
@@ -44,12 +43,23 @@ public class UpdateRequestValidator
 						for (SensorData sd : std.getSensorData())
 						{
 							int id = sd.getSensorId();
-							Sensor s = em.find(Sensor.class, id);
-							if(s==null || s.getIdthing()!=s_id)
+							if (!TopologyIndex.isSensorOf(id, s_id))
 							{
 								sb.append("SmartThing id " + s_id
 										+ " is not associated with sensorid " + id + "; ");								
 							}
+							else if (TopologyIndex.requiresNumber(id))
+							{
+								for (Data d : sd.getMeasures())
+								{
+									if (parseNumber(d.getData()) == null)
+									{
+										sb.append("Sensor id " + id + " only accepts numeric measures, got '"
+												+ d.getData() + "'; ");
+										break;
+									}
+								}
+							}
 						}
 					}
 				}
@@ -60,10 +70,27 @@ public class UpdateRequestValidator
 			Logger logger = Logger.getLogger(UpdateRequestValidator.class.getName());
 			logger.log(Level.SEVERE, "Unexpected exception validating API request", e);
 		}
-		finally
+		return sb.toString();
+	}
+
+	/**
+	 * Parses a measure sent as text
+	 * @return the value, or null if the text is not a finite number
+	 */
+	public static Double parseNumber(String measure)
+	{
+		if (measure == null || !NUMBER.matcher(measure).matches())
+		{
+			return null;
+		}
+		try
 		{
-			if (em != null) em.close();
+			double value = Double.parseDouble(measure.trim());
+			return Double.isNaN(value) || Double.isInfinite(value) ? null : value;
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
 		}
-		return sb.toString();
 	}
 }
@@ -1,12 +1,17 @@
 package mx.cinvestav.gdl.iot.webpage.client;
 
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import mx.cinvestav.gdl.iot.webpage.dto.ControllerDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.IoTEntityDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.IoTPropertyDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.IoTTypeSensorDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.MeasureDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.MeasurePageDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SensorReadingsDTO;
 
 import com.google.gwt.user.client.rpc.RemoteService;
 import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
@@ -27,11 +32,57 @@ public interface EntityStoreService extends RemoteService
 			throws DatabaseException;
 	
 	public void deleteEntity(IoTEntityDTO entityDTO, Integer id) throws DatabaseException;
+
+	/**
+	 * Controllers for the selection lists. Without idcontroller, every controller without its
+	 * children; with it, that controller with its smart things and their sensors and experiments.
+	 */
+	public List<ControllerDTO> getTopology(Integer idcontroller) throws DatabaseException;
 	
 ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 	
 	public List<MeasureDTO> getSensorData(Integer idsensor, Integer idexperiment) throws DatabaseException;
+
+	/**
+	 * Measures of a sensor in [from, to), limit at a time; pass the nextCursor of a page to get
+	 * the next one. from and to may be null.
+	 */
+	public MeasurePageDTO getSensorDataPage(Integer idsensor, Integer idexperiment, Date from, Date to,
+			String cursor, int limit) throws DatabaseException;
+
+	/**
+	 * Measures of a sensor stored after the one with the given date and id, to append them to a
+	 * chart. lastId may be null when only the date of the last point is known.
+	 */
+	public MeasurePageDTO getSensorDataSince(Integer idsensor, Integer idexperiment, Date lastTimestamp,
+			Integer lastId, int limit) throws DatabaseException;
+
+	/**
+	 * getSensorDataSince for several sensors of an experiment in one call, the date and id of the
+	 * last measure of each sensor in the order of idsensors; keyed by sensor id
+	 */
+	public Map<Integer, MeasurePageDTO> getSensorDataSinceBatch(List<Integer> idsensors, Integer idexperiment,
+			List<Date> lastTimestamps, List<Integer> lastIds, int limit) throws DatabaseException;
+
+	/**
+	 * Measures of a sensor in [from, to) reduced to at most maxPoints points, keeping the minimum
+	 * and maximum of each time bucket. from and to may be null.
+	 */
+	public List<MeasureDTO> getSensorDataSeries(Integer idsensor, Integer idexperiment, Date from, Date to,
+			int maxPoints) throws DatabaseException;
+
+	/**
+	 * Series of several sensors of an experiment in one call, keyed by sensor id in the order of
+	 * idsensors. When from or to are null all the series share the range of the measures.
+	 */
+	public Map<Integer, List<MeasureDTO>> getSensorDataBatch(List<Integer> idsensors, Integer idexperiment,
+			Date from, Date to, int maxPoints) throws DatabaseException;
 	
+	/**
+	 * Last readings of each sensor, newest first; the first one is the current value
+	 */
+	public List<SensorReadingsDTO> getLatestValues(List<Integer> idsensors) throws DatabaseException;
+
 	public void storeSensorType(IoTTypeSensorDTO typeSensorDTO)
 			throws DatabaseException;
 	
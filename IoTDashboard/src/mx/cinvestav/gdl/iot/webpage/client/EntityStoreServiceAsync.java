@@ -1,12 +1,17 @@
 package mx.cinvestav.gdl.iot.webpage.client;
 
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import mx.cinvestav.gdl.iot.webpage.dto.ControllerDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.IoTEntityDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.IoTPropertyDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.IoTTypeSensorDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.MeasureDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.MeasurePageDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SensorReadingsDTO;
 
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
@@ -25,12 +30,31 @@ public interface EntityStoreServiceAsync
 	public <T extends IoTPropertyDTO> void deleteProperty(T propertyClass, Integer id,
 			AsyncCallback<Void> callback);
 
+	public void getTopology(Integer idcontroller, AsyncCallback<List<ControllerDTO>> callback);
+
 	public <T extends IoTEntityDTO> void deleteEntity(T entityDTO, Integer id,
 			AsyncCallback<Void> callback);
 	
 
     public void getSensorData(Integer idsensor, Integer idexperiment, AsyncCallback<List<MeasureDTO>> callback);
+
+	public void getSensorDataPage(Integer idsensor, Integer idexperiment, Date from, Date to, String cursor,
+			int limit, AsyncCallback<MeasurePageDTO> callback);
+
+	public void getSensorDataSince(Integer idsensor, Integer idexperiment, Date lastTimestamp, Integer lastId,
+			int limit, AsyncCallback<MeasurePageDTO> callback);
+
+	public void getSensorDataSinceBatch(List<Integer> idsensors, Integer idexperiment, List<Date> lastTimestamps,
+			List<Integer> lastIds, int limit, AsyncCallback<Map<Integer, MeasurePageDTO>> callback);
+
+	public void getSensorDataSeries(Integer idsensor, Integer idexperiment, Date from, Date to, int maxPoints,
+			AsyncCallback<List<MeasureDTO>> callback);
+
+	public void getSensorDataBatch(List<Integer> idsensors, Integer idexperiment, Date from, Date to,
+			int maxPoints, AsyncCallback<Map<Integer, List<MeasureDTO>>> callback);
  
+	public void getLatestValues(List<Integer> idsensors, AsyncCallback<List<SensorReadingsDTO>> callback);
+
 	public <T extends IoTTypeSensorDTO> void storeSensorType(T typeSensorDTO, AsyncCallback<Void> callback);
 	
 	public <T extends IoTTypeSensorDTO> void getSensorType(AsyncCallback<List<T>> callback);
@@ -818,6 +818,10 @@ public class EpSensor extends IoTEntryPoint
 		typeTable.setText(0, 0, "Name : ");
 		final TextBox typeName = new TextBox();
 		typeTable.setWidget(0, 1,typeName );
+		typeTable.setText(1, 0, "Numeric : ");
+		final CheckBox typeNumeric = new CheckBox();
+		typeNumeric.setValue(true);
+		typeTable.setWidget(1, 1, typeNumeric);
 		
 		Button btAddType = new Button("Save");
 		Button btCancelType = new Button("Cancel");
@@ -829,6 +833,7 @@ public class EpSensor extends IoTEntryPoint
 				
 				SensorTypeDTO c = new SensorTypeDTO();
 				c.setName(typeName.getText());
+				c.setNumeric(typeNumeric.getValue());
 				
 				showDialogWait();
 				entityService.storeSensorType(c, new AsyncCallback<Void>()
@@ -861,8 +866,8 @@ public class EpSensor extends IoTEntryPoint
 			}
 		});
 		
-		typeTable.setWidget(1, 0,btAddType );
-		typeTable.setWidget(1, 1,btCancelType );
+		typeTable.setWidget(2, 0,btAddType );
+		typeTable.setWidget(2, 1,btCancelType );
 		
 		addType.setWidget(typeTable);
 		
@@ -1,6 +1,9 @@
 package mx.cinvestav.gdl.iot.webpage.client;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
@@ -9,16 +12,25 @@ import sun.awt.image.PixelConverter.Bgrx;
 import mx.cinvestav.gdl.iot.webpage.dto.ControllerDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.ExperimentDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.MeasureDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.MeasurePageDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.SensorDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.SensorTypeDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.SmartThingDTO;
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArrayNumber;
 import com.google.gwt.event.dom.client.ChangeEvent;
 import com.google.gwt.event.dom.client.ChangeHandler;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.event.dom.client.MouseEvent;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
 import com.google.gwt.i18n.client.DateTimeFormat;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Button;
@@ -50,11 +62,17 @@ public class EpWPDatas extends IoTEntryPoint {
 	private ListBox lbTypeSensorAll = new ListBox();
 
 	private static final EntityStoreServiceAsync entityService = GWT.create(EntityStoreService.class);
+	private static final int PAGE_SIZE = 5000;
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	// charts that reach the current date poll for new measures with this period, new measures
+	// pushed by the server are shown as they arrive
+	private static final int TAIL_PERIOD = 30000;
 
+	// the smart things, sensors and experiments of the selected controller come in one call
 	private List<ControllerDTO> CONTROLLERS;
-	private List<SmartThingDTO> SMARTTHINGS;
-	private List<SensorDTO> SENSORS;
-	private List<ExperimentDTO> EXPERIMENT;
+	private Map<Integer, SmartThingDTO> SMARTTHINGS = new HashMap<Integer, SmartThingDTO>();
+	private List<SensorDTO> SENSORS = new ArrayList<SensorDTO>();
+	private Map<Integer, ExperimentDTO> EXPERIMENT = new HashMap<Integer, ExperimentDTO>();
 
 	private Map<String, List<MeasureDTO>> group;
 	//private String measure_unit = "";
@@ -77,6 +95,7 @@ public class EpWPDatas extends IoTEntryPoint {
 	
 	private DateBox[] dbTo = new DateBox[e];
 	private Button[] btGenerate = new Button[e];
+	private Tail[] tails = new Tail[e];
 
 	private VerticalPanel[] panelExperiment = new VerticalPanel[e];
 	private DecoratorPanel[] decoratorPanel = new DecoratorPanel[e];
@@ -140,7 +159,7 @@ public class EpWPDatas extends IoTEntryPoint {
 
 			final int a = i;
 			/*Get all controllers*/
-			entityService.getEntity(new ControllerDTO(), null, new AsyncCallback<List<ControllerDTO>>() {
+			entityService.getTopology(null, new AsyncCallback<List<ControllerDTO>>() {
 
 				@Override
 				public void onFailure(Throwable caught) {
@@ -227,7 +246,7 @@ public class EpWPDatas extends IoTEntryPoint {
 				public void onChange(ChangeEvent event) {
 					final int idController = Integer.parseInt(lbController[x].getValue(lbController[x]
 							.getSelectedIndex()));
-					entityService.getEntity(new SmartThingDTO(), null, new AsyncCallback<List<SmartThingDTO>>() {
+					entityService.getTopology(idController, new AsyncCallback<List<ControllerDTO>>() {
 
 						@Override
 						public void onFailure(Throwable caught) {
@@ -236,18 +255,16 @@ public class EpWPDatas extends IoTEntryPoint {
 
 						@Override
 				
-						public void onSuccess(List<SmartThingDTO> result) {
+						public void onSuccess(List<ControllerDTO> result) {
 
-							SMARTTHINGS = result;
+							SMARTTHINGS = result.isEmpty() || result.get(0).getThings() == null ? new HashMap<Integer, SmartThingDTO>()
+									: result.get(0).getThings();
 							lbSmartThing[x].clear();
 							lbSmartThing[x].addItem("Select...");
 							lbSmartThing[x].setEnabled(true);
-							for (SmartThingDTO c : SMARTTHINGS) {
+							for (SmartThingDTO c : SMARTTHINGS.values()) {
 								//agrega el nombre y Id a Smarthing
-								
-								if (c.getIdcontroller() == idController) {
-									lbSmartThing[x].addItem(c.getName(), c.getId() + "");
-								}
+								lbSmartThing[x].addItem(c.getName(), c.getId() + "");
 							}
 
 						}
@@ -263,77 +280,46 @@ public class EpWPDatas extends IoTEntryPoint {
 					final int idSmartThing = Integer.parseInt(lbSmartThing[x].getValue(lbSmartThing[x]
 							.getSelectedIndex()));
      /////////////////////////////////////////////           
-					/*AsyncCallback representa un mtodo de devolucin de llamada que se llama cuando la operacin es asincrnica.
-					El mtodo de devolucin de llamada toma un parmetro IAsyncResult*/ 
-					entityService.getEntity(new SensorDTO(), null, new AsyncCallback<List<SensorDTO>>() {
-
-						@Override
-						public void onFailure(Throwable caught) {
-							// TODO Auto-generated method stub
-						}
-						//result=SensorTypeDTO
-						@Override
-						public void onSuccess(List<SensorDTO> result) {
-							SENSORS = result;
-							//ListBox=lbSensor
-							lbSensor[x].clear();
-
-							lbTypeSensor[x].clear();
-							//lbSensor[x].setEnabled(true);
-
-							for (SensorDTO c : SENSORS) {
-								if (c.getIdthing() == idSmartThing) {
-									// Name Id
-									
-							
-								//	lbSensor[x].addItem(            getSensor_typeName(c.getSensor_type())    ,    c.getSensor_type()            );
-									String itemName = c.getDescription() ;
-									String itemId = c.getId().intValue()+"";// intValue() es un mtodo de la clase Integer, que retorna el valor pero en tipo primitivo (int) 						
-									lbSensor[x].addItem(            itemName   ,    itemId           );
-				
-								}
-							}
-
-							ArrayList<String> typeSensor = new ArrayList<String>();//filtra repetidos de la lista lbSensor en typeSensor
-
-							for (int i = 0; i < lbSensor[x].getItemCount(); i++) {//recorre todos los valores de lbsensor
-								if (!typeSensor.contains(lbSensor[x].getValue(i))) {
-								
-						
-									typeSensor.add(lbSensor[x].getValue(i));
-									// Name Id
-									lbTypeSensor[x].addItem(lbSensor[x].getItemText(i), lbSensor[x].getValue(i));
-							
-								}
-							}
-						}
-					});
+					// sensors and experiments came with the smart things of the controller
+					SmartThingDTO thing = SMARTTHINGS.get(idSmartThing);
+					SENSORS = thing == null || thing.getSensors() == null ? new ArrayList<SensorDTO>()
+							: new ArrayList<SensorDTO>(thing.getSensors().values());
+					EXPERIMENT = thing == null || thing.getExperiments() == null ? new HashMap<Integer, ExperimentDTO>()
+							: thing.getExperiments();
+
+					//ListBox=lbSensor
+					lbSensor[x].clear();
+
+					lbTypeSensor[x].clear();
+					//lbSensor[x].setEnabled(true);
+
+					for (SensorDTO c : SENSORS) {
+						// Name Id
+						String itemName = c.getDescription() ;
+						String itemId = c.getId().intValue()+"";// intValue() es un mtodo de la clase Integer, que retorna el valor pero en tipo primitivo (int) 						
+						lbSensor[x].addItem(            itemName   ,    itemId           );
+					}
 
-					entityService.getEntity(new ExperimentDTO(), null, new AsyncCallback<List<ExperimentDTO>>() {
+					ArrayList<String> typeSensor = new ArrayList<String>();//filtra repetidos de la lista lbSensor en typeSensor
 
-						@Override
-						public void onFailure(Throwable caught) {
-							// TODO Auto-generated method stub
+					for (int i = 0; i < lbSensor[x].getItemCount(); i++) {//recorre todos los valores de lbsensor
+						if (!typeSensor.contains(lbSensor[x].getValue(i))) {
+							typeSensor.add(lbSensor[x].getValue(i));
+							// Name Id
+							lbTypeSensor[x].addItem(lbSensor[x].getItemText(i), lbSensor[x].getValue(i));
 						}
+					}
 
-						@Override
-						public void onSuccess(List<ExperimentDTO> result) {
-							EXPERIMENT = result;
-							lbExperiment[x].clear();
-
-							lbExperiment[x].addItem("Select..", "-1");
-						    //lbExperiment[x].addItem("None", "-1");
+					lbExperiment[x].clear();
 
-							for (ExperimentDTO c : EXPERIMENT) {
-								if (c.getIdthing() == idSmartThing) {
-									// Name Id
-									String label = c.getName() + " : " + c.getDescription();
-									lbExperiment[x].addItem(label, c.getId() + "");
+					lbExperiment[x].addItem("Select..", "-1");
+					//lbExperiment[x].addItem("None", "-1");
 
-								}
-							}
-						}
-					});
+					for (ExperimentDTO c : EXPERIMENT.values()) {
+						// Name Id
+						String label = c.getName() + " : " + c.getDescription();
+						lbExperiment[x].addItem(label, c.getId() + "");
+					}
 				}
 			});
 
@@ -351,26 +337,16 @@ public class EpWPDatas extends IoTEntryPoint {
 						taNotes[x].setText("");*/
 					} else {
 
-						entityService.getEntity(new ExperimentDTO(), idExperiment,
-								new AsyncCallback<List<ExperimentDTO>>() {
+						ExperimentDTO experiment = EXPERIMENT.get(idExperiment);
+						if (experiment != null) {
+							dbTo[x].setValue(experiment.getEnd_date());
+							dbFrom[x].setValue(experiment.getStart_date());
+							dbFrom[x].setEnabled(false);
+							dbTo[x].setEnabled(false);
 
-									@Override
-									public void onFailure(Throwable caught) {
-										// TODO Auto-generated method stub
-									}
-
-									@Override
-									public void onSuccess(List<ExperimentDTO> result) {
-
-										dbTo[x].setValue(result.get(0).getEnd_date());
-										dbFrom[x].setValue(result.get(0).getStart_date());
-										dbFrom[x].setEnabled(false);
-										dbTo[x].setEnabled(false);
-
-										taDescription[x].setText(result.get(0).getDescription());
-										taNotes[x].setText(result.get(0).getNotes());
-									}
-								});
+							taDescription[x].setText(experiment.getDescription());
+							taNotes[x].setText(experiment.getNotes());
+						}
 					}
 				}
 			});
@@ -380,6 +356,7 @@ public class EpWPDatas extends IoTEntryPoint {
 				public void onClick(ClickEvent event) {
 					dbWait.show();
                //Inicio de graficacion			
+					stopTail(x);
 					GraphUtils.hideNVD3(x);
 					group = new HashMap<String, List<MeasureDTO>>();
 					formChart.clear();
@@ -409,6 +386,14 @@ public class EpWPDatas extends IoTEntryPoint {
 					}*/
 				   final String type="";
                     final int sf = numSensorSelected;
+		             // only the dates of the experiment, the end date is included
+		             Date from = dbFrom[x].getValue();
+		             Date to = dbTo[x].getValue() == null ? null : new Date(dbTo[x].getValue().getTime() + DAY);
+		             // charts get two points per pixel at most, galleries every measure
+		             int maxPoints = type.toUpperCase().equals("PHOTO") ? 0 : 2 * Window.getClientWidth();
+		             // all the sensors are requested together once the loop has their callbacks
+		             Map<Integer, AsyncCallback<List<MeasureDTO>>> callbacks = new LinkedHashMap<Integer, AsyncCallback<List<MeasureDTO>>>();
+		             Map<Integer, String> names = new HashMap<Integer, String>();
 					     for (int j = 0; j < seleccionados.size(); j++) {//se rrecorre lista de selecionados en 
 					    	 //vez de sensors cambio el for de sensors por lista de selecionados 
   				 	
@@ -418,7 +403,8 @@ public class EpWPDatas extends IoTEntryPoint {
 			               if(true){
 	
 		             final String name = selectedSensorResult[0]; 
-               entityService.getSensorData(i, Integer.parseInt(lbExperiment[x].getSelectedValue()), new AsyncCallback<List<MeasureDTO>>(){
+		             names.put(i, name);
+               callbacks.put(i, new AsyncCallback<List<MeasureDTO>>(){
 	
 										@Override
 										public void onFailure(Throwable caught) {
@@ -441,17 +427,15 @@ public class EpWPDatas extends IoTEntryPoint {
 													for (int row = 0; row <= numRows; row++) {
 														for (int col = 0; col < numColumns; col++, i++) {
 															if (i < result.size()) {
-																byte[] image2 = result.get(i).getImage();
-
-																char[] encode = Base64Coder.encode(image2);
-																String x = new String(encode);
+																// the browser loads and caches the images from the image servlet
+																final String url = GWT.getHostPageBaseURL() + "image/"
+																		+ result.get(i).getImage_hash();
 
 																Image image = new Image();
-																image.setUrl("data:image/png;base64," + x);
+																image.setUrl(url + "/thumb");
 																image.setSize("25%", "25%");
 
-																Image imageFull = new Image();
-																imageFull.setUrl("data:image/png;base64," + x);
+																final Image imageFull = new Image();
 
 																final DialogBox imagePopup2 = new DialogBox();
 																imagePopup2.setAnimationEnabled(true);
@@ -468,6 +452,7 @@ public class EpWPDatas extends IoTEntryPoint {
 
 																image.addClickHandler(new ClickHandler() {
 																	public void onClick(ClickEvent event) {
+																		imageFull.setUrl(url);
 																		imagePopup2.center();
 																		imagePopup2.show();
 																	}
@@ -496,20 +481,7 @@ public class EpWPDatas extends IoTEntryPoint {
 											if (group.size() == sf) {
 												String data = GraphUtils.generateStringData(group);//genera json
 												if (data == null) {
-
-													final DialogBox noDatas = new DialogBox();
-													noDatas.setAnimationEnabled(true);
-													noDatas.setGlassEnabled(true);
-													noDatas.setText("There is no data for display.");
-													Button close = new Button("Close");
-													close.addClickHandler(new ClickHandler() {
-														public void onClick(ClickEvent event) {
-														noDatas.hide();
-														}
-													});
-													noDatas.setWidget(close);
-													noDatas.show();
-													noDatas.center();
+													showNoData();
 												} 
 												else 
 												{ 
@@ -533,12 +505,311 @@ public class EpWPDatas extends IoTEntryPoint {
 									});
 						}
 					}
+					     int idexperiment = Integer.parseInt(lbExperiment[x].getSelectedValue());
+					     if (maxPoints > 0 && !names.isEmpty()) {
+					    	 getSeries(x, names, idexperiment, from, to, maxPoints);
+					     } else {
+					    	 getSensorData(callbacks, idexperiment, from, to);
+					     }
 				}
 			});
 		}
 
 	}
 	
+	/**
+	 * Draws the chart of the sensors between two dates, downsampled by the server to maxPoints
+	 * per sensor. /series answers the JSON smartcitygrapher.js draws, so the points are not
+	 * copied into MeasureDTOs or formatted here.
+	 */
+	private void getSeries(final int x, final Map<Integer, String> names, final int idexperiment, Date from,
+			final Date to, int maxPoints) {
+		StringBuilder url = new StringBuilder(GWT.getHostPageBaseURL()).append("series?idexperiment=").append(
+				idexperiment);
+		String unit = "";
+		for (Map.Entry<Integer, String> e : names.entrySet()) {
+			url.append("&idsensor=").append(e.getKey());
+			unit = getUnit(e.getValue());
+		}
+		if (from != null) {
+			url.append("&from=").append(from.getTime());
+		}
+		if (to != null) {
+			url.append("&to=").append(to.getTime());
+		}
+		url.append("&maxPoints=").append(maxPoints);
+		final String yAxis = unit;
+		final String graphTitle = names.size() == 1 ? lbTypeSensor[x].getSelectedItemText() : "Grafica de Sensores";
+
+		RequestBuilder builder = new RequestBuilder(RequestBuilder.GET, url.toString());
+		builder.setCallback(new RequestCallback() {
+
+			@Override
+			public void onResponseReceived(Request request, Response response) {
+				dbWait.hide();
+				if (response.getStatusCode() != Response.SC_OK) {
+					return;
+				}
+				String data = response.getText();
+				if ("[]".equals(data)) {
+					showNoData();
+					return;
+				}
+				GraphUtils.generateNVD3(yAxis, "Date", data, x, graphTitle);
+
+				// a chart that reaches today keeps receiving the new measures after its last points
+				if (to == null || to.after(new Date())) {
+					Map<Integer, MeasureDTO> last = new HashMap<Integer, MeasureDTO>();
+					JsArrayNumber points = GraphUtils.lastPoints(data);
+					for (int i = 0; i < points.length(); i += 2) {
+						MeasureDTO m = new MeasureDTO();
+						m.setIdsensor((int) points.get(i));
+						m.setMeasure_date(new Timestamp((long) points.get(i + 1)));
+						last.put(m.getIdsensor(), m);
+					}
+					startTail(x, names, last, idexperiment);
+				}
+			}
+
+			@Override
+			public void onError(Request request, Throwable exception) {
+				dbWait.hide();
+			}
+		});
+		try {
+			builder.send();
+		} catch (RequestException e) {
+			dbWait.hide();
+		}
+	}
+
+	/**
+	 * Loads all the measures of the sensors between two dates, PAGE_SIZE at a time, and passes
+	 * them to the callback of each sensor.
+	 */
+	private void getSensorData(final Map<Integer, AsyncCallback<List<MeasureDTO>>> callbacks,
+			final int idexperiment, Date from, final Date to) {
+		if (callbacks.isEmpty()) {
+			dbWait.hide();
+		}
+		for (Map.Entry<Integer, AsyncCallback<List<MeasureDTO>>> e : callbacks.entrySet()) {
+			getSensorData(e.getKey(), idexperiment, from, to, null, new ArrayList<MeasureDTO>(), e.getValue());
+		}
+	}
+
+	private void showNoData() {
+		final DialogBox noDatas = new DialogBox();
+		noDatas.setAnimationEnabled(true);
+		noDatas.setGlassEnabled(true);
+		noDatas.setText("There is no data for display.");
+		Button close = new Button("Close");
+		close.addClickHandler(new ClickHandler() {
+			public void onClick(ClickEvent event) {
+				noDatas.hide();
+			}
+		});
+		noDatas.setWidget(close);
+		noDatas.show();
+		noDatas.center();
+	}
+
+	private void getSensorData(final int idsensor, final int idexperiment, final Date from, final Date to,
+			String cursor, final List<MeasureDTO> measures, final AsyncCallback<List<MeasureDTO>> callback) {
+		entityService.getSensorDataPage(idsensor, idexperiment, from, to, cursor, PAGE_SIZE,
+				new AsyncCallback<MeasurePageDTO>() {
+
+					@Override
+					public void onFailure(Throwable caught) {
+						callback.onFailure(caught);
+					}
+
+					@Override
+					public void onSuccess(MeasurePageDTO page) {
+						measures.addAll(page.getMeasures());
+						if (page.getNextCursor() == null) {
+							callback.onSuccess(measures);
+						} else {
+							getSensorData(idsensor, idexperiment, from, to, page.getNextCursor(), measures, callback);
+						}
+					}
+				});
+	}
+
+	private void startTail(int x, Map<Integer, String> names, Map<Integer, MeasureDTO> last, int idexperiment) {
+		stopTail(x);
+		tails[x] = new Tail(x, names, last, idexperiment);
+		tails[x].start();
+	}
+
+	private void stopTail(int x) {
+		if (tails[x] != null) {
+			tails[x].stop();
+			tails[x] = null;
+		}
+	}
+
+	/**
+	 * Keeps a chart up to date: polls every TAIL_PERIOD, with one request for all its series, for
+	 * the measures stored after the last point of each series, and meanwhile appends the measures
+	 * the server pushes on /push. A pushed measure older than the last point of its series was
+	 * already polled and is ignored.
+	 */
+	private class Tail {
+		private final int x;
+		private final Map<Integer, String> names;
+		private final Map<Integer, MeasureDTO> last;
+		private final int idexperiment;
+		private final Map<String, List<MeasureDTO>> pushed = new HashMap<String, List<MeasureDTO>>();
+		private final Timer timer = new Timer() {
+
+			@Override
+			public void run() {
+				poll();
+			}
+		};
+		private JavaScriptObject source;
+		private boolean polling = false;
+		private boolean stopped = false;
+
+		Tail(int x, Map<Integer, String> names, Map<Integer, MeasureDTO> last, int idexperiment) {
+			this.x = x;
+			this.names = names;
+			this.last = last;
+			this.idexperiment = idexperiment;
+		}
+
+		void start() {
+			timer.schedule(TAIL_PERIOD);
+			StringBuilder url = new StringBuilder(GWT.getHostPageBaseURL()).append("push?idexperiment=").append(
+					idexperiment);
+			for (Integer idsensor : last.keySet()) {
+				url.append("&idsensor=").append(idsensor);
+			}
+			source = open(url.toString());
+		}
+
+		void stop() {
+			stopped = true;
+			timer.cancel();
+			close(source);
+		}
+
+		void poll() {
+			if (polling || stopped) {
+				return;
+			}
+			polling = true;
+			timer.cancel();
+			// one request for all the series of the chart
+			List<Integer> idsensors = new ArrayList<Integer>(last.keySet());
+			List<Date> lastTimestamps = new ArrayList<Date>();
+			List<Integer> lastIds = new ArrayList<Integer>();
+			for (Integer idsensor : idsensors) {
+				lastTimestamps.add(last.get(idsensor).getMeasure_date());
+				lastIds.add(last.get(idsensor).getId());
+			}
+			entityService.getSensorDataSinceBatch(idsensors, idexperiment, lastTimestamps, lastIds, PAGE_SIZE,
+					new AsyncCallback<Map<Integer, MeasurePageDTO>>() {
+
+						@Override
+						public void onFailure(Throwable caught) {
+							done(null);
+						}
+
+						@Override
+						public void onSuccess(Map<Integer, MeasurePageDTO> pages) {
+							done(pages);
+						}
+
+						private void done(Map<Integer, MeasurePageDTO> pages) {
+							polling = false;
+							// the chart may have been generated again meanwhile
+							if (stopped) {
+								return;
+							}
+							Map<String, List<MeasureDTO>> received = new HashMap<String, List<MeasureDTO>>();
+							if (pages != null) {
+								for (Map.Entry<Integer, MeasurePageDTO> e : pages.entrySet()) {
+									List<MeasureDTO> measures = e.getValue().getMeasures();
+									if (!measures.isEmpty()) {
+										received.put(names.get(e.getKey()), measures);
+										last.put(e.getKey(), measures.get(measures.size() - 1));
+									}
+								}
+							}
+							if (!received.isEmpty()) {
+								GraphUtils.appendNVD3(GraphUtils.generateStringData(received), x);
+							}
+							timer.schedule(TAIL_PERIOD);
+						}
+					});
+		}
+
+		void onPush(int idsensor, int id, double time, int nanos, double value) {
+			MeasureDTO previous = last.get(idsensor);
+			if (previous == null) {
+				return;
+			}
+			Timestamp date = new Timestamp((long) time);
+			date.setNanos(nanos);
+			Timestamp previousDate = previous.getMeasure_date();
+			if (date.before(previousDate)
+					|| (date.equals(previousDate) && (id < 0 || previous.getId() == null || id <= previous.getId()))) {
+				return;
+			}
+			MeasureDTO m = new MeasureDTO();
+			m.setId(id < 0 ? null : id);
+			m.setIdsensor(idsensor);
+			m.setMeasure_date(date);
+			m.setMeasure_value(value);
+			m.setMeasure(String.valueOf(value));
+			last.put(idsensor, m);
+			String name = names.get(idsensor);
+			if (!pushed.containsKey(name)) {
+				pushed.put(name, new ArrayList<MeasureDTO>());
+			}
+			pushed.get(name).add(m);
+		}
+
+		void flushPush() {
+			if (!stopped && !pushed.isEmpty()) {
+				GraphUtils.appendNVD3(GraphUtils.generateStringData(pushed), x);
+			}
+			pushed.clear();
+		}
+
+		/**
+		 * Opens the event stream, null if the browser has no EventSource. When the server does not
+		 * push (it answers 204) the browser closes it and only the polling remains.
+		 */
+		private native JavaScriptObject open(String url) /*-{
+			if (!$wnd.EventSource) {
+				return null;
+			}
+			var self = this;
+			var source = new $wnd.EventSource(url);
+			source.addEventListener('measures', $entry(function(e) {
+				var points = JSON.parse(e.data);
+				for (var i = 0; i < points.length; i++) {
+					var p = points[i];
+					self.@mx.cinvestav.gdl.iot.webpage.client.EpWPDatas.Tail::onPush(IIDID)(p.idsensor,
+							p.id == null ? -1 : p.id, p.time, p.nanos, p.value);
+				}
+				self.@mx.cinvestav.gdl.iot.webpage.client.EpWPDatas.Tail::flushPush()();
+			}));
+			source.addEventListener('gap', $entry(function(e) {
+				self.@mx.cinvestav.gdl.iot.webpage.client.EpWPDatas.Tail::poll()();
+			}));
+			return source;
+		}-*/;
+
+		private native void close(JavaScriptObject source) /*-{
+			if (source) {
+				source.close();
+			}
+		}-*/;
+	}
+
 	private String getUnit(String sensorName)
 	{
 		for(SensorDTO s : SENSORS)
@@ -5,7 +5,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import mx.cinvestav.gdl.iot.webpage.dto.MeasureDTO;
-import com.google.gwt.i18n.client.DateTimeFormat;
+import com.google.gwt.core.client.JsArrayNumber;
 
 
 public class GraphUtils
@@ -38,38 +38,40 @@ public class GraphUtils
 
 	}
 
+	/**
+	 * The series as columns, like the /series servlet writes them:
+	 * "key":"name","x":[millis,...],"y":[value,...]
+	 */
 	private static StringBuffer generateData(List<MeasureDTO> measures, String sensorName)
 	{
 		StringBuffer json = new StringBuffer("");
-	
-		json.append("\"key\":\"").append(sensorName).append("\",");
-		//json.append("\"color\":\"").append(color).append("\",");
-	    json.append("\"values\":[").append(generateArray(measures)).append("]");
-		return json;
-			
-	}
-
-	private static StringBuffer generateArray(List<MeasureDTO> measures)
-	{
-		// 2014-03-09T23:06:57.084Z
-		DateTimeFormat fmt = DateTimeFormat.getFormat("yyyy-MM-dd'T'HH:mm:ss.SZZ");
-		StringBuffer json = new StringBuffer("");
+		json.append("\"key\":\"").append(sensorName.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",");
+		StringBuffer x = new StringBuffer("\"x\":[");
+		StringBuffer y = new StringBuffer("\"y\":[");
 		for (MeasureDTO m : measures)
 		{
-			json.append("{\"y\":");
-			json.append(m.getMeasure()).append(",\"x\":\"");
-			String date = fmt.format(m.getMeasure_date());
-			json.append(date.substring(0, date.length()-4)+"0000");
-			json.append("").append("\"},");
-		  
-		  }
-		json.deleteCharAt(json.length() - 1);
-		return json;
-		
-		
+			x.append(m.getMeasure_date().getTime()).append(',');
+			// rows stored before measure_value existed only have the text
+			y.append(m.getMeasure_value() != null ? m.getMeasure_value().toString() : m.getMeasure()).append(',');
+		}
+		x.setCharAt(x.length() - 1, ']');
+		y.setCharAt(y.length() - 1, ']');
+		return json.append(x).append(',').append(y);
 	}
-	
-		
+
+	/**
+	 * Time of the last point of each series of data (as answered by /series), in pairs:
+	 * idsensor, millis, idsensor, millis...
+	 */
+	public static native JsArrayNumber lastPoints(String data) /*-{
+		var series = JSON.parse(data);
+		var last = [];
+		for (var i = 0; i < series.length; i++) {
+			last.push(series[i].idsensor, series[i].x[series[i].x.length - 1]);
+		}
+		return last;
+	}-*/;
+
 	public static native void hideNVD3(int index) /*-{
 		$wnd.hideNVD3(index);
 	}-*/;
@@ -83,6 +85,14 @@ public class GraphUtils
 		
 			
 	}-*/;
+
+	/**
+	 * Adds the points of data (same format as generateNVD3) at the end of the series of a chart
+	 * already drawn, without drawing it again from scratch
+	 */
+	public static native void appendNVD3(String data, int index) /*-{
+		$wnd.appendNVD3(data, index);
+	}-*/;
 	
 	
 	
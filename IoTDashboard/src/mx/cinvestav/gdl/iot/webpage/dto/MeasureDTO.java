@@ -8,10 +8,11 @@ public class MeasureDTO implements Serializable
 	private static final long serialVersionUID = 7496999784301790738L;
 	private Integer id;
 	private String measure;
+	private Double measure_value;
 	private Timestamp measure_date;
 	private Integer idsensor;
 	private Integer idthing;
-	private byte[] image;
+	private String image_hash;
 
 	public Integer getId()
 	{
@@ -33,6 +34,16 @@ public class MeasureDTO implements Serializable
 		this.measure = measure;
 	}
 
+	public Double getMeasure_value()
+	{
+		return measure_value;
+	}
+
+	public void setMeasure_value(Double measure_value)
+	{
+		this.measure_value = measure_value;
+	}
+
 	public Timestamp getMeasure_date()
 	{
 		return measure_date;
@@ -62,14 +73,14 @@ public class MeasureDTO implements Serializable
 	{
 		this.idthing = idthing;
 	}
-	
-	public byte[] getImage()
+
+	public String getImage_hash()
 	{
-		return image;
+		return image_hash;
 	}
-	
-	public void setImage(byte[] image)
+
+	public void setImage_hash(String image_hash)
 	{
-		this.image = image;
+		this.image_hash = image_hash;
 	}
 }
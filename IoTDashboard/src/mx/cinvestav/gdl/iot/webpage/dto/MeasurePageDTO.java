@@ -0,0 +1,34 @@
+package mx.cinvestav.gdl.iot.webpage.dto;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class MeasurePageDTO implements Serializable
+{
+	private static final long serialVersionUID = -2409337195484921165L;
+	private List<MeasureDTO> measures;
+	private String nextCursor;
+
+	public List<MeasureDTO> getMeasures()
+	{
+		return measures;
+	}
+
+	public void setMeasures(List<MeasureDTO> measures)
+	{
+		this.measures = measures;
+	}
+
+	/**
+	 * @return the cursor of the next page, or null if this is the last one
+	 */
+	public String getNextCursor()
+	{
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor)
+	{
+		this.nextCursor = nextCursor;
+	}
+}
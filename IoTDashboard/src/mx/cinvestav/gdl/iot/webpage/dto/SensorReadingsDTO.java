@@ -0,0 +1,34 @@
+package mx.cinvestav.gdl.iot.webpage.dto;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class SensorReadingsDTO implements Serializable
+{
+	private static final long serialVersionUID = 6310575923411786204L;
+	private Integer idsensor;
+	private List<MeasureDTO> readings;
+
+	public Integer getIdsensor()
+	{
+		return idsensor;
+	}
+
+	public void setIdsensor(Integer idsensor)
+	{
+		this.idsensor = idsensor;
+	}
+
+	/**
+	 * @return the last readings, newest first; empty if the sensor has no measures
+	 */
+	public List<MeasureDTO> getReadings()
+	{
+		return readings;
+	}
+
+	public void setReadings(List<MeasureDTO> readings)
+	{
+		this.readings = readings;
+	}
+}
@@ -7,6 +7,7 @@ public class SensorTypeDTO implements IoTTypeSensorDTO
 
 	private Integer id;
 	private String name;
+	private Boolean numeric;
 	
 	public Integer getId()
 	{
@@ -27,4 +28,14 @@ public class SensorTypeDTO implements IoTTypeSensorDTO
 	{
 		this.name = name;
 	}
+
+	public Boolean getNumeric()
+	{
+		return numeric;
+	}
+
+	public void setNumeric(Boolean numeric)
+	{
+		this.numeric = numeric;
+	}
 }
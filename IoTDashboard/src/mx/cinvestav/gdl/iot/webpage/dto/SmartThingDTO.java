@@ -21,6 +21,9 @@ public class SmartThingDTO implements IoTEntityDTO
 	//mapeo SmartThingPropertyDTO
 	private Map<Integer, SmartThingPropertyDTO> properties;
 
+	// only filled by getTopology
+	private Map<Integer, ExperimentDTO> experiments;
+
 	private Integer idcontroller;
 
 	public Integer getId()
@@ -83,6 +86,16 @@ public class SmartThingDTO implements IoTEntityDTO
 		this.properties = properties;
 	}
 
+	public Map<Integer, ExperimentDTO> getExperiments()
+	{
+		return experiments;
+	}
+
+	public void setExperiments(Map<Integer, ExperimentDTO> experiments)
+	{
+		this.experiments = experiments;
+	}
+
 	public Integer getIdcontroller()
 	{
 		return idcontroller;
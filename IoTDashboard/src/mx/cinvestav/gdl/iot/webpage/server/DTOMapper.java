@@ -0,0 +1,465 @@
+package mx.cinvestav.gdl.iot.webpage.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mx.cinvestav.gdl.iot.dao.Controller;
+import mx.cinvestav.gdl.iot.dao.ControllerProperty;
+import mx.cinvestav.gdl.iot.dao.Experiment;
+import mx.cinvestav.gdl.iot.dao.IoTEntity;
+import mx.cinvestav.gdl.iot.dao.IoTProperty;
+import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.dao.Sensor;
+import mx.cinvestav.gdl.iot.dao.SensorProperty;
+import mx.cinvestav.gdl.iot.dao.SensorType;
+import mx.cinvestav.gdl.iot.dao.SmartThing;
+import mx.cinvestav.gdl.iot.dao.SmartThingProperty;
+import mx.cinvestav.gdl.iot.dao.User;
+import mx.cinvestav.gdl.iot.webpage.dto.ControllerDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.ControllerPropertyDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.ExperimentDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.IoTEntityDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.IoTPropertyDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.IoTTypeSensorDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.MeasureDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SensorDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SensorPropertyDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SensorTypeDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SmartThingDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SmartThingPropertyDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.UserDTO;
+
+/**
+ * Copies entities to the DTOs sent to the GWT pages and back, field by field. Fields that exist
+ * only on one side (e.g. Measure.image, UserDTO.sessionID) are not copied. Dates are shared, not
+ * cloned: the DTOs are serialized right away and the entities are not modified afterwards. A null
+ * argument maps to null.
+ */
+public final class DTOMapper
+{
+	private DTOMapper()
+	{
+	}
+
+	public static IoTEntityDTO toDTO(IoTEntity entity)
+	{
+		if (entity == null) return null;
+		if (entity instanceof Controller) return toDTO((Controller) entity);
+		if (entity instanceof SmartThing) return toDTO((SmartThing) entity);
+		if (entity instanceof Sensor) return toDTO((Sensor) entity);
+		if (entity instanceof Experiment) return toDTO((Experiment) entity);
+		throw new IllegalArgumentException("No DTO for " + entity.getClass().getName());
+	}
+
+	public static IoTEntity toEntity(IoTEntityDTO dto)
+	{
+		if (dto == null) return null;
+		if (dto instanceof ControllerDTO) return toEntity((ControllerDTO) dto);
+		if (dto instanceof SmartThingDTO) return toEntity((SmartThingDTO) dto);
+		if (dto instanceof SensorDTO) return toEntity((SensorDTO) dto);
+		if (dto instanceof ExperimentDTO) return toEntity((ExperimentDTO) dto);
+		throw new IllegalArgumentException("No entity for " + dto.getClass().getName());
+	}
+
+	public static IoTPropertyDTO toDTO(IoTProperty property)
+	{
+		if (property == null) return null;
+		if (property instanceof ControllerProperty) return toDTO((ControllerProperty) property);
+		if (property instanceof SmartThingProperty) return toDTO((SmartThingProperty) property);
+		if (property instanceof SensorProperty) return toDTO((SensorProperty) property);
+		throw new IllegalArgumentException("No DTO for " + property.getClass().getName());
+	}
+
+	public static IoTProperty toEntity(IoTPropertyDTO dto)
+	{
+		if (dto == null) return null;
+		if (dto instanceof ControllerPropertyDTO) return toEntity((ControllerPropertyDTO) dto);
+		if (dto instanceof SmartThingPropertyDTO) return toEntity((SmartThingPropertyDTO) dto);
+		if (dto instanceof SensorPropertyDTO) return toEntity((SensorPropertyDTO) dto);
+		throw new IllegalArgumentException("No entity for " + dto.getClass().getName());
+	}
+
+	public static ControllerDTO toDTO(Controller entity)
+	{
+		if (entity == null) return null;
+		ControllerDTO dto = new ControllerDTO();
+		dto.setId(entity.getId());
+		dto.setName(entity.getName());
+		dto.setDescription(entity.getDescription());
+		dto.setLocation(entity.getLocation());
+		if (entity.getThings() != null)
+		{
+			Map<Integer, SmartThingDTO> things = new LinkedHashMap<>();
+			for (Map.Entry<Integer, SmartThing> e : entity.getThings().entrySet())
+			{
+				things.put(e.getKey(), toDTO(e.getValue()));
+			}
+			dto.setThings(things);
+		}
+		if (entity.getProperties() != null)
+		{
+			Map<Integer, ControllerPropertyDTO> properties = new LinkedHashMap<>();
+			for (Map.Entry<Integer, ControllerProperty> e : entity.getProperties().entrySet())
+			{
+				properties.put(e.getKey(), toDTO(e.getValue()));
+			}
+			dto.setProperties(properties);
+		}
+		return dto;
+	}
+
+	public static Controller toEntity(ControllerDTO dto)
+	{
+		if (dto == null) return null;
+		Controller entity = new Controller(dto.getLocation());
+		entity.setId(dto.getId());
+		entity.setName(dto.getName());
+		entity.setDescription(dto.getDescription());
+		if (dto.getThings() != null)
+		{
+			Map<Integer, SmartThing> things = new LinkedHashMap<>();
+			for (Map.Entry<Integer, SmartThingDTO> e : dto.getThings().entrySet())
+			{
+				things.put(e.getKey(), toEntity(e.getValue()));
+			}
+			entity.setThings(things);
+		}
+		if (dto.getProperties() != null)
+		{
+			Map<Integer, ControllerProperty> properties = new LinkedHashMap<>();
+			for (Map.Entry<Integer, ControllerPropertyDTO> e : dto.getProperties().entrySet())
+			{
+				properties.put(e.getKey(), toEntity(e.getValue()));
+			}
+			entity.setProperties(properties);
+		}
+		return entity;
+	}
+
+	public static SmartThingDTO toDTO(SmartThing entity)
+	{
+		if (entity == null) return null;
+		SmartThingDTO dto = new SmartThingDTO();
+		dto.setId(entity.getId());
+		dto.setName(entity.getName());
+		dto.setDescription(entity.getDescription());
+		dto.setIdcontroller(entity.getIdcontroller());
+		if (entity.getSensors() != null)
+		{
+			Map<Integer, SensorDTO> sensors = new LinkedHashMap<>();
+			for (Map.Entry<Integer, Sensor> e : entity.getSensors().entrySet())
+			{
+				sensors.put(e.getKey(), toDTO(e.getValue()));
+			}
+			dto.setSensors(sensors);
+		}
+		if (entity.getMeasures() != null)
+		{
+			dto.setMeasures(toMeasureDTOs(entity.getMeasures()));
+		}
+		if (entity.getProperties() != null)
+		{
+			Map<Integer, SmartThingPropertyDTO> properties = new LinkedHashMap<>();
+			for (Map.Entry<Integer, SmartThingProperty> e : entity.getProperties().entrySet())
+			{
+				properties.put(e.getKey(), toDTO(e.getValue()));
+			}
+			dto.setProperties(properties);
+		}
+		return dto;
+	}
+
+	public static SmartThing toEntity(SmartThingDTO dto)
+	{
+		if (dto == null) return null;
+		SmartThing entity = new SmartThing();
+		entity.setId(dto.getId());
+		entity.setName(dto.getName());
+		entity.setDescription(dto.getDescription());
+		entity.setIdcontroller(dto.getIdcontroller());
+		if (dto.getSensors() != null)
+		{
+			Map<Integer, Sensor> sensors = new LinkedHashMap<>();
+			for (Map.Entry<Integer, SensorDTO> e : dto.getSensors().entrySet())
+			{
+				sensors.put(e.getKey(), toEntity(e.getValue()));
+			}
+			entity.setSensors(sensors);
+		}
+		if (dto.getMeasures() != null)
+		{
+			entity.setMeasures(toMeasures(dto.getMeasures()));
+		}
+		if (dto.getProperties() != null)
+		{
+			Map<Integer, SmartThingProperty> properties = new LinkedHashMap<>();
+			for (Map.Entry<Integer, SmartThingPropertyDTO> e : dto.getProperties().entrySet())
+			{
+				properties.put(e.getKey(), toEntity(e.getValue()));
+			}
+			entity.setProperties(properties);
+		}
+		return entity;
+	}
+
+	public static SensorDTO toDTO(Sensor entity)
+	{
+		if (entity == null) return null;
+		SensorDTO dto = new SensorDTO();
+		dto.setId(entity.getId());
+		dto.setActive(entity.isActive());
+		dto.setName(entity.getName());
+		dto.setDescription(entity.getDescription());
+		dto.setSensor_type(entity.getSensor_type());
+		dto.setUnit(entity.getUnit());
+		dto.setLatitude(entity.getLatitude());
+		dto.setLongitude(entity.getLongitude());
+		dto.setAltitude(entity.getAltitude());
+		dto.setIdthing(entity.getIdthing());
+		if (entity.getMeasures() != null)
+		{
+			dto.setMeasures(toMeasureDTOs(entity.getMeasures()));
+		}
+		if (entity.getProperties() != null)
+		{
+			Map<Integer, SensorPropertyDTO> properties = new LinkedHashMap<>();
+			for (Map.Entry<Integer, SensorProperty> e : entity.getProperties().entrySet())
+			{
+				properties.put(e.getKey(), toDTO(e.getValue()));
+			}
+			dto.setProperties(properties);
+		}
+		return dto;
+	}
+
+	public static Sensor toEntity(SensorDTO dto)
+	{
+		if (dto == null) return null;
+		Sensor entity = new Sensor();
+		entity.setId(dto.getId());
+		entity.setActive(dto.isActive());
+		entity.setName(dto.getName());
+		entity.setDescription(dto.getDescription());
+		entity.setSensor_type(dto.getSensor_type());
+		entity.setUnit(dto.getUnit());
+		entity.setLatitude(dto.getLatitude());
+		entity.setLongitude(dto.getLongitude());
+		entity.setAltitude(dto.getAltitude());
+		entity.setIdthing(dto.getIdthing());
+		if (dto.getMeasures() != null)
+		{
+			entity.setMeasures(toMeasures(dto.getMeasures()));
+		}
+		if (dto.getProperties() != null)
+		{
+			Map<Integer, SensorProperty> properties = new LinkedHashMap<>();
+			for (Map.Entry<Integer, SensorPropertyDTO> e : dto.getProperties().entrySet())
+			{
+				properties.put(e.getKey(), toEntity(e.getValue()));
+			}
+			entity.setProperties(properties);
+		}
+		return entity;
+	}
+
+	public static ExperimentDTO toDTO(Experiment entity)
+	{
+		if (entity == null) return null;
+		ExperimentDTO dto = new ExperimentDTO();
+		dto.setId(entity.getId());
+		dto.setName(entity.getName());
+		dto.setDescription(entity.getDescription());
+		dto.setStart_date(entity.getStart_date());
+		dto.setEnd_date(entity.getEnd_date());
+		dto.setIdthing(entity.getIdthing());
+		dto.setNotes(entity.getNotes());
+		return dto;
+	}
+
+	public static Experiment toEntity(ExperimentDTO dto)
+	{
+		if (dto == null) return null;
+		Experiment entity = new Experiment();
+		entity.setId(dto.getId());
+		entity.setName(dto.getName());
+		entity.setDescription(dto.getDescription());
+		entity.setStart_date(dto.getStart_date());
+		entity.setEnd_date(dto.getEnd_date());
+		entity.setIdthing(dto.getIdthing());
+		entity.setNotes(dto.getNotes());
+		return entity;
+	}
+
+	public static ControllerPropertyDTO toDTO(ControllerProperty entity)
+	{
+		if (entity == null) return null;
+		ControllerPropertyDTO dto = new ControllerPropertyDTO();
+		dto.setId(entity.getId());
+		dto.setName(entity.getName());
+		dto.setValue(entity.getValue());
+		dto.setActive(entity.getActive());
+		dto.setParentId(entity.getParentId());
+		return dto;
+	}
+
+	public static ControllerProperty toEntity(ControllerPropertyDTO dto)
+	{
+		if (dto == null) return null;
+		ControllerProperty entity = new ControllerProperty();
+		entity.setId(dto.getId());
+		entity.setName(dto.getName());
+		entity.setValue(dto.getValue());
+		entity.setActive(dto.getActive());
+		entity.setParentId(dto.getParentId());
+		return entity;
+	}
+
+	public static SmartThingPropertyDTO toDTO(SmartThingProperty entity)
+	{
+		if (entity == null) return null;
+		SmartThingPropertyDTO dto = new SmartThingPropertyDTO();
+		dto.setId(entity.getId());
+		dto.setName(entity.getName());
+		dto.setValue(entity.getValue());
+		dto.setActive(entity.getActive());
+		dto.setParentId(entity.getParentId());
+		return dto;
+	}
+
+	public static SmartThingProperty toEntity(SmartThingPropertyDTO dto)
+	{
+		if (dto == null) return null;
+		SmartThingProperty entity = new SmartThingProperty();
+		entity.setId(dto.getId());
+		entity.setName(dto.getName());
+		entity.setValue(dto.getValue());
+		entity.setActive(dto.getActive());
+		entity.setParentId(dto.getParentId());
+		return entity;
+	}
+
+	public static SensorPropertyDTO toDTO(SensorProperty entity)
+	{
+		if (entity == null) return null;
+		SensorPropertyDTO dto = new SensorPropertyDTO();
+		dto.setId(entity.getId());
+		dto.setName(entity.getName());
+		dto.setValue(entity.getValue());
+		dto.setActive(entity.getActive());
+		dto.setParentId(entity.getParentId());
+		return dto;
+	}
+
+	public static SensorProperty toEntity(SensorPropertyDTO dto)
+	{
+		if (dto == null) return null;
+		SensorProperty entity = new SensorProperty();
+		entity.setId(dto.getId());
+		entity.setName(dto.getName());
+		entity.setValue(dto.getValue());
+		entity.setActive(dto.getActive());
+		entity.setParentId(dto.getParentId());
+		return entity;
+	}
+
+	/**
+	 * Called for every point of a chart, keep it cheap
+	 */
+	public static MeasureDTO toDTO(Measure entity)
+	{
+		if (entity == null) return null;
+		MeasureDTO dto = new MeasureDTO();
+		dto.setId(entity.getId());
+		dto.setMeasure(entity.getMeasure());
+		dto.setMeasure_value(entity.getMeasure_value());
+		dto.setMeasure_date(entity.getMeasure_date());
+		dto.setIdsensor(entity.getIdsensor());
+		dto.setIdthing(entity.getIdthing());
+		dto.setImage_hash(entity.getImage_hash());
+		return dto;
+	}
+
+	public static Measure toEntity(MeasureDTO dto)
+	{
+		if (dto == null) return null;
+		Measure entity = new Measure();
+		entity.setId(dto.getId());
+		entity.setMeasure(dto.getMeasure());
+		entity.setMeasure_value(dto.getMeasure_value());
+		entity.setMeasure_date(dto.getMeasure_date());
+		entity.setIdsensor(dto.getIdsensor());
+		entity.setIdthing(dto.getIdthing());
+		entity.setImage_hash(dto.getImage_hash());
+		return entity;
+	}
+
+	public static SensorTypeDTO toDTO(SensorType entity)
+	{
+		if (entity == null) return null;
+		SensorTypeDTO dto = new SensorTypeDTO();
+		dto.setId(entity.getId());
+		dto.setName(entity.getName());
+		dto.setNumeric(entity.getNumeric());
+		return dto;
+	}
+
+	public static SensorType toEntity(IoTTypeSensorDTO dto)
+	{
+		if (dto == null) return null;
+		SensorType entity = new SensorType();
+		entity.setId(dto.getId());
+		entity.setName(dto.getName());
+		if (dto instanceof SensorTypeDTO)
+		{
+			entity.setNumeric(((SensorTypeDTO) dto).getNumeric());
+		}
+		return entity;
+	}
+
+	/**
+	 * The password hash is copied too, callers that send users to the browser must clear it
+	 */
+	public static UserDTO toDTO(User entity)
+	{
+		if (entity == null) return null;
+		UserDTO dto = new UserDTO();
+		dto.setId(entity.getId());
+		dto.setUsername(entity.getUsername());
+		dto.setHash(entity.getHash());
+		dto.setEmail(entity.getEmail());
+		dto.setName(entity.getName());
+		return dto;
+	}
+
+	public static User toEntity(UserDTO dto)
+	{
+		if (dto == null) return null;
+		User entity = new User();
+		entity.setId(dto.getId());
+		entity.setUsername(dto.getUsername());
+		entity.setHash(dto.getHash());
+		entity.setEmail(dto.getEmail());
+		entity.setName(dto.getName());
+		return entity;
+	}
+
+	private static Map<Integer, MeasureDTO> toMeasureDTOs(Map<Integer, Measure> measures)
+	{
+		Map<Integer, MeasureDTO> dtos = new LinkedHashMap<>();
+		for (Map.Entry<Integer, Measure> e : measures.entrySet())
+		{
+			dtos.put(e.getKey(), toDTO(e.getValue()));
+		}
+		return dtos;
+	}
+
+	private static Map<Integer, Measure> toMeasures(Map<Integer, MeasureDTO> dtos)
+	{
+		Map<Integer, Measure> measures = new LinkedHashMap<>();
+		for (Map.Entry<Integer, MeasureDTO> e : dtos.entrySet())
+		{
+			measures.put(e.getKey(), toEntity(e.getValue()));
+		}
+		return measures;
+	}
+}
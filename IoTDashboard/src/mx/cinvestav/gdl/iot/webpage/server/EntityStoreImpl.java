@@ -1,26 +1,41 @@
 package mx.cinvestav.gdl.iot.webpage.server;
 
+import java.io.IOException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import mx.cinvestav.gdl.iot.dao.Controller;
 import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.dao.Experiment;
 import mx.cinvestav.gdl.iot.dao.IoTEntity;
 import mx.cinvestav.gdl.iot.dao.IoTProperty;
 import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.dao.MeasureConsumer;
+import mx.cinvestav.gdl.iot.dao.MeasurePage;
+import mx.cinvestav.gdl.iot.dao.Sensor;
 import mx.cinvestav.gdl.iot.dao.SensorType;
+import mx.cinvestav.gdl.iot.dao.SmartThing;
+import mx.cinvestav.gdl.iot.impl.LatestValues;
+import mx.cinvestav.gdl.iot.impl.SensorReadings;
 import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
 import mx.cinvestav.gdl.iot.webpage.client.EntityStoreService;
+import mx.cinvestav.gdl.iot.webpage.dto.ControllerDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.ExperimentDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.IoTEntityDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.IoTPropertyDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.IoTTypeSensorDTO;
 import mx.cinvestav.gdl.iot.webpage.dto.MeasureDTO;
-
-import org.dozer.DozerBeanMapper;
-import org.dozer.Mapper;
+import mx.cinvestav.gdl.iot.webpage.dto.MeasurePageDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SensorDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SensorReadingsDTO;
+import mx.cinvestav.gdl.iot.webpage.dto.SmartThingDTO;
 
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
@@ -28,8 +43,6 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 {
 	private static final long serialVersionUID = -8306702743270115220L;
 	Logger logger = Logger.getLogger(EntityStoreImpl.class.getName());
-	private static Mapper mapper = new DozerBeanMapper(
-			Arrays.asList(new String[] { "dozer-bean-mappings.xml" }));
 
 	@Override
 	public void storeEntity(IoTEntityDTO entityDTO, Collection<? extends IoTPropertyDTO> propDTOList)
@@ -37,11 +50,11 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 	{
 		try
 		{
-			IoTEntity entity = mapper.map(entityDTO, IoTEntity.class);
+			IoTEntity entity = DTOMapper.toEntity(entityDTO);
 			Collection<IoTProperty> propList = new ArrayList<>();
 			for (IoTPropertyDTO prop : propDTOList)
 			{
-				propList.add(mapper.map(prop, IoTProperty.class));
+				propList.add(DTOMapper.toEntity(prop));
 			}
 			DAO.insertEntity(entity, propList);
 		}
@@ -60,7 +73,7 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 		try
 		{
 			//map to non DTO object
-			IoTEntity entity = mapper.map(entityDTO, IoTEntity.class);
+			IoTEntity entity = DTOMapper.toEntity(entityDTO);
 
 			// perform query
 			List<? extends IoTEntity> entityList = DAO.getEntity(entity.getClass(), id);
@@ -69,7 +82,7 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 			List<IoTEntityDTO> propDTOList = new ArrayList<>();
 			for (IoTEntity result : entityList)
 			{
-				IoTEntityDTO dto = mapper.map(result, IoTEntityDTO.class);
+				IoTEntityDTO dto = DTOMapper.toDTO(result);
 				propDTOList.add(dto);
 			}
 			return propDTOList;
@@ -87,7 +100,7 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 			throws DatabaseException
 	{
 		//map to non DTO object
-		IoTProperty entity = mapper.map(entityDTO, IoTProperty.class);
+		IoTProperty entity = DTOMapper.toEntity(entityDTO);
 		try
 		{
 			List<? extends IoTProperty> properties = DAO.getProperties(entity.getClass(), id);
@@ -96,7 +109,7 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 			List<IoTPropertyDTO> propDTOList = new ArrayList<>();
 			for (IoTProperty result : properties)
 			{
-				IoTPropertyDTO dto = mapper.map(result, IoTPropertyDTO.class);
+				IoTPropertyDTO dto = DTOMapper.toDTO(result);
 				propDTOList.add(dto);
 			}
 			return propDTOList;
@@ -113,7 +126,7 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 	public void deleteProperty(IoTPropertyDTO propertyDTO, Integer id) throws DatabaseException
 	{
 		//map to non DTO object
-		IoTProperty entity = mapper.map(propertyDTO, IoTProperty.class);
+		IoTProperty entity = DTOMapper.toEntity(propertyDTO);
 		try
 		{
 			DAO.deleteProperty(entity.getClass(), id);
@@ -130,7 +143,7 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 	public void deleteEntity(IoTEntityDTO entityDTO, Integer id) throws DatabaseException
 	{
 		//map to non DTO object
-		IoTEntity entity = mapper.map(entityDTO, IoTEntity.class);
+		IoTEntity entity = DTOMapper.toEntity(entityDTO);
 		try
 		{
 			DAO.deleteEntity(entity.getClass(), id);
@@ -142,19 +155,80 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 			throw e;
 		}
 	}
-	
+
+	@Override
+	public List<ControllerDTO> getTopology(Integer idcontroller) throws DatabaseException
+	{
+		try
+		{
+			// the lists come from the registry cache of DAO, the tree is built here
+			List<ControllerDTO> result = new ArrayList<>();
+			for (Controller controller : DAO.getEntity(Controller.class, idcontroller))
+			{
+				if (controller != null)
+				{
+					result.add(DTOMapper.toDTO(controller));
+				}
+			}
+			if (idcontroller == null || result.isEmpty())
+			{
+				return result;
+			}
+
+			Map<Integer, SmartThingDTO> things = new LinkedHashMap<>();
+			for (SmartThing thing : DAO.getEntity(SmartThing.class, null))
+			{
+				if (idcontroller.equals(thing.getIdcontroller()))
+				{
+					SmartThingDTO dto = DTOMapper.toDTO(thing);
+					dto.setSensors(new LinkedHashMap<Integer, SensorDTO>());
+					dto.setExperiments(new LinkedHashMap<Integer, ExperimentDTO>());
+					things.put(thing.getId(), dto);
+				}
+			}
+			for (Sensor sensor : DAO.getEntity(Sensor.class, null))
+			{
+				SmartThingDTO thing = things.get(sensor.getIdthing());
+				if (thing != null)
+				{
+					thing.getSensors().put(sensor.getId(), DTOMapper.toDTO(sensor));
+				}
+			}
+			for (Experiment experiment : DAO.getEntity(Experiment.class, null))
+			{
+				SmartThingDTO thing = things.get(experiment.getIdthing());
+				if (thing != null)
+				{
+					thing.getExperiments().put(experiment.getId(), DTOMapper.toDTO(experiment));
+				}
+			}
+			result.get(0).setThings(things);
+			return result;
+		}
+		catch (DatabaseException e)
+		{
+			String message = "Exception in getTopology: " + e.getMessage();
+			logger.log(Level.SEVERE, message, e);
+			throw e;
+		}
+	}
+
 	public List<MeasureDTO> getSensorData(Integer idsensor, Integer idexperiment) throws DatabaseException
 	{
 		try
 		{
-			List<Measure> sensorData = DAO.getSensorData(idsensor, idexperiment);
-			
-			//map back to DTO
-			List<MeasureDTO> measureDTOList = new ArrayList<>();
-			for (Measure data : sensorData)
+			final List<MeasureDTO> measureDTOList = new ArrayList<>();
+			if (idsensor != null && idexperiment != null)
 			{
-				MeasureDTO dto = mapper.map(data, MeasureDTO.class);
-				measureDTOList.add(dto);
+				// rows are mapped to DTO as they are read, without a list of entities
+				DAO.streamSensorData(idsensor, idexperiment, null, null, new MeasureConsumer()
+				{
+					@Override
+					public void accept(Measure m)
+					{
+						measureDTOList.add(DTOMapper.toDTO(m));
+					}
+				});
 			}
 			return measureDTOList;
 		}
@@ -164,6 +238,197 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 			logger.log(Level.SEVERE, message, e);
 			throw e;
 		}
+		catch (IOException e)
+		{
+			// not thrown by the consumer above
+			throw new DatabaseException("Exception in getData: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public MeasurePageDTO getSensorDataPage(Integer idsensor, Integer idexperiment, Date from, Date to,
+			String cursor, int limit) throws DatabaseException
+	{
+		try
+		{
+			MeasurePage page = DAO.getSensorDataPage(idsensor, idexperiment, from == null ? null : new Timestamp(
+					from.getTime()), to == null ? null : new Timestamp(to.getTime()), cursor, limit);
+
+			//map back to DTO
+			List<MeasureDTO> measureDTOList = new ArrayList<>(page.getMeasures().size());
+			for (Measure data : page.getMeasures())
+			{
+				measureDTOList.add(DTOMapper.toDTO(data));
+			}
+			MeasurePageDTO dto = new MeasurePageDTO();
+			dto.setMeasures(measureDTOList);
+			dto.setNextCursor(page.getNextCursor());
+			return dto;
+		}
+		catch (DatabaseException e)
+		{
+			String message = "Exception in getSensorDataPage: " + e.getMessage();
+			logger.log(Level.SEVERE, message, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public MeasurePageDTO getSensorDataSince(Integer idsensor, Integer idexperiment, Date lastTimestamp,
+			Integer lastId, int limit) throws DatabaseException
+	{
+		try
+		{
+			// GWT sends the Timestamp of the last point, keep its nanos
+			Timestamp last = lastTimestamp == null || lastTimestamp instanceof Timestamp ? (Timestamp) lastTimestamp
+					: new Timestamp(lastTimestamp.getTime());
+			MeasurePage page = DAO.getSensorDataSince(idsensor, idexperiment, last, lastId, limit);
+
+			//map back to DTO
+			List<MeasureDTO> measureDTOList = new ArrayList<>(page.getMeasures().size());
+			for (Measure data : page.getMeasures())
+			{
+				measureDTOList.add(DTOMapper.toDTO(data));
+			}
+			MeasurePageDTO dto = new MeasurePageDTO();
+			dto.setMeasures(measureDTOList);
+			dto.setNextCursor(page.getNextCursor());
+			return dto;
+		}
+		catch (DatabaseException e)
+		{
+			String message = "Exception in getSensorDataSince: " + e.getMessage();
+			logger.log(Level.SEVERE, message, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Map<Integer, MeasurePageDTO> getSensorDataSinceBatch(List<Integer> idsensors, Integer idexperiment,
+			List<Date> lastTimestamps, List<Integer> lastIds, int limit) throws DatabaseException
+	{
+		try
+		{
+			List<Timestamp> last = null;
+			if (lastTimestamps != null)
+			{
+				last = new ArrayList<>(lastTimestamps.size());
+				for (Date date : lastTimestamps)
+				{
+					// GWT sends the Timestamps of the last points, keep their nanos
+					last.add(date == null || date instanceof Timestamp ? (Timestamp) date : new Timestamp(date.getTime()));
+				}
+			}
+			Map<Integer, MeasurePage> pages = DAO.getSensorDataSince(idsensors, idexperiment, last, lastIds, limit);
+
+			//map back to DTO
+			Map<Integer, MeasurePageDTO> result = new LinkedHashMap<>();
+			for (Map.Entry<Integer, MeasurePage> e : pages.entrySet())
+			{
+				List<MeasureDTO> measureDTOList = new ArrayList<>(e.getValue().getMeasures().size());
+				for (Measure data : e.getValue().getMeasures())
+				{
+					measureDTOList.add(DTOMapper.toDTO(data));
+				}
+				MeasurePageDTO dto = new MeasurePageDTO();
+				dto.setMeasures(measureDTOList);
+				dto.setNextCursor(e.getValue().getNextCursor());
+				result.put(e.getKey(), dto);
+			}
+			return result;
+		}
+		catch (DatabaseException e)
+		{
+			String message = "Exception in getSensorDataSinceBatch: " + e.getMessage();
+			logger.log(Level.SEVERE, message, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<MeasureDTO> getSensorDataSeries(Integer idsensor, Integer idexperiment, Date from, Date to,
+			int maxPoints) throws DatabaseException
+	{
+		try
+		{
+			List<Measure> series = DAO.getSensorDataSeries(idsensor, idexperiment, from == null ? null
+					: new Timestamp(from.getTime()), to == null ? null : new Timestamp(to.getTime()), maxPoints);
+
+			//map back to DTO
+			List<MeasureDTO> measureDTOList = new ArrayList<>(series.size());
+			for (Measure data : series)
+			{
+				measureDTOList.add(DTOMapper.toDTO(data));
+			}
+			return measureDTOList;
+		}
+		catch (DatabaseException e)
+		{
+			String message = "Exception in getSensorDataSeries: " + e.getMessage();
+			logger.log(Level.SEVERE, message, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public Map<Integer, List<MeasureDTO>> getSensorDataBatch(List<Integer> idsensors, Integer idexperiment,
+			Date from, Date to, int maxPoints) throws DatabaseException
+	{
+		try
+		{
+			Map<Integer, List<Measure>> series = DAO.getSensorDataSeries(idsensors, idexperiment, from == null ? null
+					: new Timestamp(from.getTime()), to == null ? null : new Timestamp(to.getTime()), maxPoints);
+
+			//map back to DTO
+			Map<Integer, List<MeasureDTO>> result = new LinkedHashMap<>();
+			for (Map.Entry<Integer, List<Measure>> e : series.entrySet())
+			{
+				List<MeasureDTO> measureDTOList = new ArrayList<>(e.getValue().size());
+				for (Measure data : e.getValue())
+				{
+					measureDTOList.add(DTOMapper.toDTO(data));
+				}
+				result.put(e.getKey(), measureDTOList);
+			}
+			return result;
+		}
+		catch (DatabaseException e)
+		{
+			String message = "Exception in getSensorDataBatch: " + e.getMessage();
+			logger.log(Level.SEVERE, message, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public List<SensorReadingsDTO> getLatestValues(List<Integer> idsensors) throws DatabaseException
+	{
+		try
+		{
+			List<SensorReadings> latest = LatestValues.get().getReadings(idsensors);
+
+			//map back to DTO
+			List<SensorReadingsDTO> result = new ArrayList<>(latest.size());
+			for (SensorReadings sensor : latest)
+			{
+				List<MeasureDTO> readings = new ArrayList<>(sensor.getReadings().size());
+				for (Measure data : sensor.getReadings())
+				{
+					readings.add(DTOMapper.toDTO(data));
+				}
+				SensorReadingsDTO dto = new SensorReadingsDTO();
+				dto.setIdsensor(sensor.getIdsensor());
+				dto.setReadings(readings);
+				result.add(dto);
+			}
+			return result;
+		}
+		catch (DatabaseException e)
+		{
+			String message = "Exception in getLatestValues: " + e.getMessage();
+			logger.log(Level.SEVERE, message, e);
+			throw e;
+		}
 	}
 
 	@Override
@@ -171,7 +436,7 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 	{
 		try
 		{
-			SensorType entity = mapper.map(typeSensorDTO, SensorType.class);
+			SensorType entity = DTOMapper.toEntity(typeSensorDTO);
 			DAO.insertSensorType(entity);
 		}
 		catch (DatabaseException e)
@@ -194,7 +459,7 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 			List<IoTTypeSensorDTO> propDTOList = new ArrayList<>();
 			for (SensorType result : entityList)
 			{
-				IoTTypeSensorDTO dto = mapper.map(result, IoTTypeSensorDTO.class);
+				IoTTypeSensorDTO dto = DTOMapper.toDTO(result);
 				propDTOList.add(dto);
 			}
 			return propDTOList;
@@ -208,4 +473,4 @@ public class EntityStoreImpl extends RemoteServiceServlet implements EntityStore
 	}
 
 	
-}
+}
@@ -0,0 +1,43 @@
+package mx.cinvestav.gdl.iot.webpage.server;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * Daily cron task (cron.xml) that moves the measures of the experiments that ended more than
+ * <code>iot.archive.after.days</code> days ago to the archive. Restricted to administrators in
+ * web.xml, which includes the App Engine cron.
+ */
+public class ExperimentArchiveServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 6631937015278204417L;
+
+	private static final Logger logger = Logger.getLogger(ExperimentArchiveServlet.class.getName());
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			long archived = DAO.archiveExperiments();
+			logger.info(archived + " measures archived in " + (System.currentTimeMillis() - start) + " ms");
+			resp.setContentType("text/plain");
+			resp.getWriter().write(String.valueOf(archived));
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception archiving the finished experiments", e);
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		}
+	}
+}
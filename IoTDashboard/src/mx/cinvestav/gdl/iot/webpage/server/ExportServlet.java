@@ -0,0 +1,136 @@
+package mx.cinvestav.gdl.iot.webpage.server;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.dao.MeasureConsumer;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * Downloads the charted measures of a sensor in an experiment as CSV:
+ * <code>/export?idsensor=1&amp;idexperiment=2[&amp;from=ms][&amp;to=ms]</code>, with from and to in
+ * milliseconds since the epoch (to excluded). Each row is written as it is read from the database,
+ * so no list of measures is built whatever the size of the experiment. Columns: iddata,
+ * measure_date, measure_value, measure, image_hash.
+ * <p>
+ * Rows are written to the output stream, which throws as soon as the client goes away, and the
+ * first ones are held in the response buffer, so an error before it fills is still a 500.
+ * A complete export ends with the line <code>#end,&lt;rows&gt;</code>; when the database fails
+ * after rows were sent, the line <code>#error</code> is written and the response is aborted, so a
+ * file without the end line is incomplete.
+ * <p>
+ * App Engine still holds the whole response before sending it (32 MB at most), so very large
+ * exports should be split by date.
+ */
+public class ExportServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 4631186437120934571L;
+
+	private static final Logger logger = Logger.getLogger(ExportServlet.class.getName());
+
+	// bytes held before the response is committed
+	private static final int FIRST_CHUNK = 64 * 1024;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		int idsensor;
+		int idexperiment;
+		Timestamp from;
+		Timestamp to;
+		try
+		{
+			idsensor = Integer.parseInt(req.getParameter("idsensor"));
+			idexperiment = Integer.parseInt(req.getParameter("idexperiment"));
+			from = timestamp(req.getParameter("from"));
+			to = timestamp(req.getParameter("to"));
+		}
+		catch (NumberFormatException e)
+		{
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "idsensor and idexperiment are required");
+			return;
+		}
+
+		resp.setContentType("text/csv");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Content-Disposition", "attachment; filename=\"sensor-" + idsensor + "-experiment-"
+				+ idexperiment + ".csv\"");
+		resp.setBufferSize(FIRST_CHUNK);
+		// not the servlet writer: checking it for errors flushes and commits the response
+		final Writer out = new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8);
+		final long[] rows = new long[1];
+		out.write("iddata,measure_date,measure_value,measure,image_hash\r\n");
+		try
+		{
+			DAO.streamSensorData(idsensor, idexperiment, from, to, new MeasureConsumer()
+			{
+				private final StringBuilder line = new StringBuilder();
+
+				@Override
+				public void accept(Measure m) throws IOException
+				{
+					line.setLength(0);
+					line.append(m.getId()).append(',');
+					line.append(m.getMeasure_date()).append(',');
+					if (m.getMeasure_value() != null) line.append(m.getMeasure_value());
+					line.append(',');
+					appendQuoted(line, m.getMeasure());
+					line.append(',');
+					if (m.getImage_hash() != null) line.append(m.getImage_hash());
+					line.append("\r\n");
+					out.write(line.toString());
+					rows[0]++;
+				}
+			});
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception exporting sensor " + idsensor + " experiment " + idexperiment
+					+ " after " + rows[0] + " rows", e);
+			if (!resp.isCommitted())
+			{
+				resp.reset();
+				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				return;
+			}
+			// the status is already sent: mark the file and let the container abort the response
+			// instead of ending it as if it were complete
+			out.write("#error\r\n");
+			out.flush();
+			throw new ServletException("Export incomplete", e);
+		}
+		out.write("#end," + rows[0] + "\r\n");
+		out.flush();
+	}
+
+	private static Timestamp timestamp(String millis)
+	{
+		return millis == null || millis.isEmpty() ? null : new Timestamp(Long.parseLong(millis));
+	}
+
+	/**
+	 * Quotes the value if it contains a separator, a quote or a line break
+	 */
+	private static void appendQuoted(StringBuilder line, String value)
+	{
+		if (value == null) return;
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+		{
+			line.append(value);
+			return;
+		}
+		line.append('"').append(value.replace("\"", "\"\"")).append('"');
+	}
+}
@@ -0,0 +1,225 @@
+package mx.cinvestav.gdl.iot.webpage.server;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.dao.ImageBlob;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.OutputSettings;
+
+/**
+ * Serves the images of the measures by the SHA-256 stored in data.image_hash:
+ * <ul>
+ * <li><code>/image/&lt;hash&gt;</code> the original image, with support for single range requests</li>
+ * <li><code>/image/&lt;hash&gt;/thumb</code> a JPEG of <code>iot.image.thumb.width</code> pixels,
+ * generated on first use and stored in image_thumb</li>
+ * </ul>
+ * An image never changes for a given hash, so responses can be cached forever and the hash is
+ * the ETag. When an image cannot be resized its thumbnail is the original, sent with no-cache
+ * and without ETag so that no cache keeps it as the thumbnail.
+ */
+public class ImageServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 2868315440512364711L;
+	private static final String THUMB_WIDTH = "iot.image.thumb.width";
+	private static final int DEFAULT_THUMB_WIDTH = 160;
+	private static final int THUMB_QUALITY = 85;
+	private static final String CACHE_FOREVER = "public, max-age=31536000, immutable";
+	private static final String NO_CACHE = "no-cache";
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+	private static final long[] UNSATISFIABLE = new long[0];
+
+	private static final Logger logger = Logger.getLogger(ImageServlet.class.getName());
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		String path = req.getPathInfo() == null ? "" : req.getPathInfo();
+		String[] parts = path.split("/");
+		if (parts.length < 2 || parts.length > 3 || !HASH.matcher(parts[1]).matches()
+				|| (parts.length == 3 && !"thumb".equals(parts[2])))
+		{
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		String hash = parts[1];
+		boolean thumb = parts.length == 3;
+		int width = Integer.getInteger(THUMB_WIDTH, DEFAULT_THUMB_WIDTH);
+		String etag = thumb ? "\"" + hash + "-" + width + "\"" : "\"" + hash + "\"";
+		if (etag.equals(req.getHeader("If-None-Match")))
+		{
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			resp.setHeader("ETag", etag);
+			resp.setHeader("Cache-Control", CACHE_FOREVER);
+			return;
+		}
+
+		byte[] content;
+		// set when the original stands in for a thumbnail that could not be made
+		boolean[] fallback = new boolean[1];
+		try
+		{
+			content = thumb ? thumbnail(hash, width, fallback) : original(hash);
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception reading image " + hash, e);
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		}
+		if (content == null)
+		{
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		if (fallback[0])
+		{
+			etag = null;
+			resp.setHeader("Cache-Control", NO_CACHE);
+		}
+		else
+		{
+			resp.setHeader("ETag", etag);
+			resp.setHeader("Cache-Control", CACHE_FOREVER);
+		}
+		resp.setHeader("Accept-Ranges", "bytes");
+		resp.setContentType(contentType(content));
+
+		String ifRange = req.getHeader("If-Range");
+		long[] range = ifRange == null || ifRange.equals(etag) ? parseRange(req.getHeader("Range"), content.length)
+				: null;
+		if (range == UNSATISFIABLE)
+		{
+			resp.setHeader("Content-Range", "bytes */" + content.length);
+			resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+		int start = 0;
+		int length = content.length;
+		if (range != null)
+		{
+			start = (int) range[0];
+			length = (int) (range[1] - range[0] + 1);
+			resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			resp.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + content.length);
+		}
+		resp.setContentLength(length);
+		resp.getOutputStream().write(content, start, length);
+	}
+
+	private static byte[] original(String hash) throws DatabaseException
+	{
+		ImageBlob image = DAO.getImage(hash);
+		return image == null ? null : image.getContent();
+	}
+
+	/**
+	 * @param fallback set to true when the image cannot be resized and the original is returned
+	 */
+	private static byte[] thumbnail(String hash, int width, boolean[] fallback) throws DatabaseException
+	{
+		byte[] thumb = DAO.getThumbnail(hash, width);
+		if (thumb != null)
+		{
+			return thumb;
+		}
+		byte[] image = original(hash);
+		if (image == null)
+		{
+			return null;
+		}
+		try
+		{
+			OutputSettings settings = new OutputSettings(ImagesService.OutputEncoding.JPEG);
+			settings.setQuality(THUMB_QUALITY);
+			// makeResize keeps the aspect ratio, the height only bounds very tall images
+			thumb = ImagesServiceFactory.getImagesService().applyTransform(
+					ImagesServiceFactory.makeResize(width, 4 * width), ImagesServiceFactory.makeImage(image),
+					settings).getImageData();
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.WARNING, "Could not resize image " + hash + ", serving the original", e);
+			fallback[0] = true;
+			return image;
+		}
+		DAO.storeThumbnail(hash, width, thumb);
+		return thumb;
+	}
+
+	/**
+	 * Parses a single range of a Range header
+	 * @return {first, last} byte positions, null to send the whole content, or UNSATISFIABLE
+	 */
+	private static long[] parseRange(String header, long length)
+	{
+		// multiple ranges are answered with the whole content, which the spec allows
+		if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0)
+		{
+			return null;
+		}
+		String spec = header.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0)
+		{
+			return null;
+		}
+		try
+		{
+			long first;
+			long last;
+			if (dash == 0)
+			{
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix == 0) return UNSATISFIABLE;
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			}
+			else
+			{
+				first = Long.parseLong(spec.substring(0, dash));
+				last = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)),
+						length - 1);
+			}
+			if (first >= length || last < first)
+			{
+				return UNSATISFIABLE;
+			}
+			return new long[] { first, last };
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	private static String contentType(byte[] content)
+	{
+		if (content.length > 3 && (content[0] & 0xff) == 0xff && (content[1] & 0xff) == 0xd8)
+		{
+			return "image/jpeg";
+		}
+		if (content.length > 8 && (content[0] & 0xff) == 0x89 && content[1] == 'P' && content[2] == 'N'
+				&& content[3] == 'G')
+		{
+			return "image/png";
+		}
+		if (content.length > 6 && content[0] == 'G' && content[1] == 'I' && content[2] == 'F')
+		{
+			return "image/gif";
+		}
+		return "application/octet-stream";
+	}
+}
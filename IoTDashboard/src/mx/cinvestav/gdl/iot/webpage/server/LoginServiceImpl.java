@@ -15,16 +15,12 @@ import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
 import mx.cinvestav.gdl.iot.webpage.client.LoginService;
 import mx.cinvestav.gdl.iot.webpage.dto.UserDTO;
 
-import org.dozer.DozerBeanMapper;
-import org.dozer.Mapper;
-
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
 public class LoginServiceImpl extends RemoteServiceServlet implements LoginService
 {
 	private static final long serialVersionUID = -8306702743270115220L;
 	Logger logger = Logger.getLogger(LoginServiceImpl.class.getName());
-	private static Mapper mapper = new DozerBeanMapper();
 
 	public UserDTO login(String username, String password) throws DatabaseException
 	{
@@ -90,7 +86,7 @@ public class LoginServiceImpl extends RemoteServiceServlet implements LoginServi
 	public void insertUser(UserDTO userDTO) throws DatabaseException
 	{
 		//map to non DTO object
-		User user = mapper.map(userDTO, User.class);
+		User user = DTOMapper.toEntity(userDTO);
 		try
 		{
 			if(!"".equals(userDTO.getHash()))
@@ -118,7 +114,7 @@ public class LoginServiceImpl extends RemoteServiceServlet implements LoginServi
 			List<UserDTO> res = new ArrayList<UserDTO>();
 			for(User u : users)
 			{
-				UserDTO dto = mapper.map(u, UserDTO.class);
+				UserDTO dto = DTOMapper.toDTO(u);
 				dto.setHash("");
 				res.add(dto);
 			}
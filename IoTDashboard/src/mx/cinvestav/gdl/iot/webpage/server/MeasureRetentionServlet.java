@@ -0,0 +1,46 @@
+package mx.cinvestav.gdl.iot.webpage.server;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * Daily cron task (cron.xml) that keeps the partitions of the data table
+ * <code>iot.partition.months.ahead</code> months ahead and deletes the measures older than
+ * <code>iot.retention.days</code> and the images no measure references any more. Restricted to administrators in web.xml, which includes the App
+ * Engine cron.
+ */
+public class MeasureRetentionServlet extends HttpServlet
+{
+	private static final long serialVersionUID = -4172880393502162317L;
+
+	private static final Logger logger = Logger.getLogger(MeasureRetentionServlet.class.getName());
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			int added = DAO.addMeasurePartitions();
+			long deleted = DAO.expireMeasures();
+			logger.info(added + " partitions added and " + deleted + " expired measures deleted in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			resp.setContentType("text/plain");
+			resp.getWriter().write(added + " " + deleted);
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception maintaining the measure partitions", e);
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		}
+	}
+}
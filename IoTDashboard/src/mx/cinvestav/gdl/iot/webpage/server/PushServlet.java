@@ -0,0 +1,153 @@
+package mx.cinvestav.gdl.iot.webpage.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import mx.cinvestav.gdl.iot.dao.Measure;
+import mx.cinvestav.gdl.iot.impl.MeasureBroadcaster;
+import mx.cinvestav.gdl.iot.impl.MeasureBroadcaster.Subscription;
+
+/**
+ * Server-Sent Events stream of the new measures of some sensors of an experiment:
+ * <code>/push?idexperiment=1&amp;idsensor=2&amp;idsensor=3</code>. Events:
+ * <ul>
+ * <li><code>measures</code> a JSON array of {idsensor, id, time, nanos, value}</li>
+ * <li><code>gap</code> measures were dropped, the client should query the ones it missed</li>
+ * </ul>
+ * Every event carries the subscription token as its id, so the EventSource resumes the same
+ * subscription when it reconnects. App Engine sends the response when the request ends, so by
+ * default a request ends with the first events (a long poll the EventSource repeats by itself);
+ * with <code>iot.push.stream=true</code> the events are flushed as they come until
+ * <code>iot.push.hold.ms</code>. Either way a waiting request holds a thread, so push is an
+ * addition to the tail polling of the charts for small deployments, not a replacement; see
+ * {@link MeasureBroadcaster}.
+ * <p>
+ * Answers 204, which makes the browser stop reconnecting, while <code>iot.push.enabled</code> is
+ * false and 503 when the instance has too many subscriptions.
+ */
+public class PushServlet extends HttpServlet
+{
+	private static final long serialVersionUID = -3371045713624457718L;
+	private static final String STREAM = "iot.push.stream";
+	private static final String HOLD_MS = "iot.push.hold.ms";
+	private static final long DEFAULT_HOLD_MS = 25000;
+	private static final int RETRY_MS = 500;
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		if (!MeasureBroadcaster.isEnabled())
+		{
+			resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			return;
+		}
+		int idexperiment;
+		List<Integer> sensors = new ArrayList<>();
+		try
+		{
+			idexperiment = Integer.parseInt(req.getParameter("idexperiment"));
+			String[] ids = req.getParameterValues("idsensor");
+			if (ids == null)
+			{
+				throw new NumberFormatException("no sensors");
+			}
+			for (String id : ids)
+			{
+				sensors.add(Integer.valueOf(id));
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "idexperiment and idsensor are required");
+			return;
+		}
+
+		MeasureBroadcaster broadcaster = MeasureBroadcaster.get();
+		Subscription subscription = broadcaster.resume(req.getHeader("Last-Event-ID"));
+		if (subscription == null)
+		{
+			subscription = broadcaster.subscribe(idexperiment, sensors);
+			if (subscription == null)
+			{
+				resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				return;
+			}
+			if (req.getHeader("Last-Event-ID") != null)
+			{
+				// the previous subscription expired, what was published meanwhile is lost
+				subscription.markGap();
+			}
+		}
+
+		resp.setContentType("text/event-stream");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		PrintWriter out = resp.getWriter();
+		boolean stream = Boolean.getBoolean(STREAM);
+		long deadline = System.currentTimeMillis() + Long.getLong(HOLD_MS, DEFAULT_HOLD_MS);
+		try
+		{
+			out.write("retry: " + RETRY_MS + "\n");
+			// an event without data only sets the id the browser sends back when it reconnects
+			out.write("id: " + subscription.getToken() + "\n\n");
+			for (long remaining = deadline - System.currentTimeMillis(); remaining > 0; remaining = deadline
+					- System.currentTimeMillis())
+			{
+				List<Measure> measures = subscription.await(remaining);
+				boolean gap = subscription.takeGap();
+				if (gap)
+				{
+					out.write("event: gap\nid: " + subscription.getToken() + "\ndata: {}\n\n");
+				}
+				if (!measures.isEmpty())
+				{
+					out.write("event: measures\nid: " + subscription.getToken() + "\ndata: " + toJson(measures)
+							+ "\n\n");
+				}
+				if (!stream && (gap || !measures.isEmpty()))
+				{
+					break;
+				}
+				out.flush();
+				if (out.checkError())
+				{
+					// the client went away
+					break;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			broadcaster.release(subscription);
+		}
+	}
+
+	private static String toJson(List<Measure> measures)
+	{
+		StringBuilder json = new StringBuilder("[");
+		for (Measure m : measures)
+		{
+			if (json.length() > 1)
+			{
+				json.append(',');
+			}
+			json.append("{\"idsensor\":").append(m.getIdsensor());
+			json.append(",\"id\":").append(m.getId());
+			json.append(",\"time\":").append(m.getMeasure_date().getTime());
+			json.append(",\"nanos\":").append(m.getMeasure_date().getNanos());
+			json.append(",\"value\":").append(m.getMeasure_value()).append('}');
+		}
+		return json.append(']').toString();
+	}
+}
@@ -0,0 +1,180 @@
+package mx.cinvestav.gdl.iot.webpage.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.dao.Sensor;
+import mx.cinvestav.gdl.iot.series.MinMaxDownsampler;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * Chart series of some sensors of an experiment, downsampled like getSensorDataBatch:
+ * <code>/series?idexperiment=1&amp;idsensor=2&amp;idsensor=3[&amp;from=ms][&amp;to=ms][&amp;maxPoints=n]</code>.
+ * The answer is the JSON smartcitygrapher.js draws, one object per sensor with measures, the
+ * times and values in two arrays:
+ *
+ * <pre>
+ * [{"idsensor":2,"key":"Temperature","x":[1394406417084,...],"y":[21.5,...]}]
+ * </pre>
+ *
+ * It is written from the arrays of the downsampling, without a Measure or DTO per point.
+ */
+public class SeriesServlet extends HttpServlet
+{
+	private static final long serialVersionUID = -6019357261790861372L;
+	private static final int DEFAULT_MAX_POINTS = 2000;
+	private static final int MAX_POINTS = 20000;
+
+	private static final Logger logger = Logger.getLogger(SeriesServlet.class.getName());
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		int idexperiment;
+		List<Integer> sensors = new ArrayList<>();
+		Timestamp from;
+		Timestamp to;
+		int maxPoints;
+		try
+		{
+			idexperiment = Integer.parseInt(req.getParameter("idexperiment"));
+			String[] ids = req.getParameterValues("idsensor");
+			if (ids == null)
+			{
+				throw new NumberFormatException("no sensors");
+			}
+			for (String id : ids)
+			{
+				sensors.add(Integer.valueOf(id));
+			}
+			from = timestamp(req.getParameter("from"));
+			to = timestamp(req.getParameter("to"));
+			String points = req.getParameter("maxPoints");
+			maxPoints = points == null ? DEFAULT_MAX_POINTS : Math.min(MAX_POINTS, Integer.parseInt(points));
+			if (maxPoints < 2)
+			{
+				throw new NumberFormatException("maxPoints");
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "idexperiment and idsensor are required");
+			return;
+		}
+
+		Map<Integer, MinMaxDownsampler> samples;
+		StringBuilder json = new StringBuilder("[");
+		try
+		{
+			samples = DAO.getSensorDataSamples(sensors, idexperiment, from, to, maxPoints);
+			for (Map.Entry<Integer, MinMaxDownsampler> e : samples.entrySet())
+			{
+				MinMaxDownsampler sampler = e.getValue();
+				if (sampler.size() == 0)
+				{
+					continue;
+				}
+				if (json.length() > 1)
+				{
+					json.append(',');
+				}
+				json.append("{\"idsensor\":").append(e.getKey()).append(",\"key\":");
+				appendString(json, key(e.getKey()));
+				json.append(",\"x\":[");
+				for (int i = 0; i < sampler.size(); i++)
+				{
+					if (i > 0) json.append(',');
+					json.append(sampler.time(i));
+				}
+				json.append("],\"y\":[");
+				for (int i = 0; i < sampler.size(); i++)
+				{
+					if (i > 0) json.append(',');
+					appendNumber(json, sampler.value(i));
+				}
+				json.append("]}");
+			}
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception reading series of experiment " + idexperiment, e);
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		}
+
+		resp.setContentType("application/json");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		PrintWriter out = resp.getWriter();
+		out.write(json.append(']').toString());
+	}
+
+	/**
+	 * The name shown in the legend, the description of the sensor as in the sensor list
+	 */
+	private static String key(Integer idsensor) throws DatabaseException
+	{
+		Sensor sensor = DAO.getEntity(Sensor.class, idsensor).get(0);
+		if (sensor == null) return String.valueOf(idsensor);
+		if (sensor.getDescription() != null) return sensor.getDescription();
+		return sensor.getName() != null ? sensor.getName() : String.valueOf(idsensor);
+	}
+
+	private static Timestamp timestamp(String millis)
+	{
+		return millis == null || millis.isEmpty() ? null : new Timestamp(Long.parseLong(millis));
+	}
+
+	/**
+	 * Whole values without the ".0" of Double.toString, JSON has no NaN or Infinity
+	 */
+	private static void appendNumber(StringBuilder json, double value)
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value))
+		{
+			json.append("null");
+		}
+		else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+		{
+			json.append((long) value);
+		}
+		else
+		{
+			json.append(value);
+		}
+	}
+
+	private static void appendString(StringBuilder json, String value)
+	{
+		json.append('"');
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+			{
+				json.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				json.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+}
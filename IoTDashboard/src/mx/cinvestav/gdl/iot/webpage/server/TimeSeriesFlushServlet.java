@@ -0,0 +1,43 @@
+package mx.cinvestav.gdl.iot.webpage.server;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import mx.cinvestav.gdl.iot.dao.DAO;
+import mx.cinvestav.gdl.iot.webpage.client.DatabaseException;
+
+/**
+ * Cron task (cron.xml) that flushes the measures older than <code>iot.tsdb.head.ms</code> to the
+ * compressed segments when <code>iot.tsdb.engine</code> is segment; with the sql engine it does
+ * nothing. Restricted to administrators in web.xml, which includes the App Engine cron.
+ */
+public class TimeSeriesFlushServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 2270871548519342719L;
+
+	private static final Logger logger = Logger.getLogger(TimeSeriesFlushServlet.class.getName());
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			long moved = DAO.flushTimeSeries();
+			logger.info(moved + " measures flushed to segments in " + (System.currentTimeMillis() - start) + " ms");
+			resp.setContentType("text/plain");
+			resp.getWriter().write(String.valueOf(moved));
+		}
+		catch (DatabaseException e)
+		{
+			logger.log(Level.SEVERE, "Exception flushing the measures to segments", e);
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		}
+	}
+}
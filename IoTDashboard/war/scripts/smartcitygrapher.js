@@ -2,6 +2,27 @@
  * Helper code to graph smart city data using nvd3
  * */
 
+// charts drawn by generateNVD3, by index, so appendNVD3 can add points to them
+var nvd3Charts = {};
+// points kept per series when points are appended, the oldest ones are dropped
+var MAX_SERIES_POINTS = 10000;
+
+// series come from the server (and GraphUtils) as columns, times in milliseconds:
+// [{key : 'Temperature', x : [1394406417084, ...], y : [21.5, ...]}]
+// nvd3 wants one {x, y} point per value
+function fromColumns(series) {
+	var data = [];
+	for (var i = 0; i < series.length; i++) {
+		var s = series[i];
+		var values = new Array(s.x.length);
+		for (var j = 0; j < s.x.length; j++) {
+			values[j] = { x : s.x[j], y : s.y[j] };
+		}
+		data.push({ key : s.key, values : values });
+	}
+	return data;
+}
+
 	
 function generateNVD3(xaxis, yaxis, data, index, title) {
 
@@ -12,7 +33,7 @@ function generateNVD3(xaxis, yaxis, data, index, title) {
 
 	
 	nv.addGraph(function() {
-		var cumulativeTestData = JSON.parse(data, JSON.dateParser);		
+		var cumulativeTestData = fromColumns(JSON.parse(data));
 		var firstD = new Date(cumulativeTestData[0].values[0].x);
 		
 		//funcion para agregar la hora
@@ -22,7 +43,7 @@ function generateNVD3(xaxis, yaxis, data, index, title) {
 		firstD.setSeconds(0);
 		
 		var lastD = new Date(firstD);
-		lastD.setDate(cumulativeTestData[0].values[0].x.getDate()+3);
+		lastD.setDate(firstD.getDate()+3);
 		lastD.setHours(23);
 		lastD.setMinutes(59);
 	    lastD.setSeconds(59);
@@ -66,33 +87,46 @@ function generateNVD3(xaxis, yaxis, data, index, title) {
 		
 		document.getElementById("title"+index).innerHTML = title;
 		
+		nvd3Charts[index] = { chart : chart, data : cumulativeTestData, firstD : firstD, lastD : lastD };
 		return chart;
 	});
 		
 }
+function appendNVD3(data, index) {
+	var c = nvd3Charts[index];
+	if (!c) {
+		return;
+	}
+	var series = fromColumns(JSON.parse(data));
+	for (var i = 0; i < series.length; i++) {
+		var target = null;
+		for (var j = 0; j < c.data.length; j++) {
+			if (c.data[j].key === series[i].key) {
+				target = c.data[j];
+			}
+		}
+		if (target === null) {
+			c.data.push(series[i]);
+			target = series[i];
+		} else {
+			target.values = target.values.concat(series[i].values);
+		}
+		if (target.values.length > MAX_SERIES_POINTS) {
+			target.values.splice(0, target.values.length - MAX_SERIES_POINTS);
+		}
+		var last = target.values[target.values.length - 1].x;
+		if (last > c.lastD) {
+			c.lastD = new Date(last);
+		}
+	}
+	c.chart.forceX([c.firstD, c.lastD]);
+	d3.select('#chart'+index+' svg').datum(c.data).call(c.chart);
+}
+
 function hideNVD3(index) 
 {
+	delete nvd3Charts[index];
 	document.getElementById("chart"+index).style.display = 'none';
 	document.getElementById("title"+index).innerHTML = '';
 
 }
-
-//JSON Date Parser (parseo para la conversion de fechas)
-var reISO = /^(\d{4})-(\d{2})-(\d{2})T(\d{2}):(\d{2}):(\d{2}(?:\.\d*))(?:Z|(\+|-)([\d|:]*))?$/;
-var reMsAjax = /^\/Date\((d|-|.*)\)[\/|\\]$/;
-JSON.dateParser = function(key, value) {
-	if (typeof value === 'string') {
-		var a = reISO.exec(value);
-		if (a)
-			return new Date(value);
-		a = reMsAjax.exec(value);
-		if (a) {
-			var b = a[1].split(/[-+,.]/);
-			return new Date(b[0] ? +b[0] : 0 - +b[1]);
-		}
-	}
-	return value;
-};
-	
-
-	
\ No newline at end of file